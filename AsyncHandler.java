@@ -0,0 +1,159 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.ErrorManager;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Class:  AsyncHandler
+ *
+ * Log handler which only enqueues records on the calling thread. A background
+ * writer thread drains the bounded ring buffer in batches and hands each
+ * record to the delegate handler, which formats and writes it. The caller
+ * never waits for formatting or I/O.
+ *
+ * When the buffer is full the overflow policy decides: DROP discards the
+ * record (counted, and reported by the writer once it catches up) and BLOCK
+ * makes the caller wait for room.
+ */
+public class AsyncHandler extends Handler {
+
+    public enum OverflowPolicy {
+        DROP, BLOCK
+    }
+
+    private static final int BATCH_SIZE = 256;
+
+    private final Handler                        delegate;
+    private final ArrayBlockingQueue<LogRecord>  buffer;
+    private final OverflowPolicy                 policy;
+    private final AtomicLong                     dropped;
+    private final Thread                         writer;
+    private volatile boolean                     running;
+
+    /**
+     * Constructor
+     *
+     * Starts the writer thread.
+     *
+     * @params  handler doing the actual formatting and writing
+     * @params  number of records the buffer holds
+     * @params  what to do when the buffer is full
+     */
+    public AsyncHandler(Handler delegate, int capacity, OverflowPolicy policy) {
+        this.delegate = delegate;
+        this.buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+        this.policy = policy;
+        this.dropped = new AtomicLong();
+        this.running = true;
+        this.writer = new Thread(this::drain, "AsyncLogWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Publish
+     *
+     * Enqueues the record, applying the overflow policy if the buffer is
+     * full. Records are dropped once the handler has been closed.
+     *
+     * @params  record to log
+     */
+    public void publish(LogRecord record) {
+        if (! running || ! isLoggable(record)) {
+            return;
+        }
+        if (buffer.offer(record)) {
+            return;
+        }
+        if (policy == OverflowPolicy.BLOCK) {
+            try {
+                buffer.put(record);
+                return;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Drain
+     *
+     * Writer loop: waits for records, then publishes whatever has queued up
+     * in one batch and flushes once per batch.
+     */
+    private void drain() {
+        List<LogRecord> batch = new ArrayList<LogRecord>(BATCH_SIZE);
+        while (running || ! buffer.isEmpty()) {
+            try {
+                LogRecord first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, BATCH_SIZE - 1);
+                write(batch);
+                batch.clear();
+            }
+            catch (InterruptedException ex) {
+                break;
+            }
+            catch (Exception ex) {
+                reportError("Async log writer failed", ex, ErrorManager.WRITE_FAILURE);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write
+     *
+     * @params  records to hand to the delegate
+     */
+    private void write(List<LogRecord> batch) {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            delegate.publish(new LogRecord(Level.WARNING,
+                "Log buffer full, dropped " + lost + " records"));
+        }
+        for (LogRecord record : batch) {
+            delegate.publish(record);
+        }
+        delegate.flush();
+    }
+
+    /**
+     * @returns records dropped since the last report
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void flush() {
+        delegate.flush();
+    }
+
+    /**
+     * Close
+     *
+     * Stops accepting records, lets the writer drain what is buffered and
+     * closes the delegate.
+     */
+    public void close() {
+        running = false;
+        try {
+            writer.join(5000);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+}
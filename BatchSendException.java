@@ -0,0 +1,38 @@
+import java.util.List;
+
+
+/**
+ * Class:  BatchSendException
+ *
+ * A batch send failed part way. For a non transacted batch the messages
+ * sent before the failure did go out and their correlation ids are kept
+ * here so the caller can resume after them; a transacted batch was rolled
+ * back and has none.
+ */
+public class BatchSendException extends JMSException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> correlationIds;
+    private final JMSException cause;
+
+    public BatchSendException(List<String> correlationIds, JMSException cause) {
+        this.correlationIds = correlationIds;
+        this.cause = cause;
+        initCause(cause);
+    }
+
+    /**
+     * @returns correlation ids of the messages sent before the failure
+     */
+    public List<String> getCorrelationIds() {
+        return correlationIds;
+    }
+
+    /**
+     * @returns the underlying failure
+     */
+    public JMSException getFailure() {
+        return cause;
+    }
+}
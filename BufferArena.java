@@ -0,0 +1,304 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Class:  BufferArena
+ *
+ * Reusable direct (off-heap) ByteBuffers for large message bodies, so
+ * payloads of tens of MB are neither allocated as short lived arrays which
+ * land straight in the old generation, nor allocated and freed for every
+ * message:
+ * - Buffers come in power of two size classes from 2^MIN_SLAB_SHIFT to
+ *   2^MAX_SLAB_SHIFT bytes; a request gets a slab of the smallest class
+ *   holding it. Larger requests get a direct buffer of their own, which is
+ *   not kept.
+ * - Released slabs go back on a lock free stack of their class, most
+ *   recently used first, while the arena keeps no more than its max
+ *   retained bytes; beyond that they are left to the garbage collector.
+ *   Running out of direct memory drops the retained slabs and tries again.
+ * - Every allocation is a Lease, to be closed once the buffer is no longer
+ *   used (try-with-resources). A lease which becomes unreachable without
+ *   being closed is a leak: a Cleaner reports it, with where it was
+ *   allocated if tracking is on, and its slab is dropped rather than reused
+ *   since somebody may still hold it.
+ */
+public class BufferArena {
+
+    /// smallest slab, 64 KiB; smaller messages are not worth the arena
+    public static final int  MIN_SLAB_SHIFT = 16;
+
+    /// largest pooled slab, 256 MiB
+    public static final int  MAX_SLAB_SHIFT = 28;
+
+    public static final long DEFAULT_MAX_RETAINED = 256L * 1024 * 1024;
+
+    private static final Cleaner     cleaner = Cleaner.create();
+    private static final BufferArena shared  = new BufferArena(DEFAULT_MAX_RETAINED, false);
+
+    /**
+     * Lease
+     *
+     * A buffer on loan from the arena. The buffer runs from zero to the size
+     * asked for; its capacity may be larger.
+     */
+    public static final class Lease implements AutoCloseable {
+
+        Lease(Release release, int size) {
+            this.release = release;
+            this.buffer = release.buffer;
+            this.buffer.clear().limit(size);
+            this.cleanable = cleaner.register(this, release);
+        }
+
+        /**
+         * @returns the leased buffer, not to be used once the lease is closed
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Close
+         *
+         * Gives the buffer back to the arena. Closing again does nothing.
+         */
+        public void close() {
+            release.closed = true;
+            cleanable.clean();
+        }
+
+        private final Release           release;
+        private final ByteBuffer        buffer;
+        private final Cleaner.Cleanable cleanable;
+    }
+
+    /// what happens to a lease's buffer, run once: on close, or by the
+    /// cleaner if the lease was never closed; must not refer to the lease
+    private static final class Release implements Runnable {
+
+        Release(BufferArena arena, ByteBuffer buffer, int sizeClass, Exception site) {
+            this.arena = arena;
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+            this.site = site;
+        }
+
+        public void run() {
+            if (closed) {
+                arena.recycle(buffer, sizeClass);
+            }
+            else {
+                arena.leaked(buffer, site);
+            }
+        }
+
+        final BufferArena  arena;
+        final ByteBuffer   buffer;
+        final int          sizeClass;
+        final Exception    site;
+        volatile boolean   closed;
+    }
+
+    private final ConcurrentLinkedDeque<ByteBuffer>[] free;
+    private final AtomicLong                          retained;
+    private final AtomicLong                          leased;
+    private final LongAdder                           allocations;
+    private final LongAdder                           reuses;
+    private final LongAdder                           leaks;
+    private final Logger                              logger;
+    private volatile long                             maxRetained;
+    private volatile boolean                          trackSites;
+
+    /**
+     * Accessor
+     *
+     * @returns the arena shared by every pool, see PoolConfiguration
+     */
+    public static BufferArena shared() {
+        return shared;
+    }
+
+    /**
+     * Constructor
+     *
+     * @params  bytes of released slabs kept for reuse
+     * @params  true to record where each buffer was allocated, reported
+     *          with a leak (costs a stack trace per allocation)
+     */
+    @SuppressWarnings("unchecked")
+    public BufferArena(long maxRetained, boolean trackSites) {
+        free = (ConcurrentLinkedDeque<ByteBuffer>[])
+            new ConcurrentLinkedDeque<?>[MAX_SLAB_SHIFT - MIN_SLAB_SHIFT + 1];
+        for (int i = 0; i < free.length; ++i) {
+            free[i] = new ConcurrentLinkedDeque<ByteBuffer>();
+        }
+        retained = new AtomicLong();
+        leased = new AtomicLong();
+        allocations = new LongAdder();
+        reuses = new LongAdder();
+        leaks = new LongAdder();
+        logger = LoggerAdapter.getInstance().getLogger();
+        configure(maxRetained, trackSites);
+    }
+
+    /**
+     * Configure
+     *
+     * Changes the settings, see the constructor. Slabs retained beyond the
+     * new limit are dropped.
+     *
+     * @params  bytes of released slabs kept for reuse
+     * @params  true to record where each buffer was allocated
+     */
+    public void configure(long maxRetained, boolean trackSites) {
+        this.maxRetained = Math.max(maxRetained, 0L);
+        this.trackSites = trackSites;
+        trim(this.maxRetained);
+    }
+
+    /**
+     * Allocate
+     *
+     * @params  bytes needed
+     * @returns lease of a buffer of that size, at position zero
+     */
+    public Lease allocate(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative buffer size: " + size);
+        }
+        int shift = Math.max(MIN_SLAB_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size - 1, 0)));
+        int sizeClass = shift <= MAX_SLAB_SHIFT ? shift - MIN_SLAB_SHIFT : -1;
+        ByteBuffer buffer = sizeClass < 0 ? null : free[sizeClass].pollFirst();
+        if (buffer != null) {
+            retained.addAndGet(-buffer.capacity());
+            reuses.increment();
+        }
+        else {
+            buffer = allocateDirect(sizeClass < 0 ? size : 1 << shift);
+        }
+        allocations.increment();
+        leased.addAndGet(buffer.capacity());
+        Exception site = trackSites ? new Exception("Buffer allocated here") : null;
+        return new Lease(new Release(this, buffer, sizeClass, site), size);
+    }
+
+    /**
+     * Allocate Direct
+     *
+     * @params  capacity
+     * @returns new direct buffer; the retained slabs are dropped first if
+     *          direct memory ran out
+     */
+    private ByteBuffer allocateDirect(int capacity) {
+        try {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        catch (OutOfMemoryError oom) {
+            logger.warning("Direct memory exhausted, dropping retained buffers: " + this);
+            trim(0L);
+            return ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * Recycle
+     *
+     * @params  buffer of a closed lease
+     * @params  its size class, negative if it has none
+     */
+    private void recycle(ByteBuffer buffer, int sizeClass) {
+        int capacity = buffer.capacity();
+        leased.addAndGet(-capacity);
+        if (sizeClass < 0) {
+            return;
+        }
+        if (retained.addAndGet(capacity) > maxRetained) {
+            retained.addAndGet(-capacity);
+            return;
+        }
+        free[sizeClass].offerFirst(buffer);
+    }
+
+    /**
+     * Leaked
+     *
+     * @params  buffer of a lease which was never closed
+     * @params  where it was allocated, null if not tracked
+     */
+    private void leaked(ByteBuffer buffer, Exception site) {
+        leased.addAndGet(-buffer.capacity());
+        leaks.increment();
+        String s = "Buffer of " + buffer.capacity() + " bytes leaked, its lease was never closed";
+        if (site != null) {
+            Utilities.logException(site, s);
+        }
+        else {
+            logger.warning(s + " (set mq.arena_track_leaks to find where)");
+        }
+    }
+
+    /**
+     * Trim
+     *
+     * Drops retained slabs, largest first, down to the given bytes.
+     *
+     * @params  bytes to keep at most
+     */
+    private void trim(long keep) {
+        for (int i = free.length - 1; i >= 0 && retained.get() > keep; --i) {
+            for (ByteBuffer buffer; retained.get() > keep && (buffer = free[i].pollLast()) != null;) {
+                retained.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+    /**
+     * @returns buffers handed out
+     */
+    public long getAllocations() {
+        return allocations.sum();
+    }
+
+    /**
+     * @returns buffers handed out which were reused
+     */
+    public long getReuses() {
+        return reuses.sum();
+    }
+
+    /**
+     * @returns leases found unreachable without being closed
+     */
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * @returns bytes of the buffers currently leased
+     */
+    public long getLeasedBytes() {
+        return leased.get();
+    }
+
+    /**
+     * @returns bytes of the slabs kept for reuse
+     */
+    public long getRetainedBytes() {
+        return retained.get();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Allocations: " + getAllocations() + ". ");
+        sb.append("Reuses: " + getReuses() + ". ");
+        sb.append("Leaks: " + getLeaks() + ". ");
+        sb.append("Leased: " + getLeasedBytes() + ". ");
+        sb.append("Retained: " + getRetainedBytes() + " [" + maxRetained + "].");
+        return sb.toString();
+    }
+}
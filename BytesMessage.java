@@ -1,13 +1,60 @@
+import java.util.Arrays;
+import java.nio.ByteBuffer;
+
 public class BytesMessage extends Message {
+    private byte[] body = new byte[0];
+    private int length;
+    private int position;
     public void writeBytes(byte[] bytes) {
+        writeBytes(bytes, 0, bytes.length);
     }
-    public String getJMSMessageID() {
-        return "jms-message-id";
+    public void writeBytes(byte[] bytes, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(bytes, offset, body, length, count);
+        length += count;
+    }
+    public void writeBytes(ByteBuffer bytes) {
+        int count = bytes.remaining();
+        ensureCapacity(count);
+        bytes.get(body, length, count);
+        length += count;
+    }
+    private void ensureCapacity(int count) {
+        if (length + count > body.length) {
+            body = Arrays.copyOf(body, Math.max(body.length * 2, length + count));
+        }
     }
     public int getBodyLength() {
-        return 0;
+        return length;
     }
     public int readBytes(byte[] bytes) {
-        return 0;
+        return readBytes(bytes, bytes.length);
+    }
+    public int readBytes(byte[] bytes, int count) {
+        if (position >= length) {
+            return -1;
+        }
+        int n = Math.min(count, length - position);
+        System.arraycopy(body, position, bytes, 0, n);
+        position += n;
+        return n;
+    }
+    public int readBytes(ByteBuffer bytes) {
+        if (position >= length) {
+            return -1;
+        }
+        int n = Math.min(bytes.remaining(), length - position);
+        bytes.put(body, position, n);
+        position += n;
+        return n;
+    }
+    public void reset() {
+        position = 0;
+    }
+    Message copy() {
+        BytesMessage m = copyHeaders(new BytesMessage());
+        m.body = Arrays.copyOf(body, length);
+        m.length = length;
+        return m;
     }
 }
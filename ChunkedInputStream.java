@@ -0,0 +1,243 @@
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Objects;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * Class:  ChunkedInputStream
+ *
+ * Reads a message sent in chunks (see ChunkedOutputStream) as one stream,
+ * in constant memory, see Connection.openInputStream:
+ * - One receiver selects the chunks on the correlation id. Each is decoded
+ *   (uncompressed with the codec it names) into a buffer which is reused
+ *   for the next one.
+ * - Chunks are read in JMSXGroupSeq order; one which arrives early is held
+ *   until its turn, a duplicate is dropped. No more than MAX_HELD chunks
+ *   are held: one which would go beyond fails the read with an
+ *   IOException, rather than let a missing chunk pile the message up on
+ *   the heap.
+ * - The stream ends after the chunk marked X_LastInGroup. A message which
+ *   is not chunked is read as a single last chunk, so any reply can be
+ *   read as a stream.
+ * - Waiting longer than the receive timeout for a chunk fails the read
+ *   with an InterruptedIOException; a broken connection or a corrupt chunk
+ *   with an IOException.
+ *
+ * Not thread safe; the connection must not be used otherwise, nor released,
+ * until the stream is closed.
+ */
+public class ChunkedInputStream extends InputStream {
+
+    /// chunks held while waiting for an earlier one
+    public static final int MAX_HELD = 16;
+
+    private final Connection            connection;
+    private final String                correlationId;
+    private final long                  timeout;
+    private final Map<Integer, Message> early;
+    private MQQueueReceiver             receiver;
+    private ByteBuffer                  buffer;
+    private ByteBuffer                  chunk;
+    private int                         expected;
+    private boolean                     last;
+    private boolean                     closed;
+
+    /**
+     * Constructor
+     *
+     * @params  connection to receive on
+     * @params  correlation id of the message
+     * @params  millis to wait for each chunk, zero for no limit
+     */
+    ChunkedInputStream(Connection connection, String correlationId, long timeout) {
+        this.connection = connection;
+        this.correlationId = correlationId;
+        this.timeout = timeout;
+        this.early = new HashMap<Integer, Message>();
+        this.buffer = ByteBuffer.allocate(0);
+        this.chunk = buffer;
+        this.expected = 1;
+    }
+
+    public int read() throws IOException {
+        if (! fill()) {
+            return -1;
+        }
+        return chunk.get() & 0xff;
+    }
+
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        if (length == 0) {
+            return 0;
+        }
+        if (! fill()) {
+            return -1;
+        }
+        int count = Math.min(length, chunk.remaining());
+        chunk.get(bytes, offset, count);
+        return count;
+    }
+
+    /**
+     * Read
+     *
+     * As read(byte[]), into a buffer (heap or direct).
+     *
+     * @params  buffer to read into, from position to limit
+     * @returns bytes read, -1 at the end of the message
+     * @throws  IOException
+     */
+    public int read(ByteBuffer bytes) throws IOException {
+        if (! bytes.hasRemaining()) {
+            return 0;
+        }
+        if (! fill()) {
+            return -1;
+        }
+        int count = Math.min(bytes.remaining(), chunk.remaining());
+        int limit = chunk.limit();
+        chunk.limit(chunk.position() + count);
+        bytes.put(chunk);
+        chunk.limit(limit);
+        return count;
+    }
+
+    /**
+     * @returns bytes left of the current chunk
+     */
+    public int available() {
+        return closed ? 0 : chunk.remaining();
+    }
+
+    /**
+     * Close
+     *
+     * Closes the receiver. Chunks not read yet stay on the queue.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        early.clear();
+        if (receiver != null) {
+            try {
+                receiver.close();
+            }
+            catch (Exception ex) {
+                String s = "Failure to close receiver on correlationId: " + correlationId;
+                Utilities.logException(ex, s);
+            }
+        }
+    }
+
+    /**
+     * Fill
+     *
+     * @returns true if there is something to read, false at the end of the
+     *          message
+     * @throws  IOException
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed: " + correlationId);
+        }
+        while (! chunk.hasRemaining()) {
+            if (last) {
+                return false;
+            }
+            next();
+        }
+        return true;
+    }
+
+    /**
+     * Next
+     *
+     * - Take the expected chunk from those which came early, or receive
+     *   until it arrives.
+     * - Decode it into the reused buffer.
+     *
+     * @throws  IOException
+     */
+    private void next() throws IOException {
+        Message message = early.remove(expected);
+        try {
+            if (receiver == null) {
+                receiver = connection.receiver(correlationId);
+            }
+            while (message == null) {
+                Message received = receiver.receive(timeout);
+                connection.timestamp = new Timestamp(System.currentTimeMillis());
+                if (received == null) {
+                    String s = "Timed out waiting for chunk " + expected;
+                    throw new InterruptedIOException(s + " of correlationId: " + correlationId);
+                }
+                int sequence = sequence(received);
+                if (sequence == expected) {
+                    message = received;
+                }
+                else if (sequence > expected) {
+                    if (early.size() >= MAX_HELD && ! early.containsKey(sequence)) {
+                        String s = "Chunk " + expected + " missing, " + early.size();
+                        throw new IOException(s + " later chunks held of: " + correlationId);
+                    }
+                    early.put(sequence, received);
+                }
+            }
+            chunk = connection.decode(message, this::buffer);
+        }
+        catch (JMSException ex) {
+            connection.invalidate();
+            throw new IOException("Failure to receive chunk " + expected + " of: " + correlationId, ex);
+        }
+        catch (DataFormatException ex) {
+            throw new IOException("Corrupt chunk " + expected + " of: " + correlationId, ex);
+        }
+        last = message.getStringProperty(ChunkedOutputStream.GROUP_HEADER) == null
+            || "true".equals(message.getStringProperty(ChunkedOutputStream.LAST_HEADER));
+        ++expected;
+    }
+
+    /**
+     * Sequence
+     *
+     * @params  received message
+     * @returns its position in the group; the expected one for a message
+     *          which is not chunked
+     * @throws  IOException if the position is not a number
+     */
+    private int sequence(Message message) throws IOException {
+        if (message.getStringProperty(ChunkedOutputStream.GROUP_HEADER) == null) {
+            return expected;
+        }
+        String sequence = message.getStringProperty(ChunkedOutputStream.SEQUENCE_HEADER);
+        try {
+            return Integer.parseInt(sequence);
+        }
+        catch (NumberFormatException ex) {
+            throw new IOException("Invalid chunk sequence: " + sequence + " of: " + correlationId, ex);
+        }
+    }
+
+    /**
+     * Buffer
+     *
+     * @params  size of the next chunk
+     * @returns the reused buffer, grown if it is too small
+     */
+    private ByteBuffer buffer(int size) {
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
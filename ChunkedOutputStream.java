@@ -0,0 +1,233 @@
+import java.util.UUID;
+import java.util.Objects;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+
+/**
+ * Class:  ChunkedOutputStream
+ *
+ * Sends a message of any size as a sequence of chunk messages, in constant
+ * memory, see Connection.openOutputStream:
+ * - Written bytes collect in a buffer of the pool's chunk size; each full
+ *   buffer goes out as one bytes message, compressed with the pool's codec
+ *   (or stored) as a message sent from a ByteBuffer is.
+ * - Every chunk carries the stream's group id as JMSXGroupID and as
+ *   JMSCorrelationID, its position (from 1) as JMSXGroupSeq, and the last
+ *   one X_LastInGroup, so ChunkedInputStream can put the message back
+ *   together. A replier passes the correlation id on to its reply.
+ * - A chunk is compressed on the writing thread while the one before is
+ *   still being sent on the shared task executor. No more than one chunk
+ *   is in flight, so memory stays at the buffer plus two compressed chunks.
+ * - Closing sends what is left as the last chunk (an empty one for an empty
+ *   message) and waits for it to go out. A failed send fails the next write
+ *   or the close with an IOException, and the stream with it.
+ *
+ * Not thread safe; the connection must not be used otherwise, nor released,
+ * until the stream is closed.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    /// message properties of a chunk
+    public static final String GROUP_HEADER    = "JMSXGroupID";
+    public static final String SEQUENCE_HEADER = "JMSXGroupSeq";
+    public static final String LAST_HEADER     = "X_LastInGroup";
+
+    /// 1 MiB, for pools configured without a chunk size
+    public static final int    DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final Connection              connection;
+    private final String                  groupId;
+    private final ByteBuffer              buffer;
+    private CompletableFuture<Void>       inFlight;
+    private IOException                   failure;
+    private int                           sequence;
+    private boolean                       closed;
+
+    /**
+     * Constructor
+     *
+     * @params  connection to send on
+     * @params  bytes per chunk
+     */
+    ChunkedOutputStream(Connection connection, int chunkSize) {
+        this.connection = connection;
+        this.groupId = "GRP-" + UUID.randomUUID();
+        this.buffer = ByteBuffer.allocate(chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE);
+        this.inFlight = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @returns correlation id of the message, and of its reply
+     */
+    public String getCorrelationId() {
+        return groupId;
+    }
+
+    /**
+     * @returns chunks sent or being sent so far
+     */
+    public int getChunks() {
+        return sequence;
+    }
+
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (! buffer.hasRemaining()) {
+            chunk(false);
+        }
+        buffer.put((byte) b);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        ensureOpen();
+        while (length > 0) {
+            if (! buffer.hasRemaining()) {
+                chunk(false);
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Write
+     *
+     * As write(byte[]), from a buffer (heap or direct).
+     *
+     * @params  bytes to write, from position to limit; consumed
+     * @throws  IOException if the stream failed or is closed
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        ensureOpen();
+        while (bytes.hasRemaining()) {
+            if (! buffer.hasRemaining()) {
+                chunk(false);
+            }
+            int count = Math.min(bytes.remaining(), buffer.remaining());
+            int limit = bytes.limit();
+            bytes.limit(bytes.position() + count);
+            buffer.put(bytes);
+            bytes.limit(limit);
+        }
+    }
+
+    /**
+     * Flush
+     *
+     * Sends what was written so far as a chunk of its own and waits for it
+     * to go out.
+     *
+     * @throws  IOException if the send failed
+     */
+    public void flush() throws IOException {
+        ensureOpen();
+        if (buffer.position() > 0) {
+            chunk(false);
+        }
+        await();
+    }
+
+    /**
+     * Close
+     *
+     * Sends the last chunk and waits for it to go out. Closing again does
+     * nothing.
+     *
+     * @throws  IOException if a send failed
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (failure == null) {
+                chunk(true);
+                await();
+            }
+        }
+        finally {
+            /// nothing is left sending on the connection once closed
+            inFlight.exceptionally(ex -> null).join();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Chunk
+     *
+     * - Compress (or store) the buffer into a bytes message and label it.
+     * - Wait for the previous chunk to go out.
+     * - Send this one on the shared task executor.
+     *
+     * @params  true for the last chunk
+     * @throws  IOException if the previous send failed
+     */
+    private void chunk(boolean last) throws IOException {
+        BytesMessage message;
+        buffer.flip();
+        try {
+            message = connection.encode(connection.session, buffer);
+        }
+        catch (RuntimeException ex) {
+            failure = new IOException("Failure to encode chunk " + (sequence + 1) + " of: " + groupId, ex);
+            throw failure;
+        }
+        finally {
+            buffer.clear();
+        }
+        message.setJMSCorrelationID(groupId);
+        message.setStringProperty(GROUP_HEADER, groupId);
+        message.setStringProperty(SEQUENCE_HEADER, Integer.toString(++sequence));
+        if (last) {
+            message.setStringProperty(LAST_HEADER, "true");
+        }
+        connection.requestReplyCodec(message);
+
+        /// compressed while the previous chunk was being sent
+        await();
+        String what = "chunk " + sequence + " of " + groupId;
+        inFlight = CompletableFuture.runAsync(() -> {
+            try {
+                connection.sendChunk(message, what);
+            }
+            catch (JMSException ex) {
+                throw new CompletionException(ex);
+            }
+        }, TaskExecutors.shared());
+    }
+
+    /**
+     * Await
+     *
+     * @throws  IOException if the chunk in flight failed to go out
+     */
+    private void await() throws IOException {
+        try {
+            inFlight.join();
+        }
+        catch (CompletionException ex) {
+            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+            failure = new IOException("Failure to send streamed message: " + groupId, cause);
+            throw failure;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed: " + groupId);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
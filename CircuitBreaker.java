@@ -0,0 +1,187 @@
+import java.util.logging.Logger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Class:  CircuitBreaker
+ *
+ * Stops a pool from hammering a queue manager which is down:
+ * - CLOSED: calls go through. A run of consecutive failures reaching the
+ *   threshold trips the breaker.
+ * - OPEN: calls are refused straight away, without touching a connection,
+ *   until the open time has passed.
+ * - HALF_OPEN: the first caller after the open time makes a trial call,
+ *   others are still refused. Its success closes the breaker, its failure
+ *   opens it again for another open time. A trial which never reports back
+ *   is given up after an open time and another caller gets one.
+ * Lock free; the state and the time it was entered move together by
+ * compare-and-set, so exactly one caller gets the trial.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /// state along with when it was entered, replaced as a whole
+    private static final class Phase {
+
+        Phase(State state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+
+        final State state;
+        final long  since;
+    }
+
+    private static final Phase CLOSED = new Phase(State.CLOSED, 0L);
+
+    private final String                  name;
+    private volatile int                  threshold;
+    private volatile long                 openTime;
+    private final AtomicReference<Phase>  phase;
+    private final AtomicInteger           failures;
+    private final LongAdder               trips;
+    private final LongAdder               rejections;
+    private final Logger                  logger;
+
+    /**
+     * Constructor
+     *
+     * @params  name for the log, e.g. the pool type
+     * @params  consecutive failures tripping the breaker, zero or less for
+     *          a breaker which never trips
+     * @params  millis the breaker stays open before a trial call
+     */
+    public CircuitBreaker(String name, int threshold, long openTime) {
+        this.name = name;
+        this.threshold = threshold;
+        this.openTime = openTime;
+        this.phase = new AtomicReference<Phase>(CLOSED);
+        this.failures = new AtomicInteger();
+        this.trips = new LongAdder();
+        this.rejections = new LongAdder();
+        this.logger = LoggerAdapter.getInstance().getLogger();
+    }
+
+    /**
+     * Configure
+     *
+     * Changes the threshold and open time, see the constructor. The state
+     * and the current failure run carry on.
+     *
+     * @params  consecutive failures tripping the breaker
+     * @params  millis the breaker stays open before a trial call
+     */
+    public void configure(int threshold, long openTime) {
+        this.threshold = threshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Allow
+     *
+     * Asks to make a call.
+     *
+     * @returns true if the call may go ahead, and its outcome must then be
+     *          reported with onSuccess or onFailure
+     */
+    public boolean allow() {
+        Phase current = phase.get();
+        if (current.state == State.CLOSED) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        /// open (or the trial went missing) for long enough, try again
+        if (now - current.since >= openTime
+            && phase.compareAndSet(current, new Phase(State.HALF_OPEN, now))) {
+            logger.info(() -> "Circuit breaker half open, trial call: " + name);
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+
+    /**
+     * On Success
+     *
+     * Closes the breaker and resets the failure run.
+     */
+    public void onSuccess() {
+        failures.set(0);
+        if (phase.getAndSet(CLOSED).state != State.CLOSED) {
+            logger.info(() -> "Circuit breaker closed: " + name);
+        }
+    }
+
+    /**
+     * On Failure
+     *
+     * Counts the failure; trips the breaker when the run reaches the
+     * threshold, or straight away if this was the half open trial.
+     */
+    public void onFailure() {
+        if (threshold <= 0) {
+            return;
+        }
+        int run = failures.incrementAndGet();
+        Phase current = phase.get();
+        if (current.state == State.HALF_OPEN
+            || (current.state == State.CLOSED && run >= threshold)) {
+            trip(current);
+        }
+    }
+
+    /**
+     * Trip
+     *
+     * @params  phase the breaker is expected to be in
+     */
+    private void trip(Phase from) {
+        Phase open = new Phase(State.OPEN, System.currentTimeMillis());
+        if (! phase.compareAndSet(from, open)) {
+            return;
+        }
+        failures.set(0);
+        trips.increment();
+        logger.warning("Circuit breaker open for " + openTime + " ms: " + name);
+    }
+
+    /**
+     * Is Available
+     *
+     * Like allow, but only looks: does not start a trial or count a
+     * rejection.
+     *
+     * @returns true if a call would currently be allowed (or get the trial)
+     */
+    public boolean isAvailable() {
+        Phase current = phase.get();
+        return current.state == State.CLOSED
+            || System.currentTimeMillis() - current.since >= openTime;
+    }
+
+    /**
+     * @returns current state
+     */
+    public State getState() {
+        return phase.get().state;
+    }
+
+    /**
+     * @returns times the breaker tripped
+     */
+    public long getTrips() {
+        return trips.sum();
+    }
+
+    /**
+     * @returns calls refused while open
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+}
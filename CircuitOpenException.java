@@ -0,0 +1,24 @@
+/**
+ * Class:  CircuitOpenException
+ *
+ * A dispatch was refused without being tried because the pool's circuit
+ * breaker is open, see CircuitBreaker.
+ */
+public class CircuitOpenException extends JMSException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ConnectionType type;
+
+    public CircuitOpenException(ConnectionType type) {
+        this.type = type;
+    }
+
+    public ConnectionType getType() {
+        return type;
+    }
+
+    public String getMessage() {
+        return "Circuit breaker open for pool: " + type;
+    }
+}
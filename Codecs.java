@@ -0,0 +1,99 @@
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Class:  Codecs
+ *
+ * Registry of the available compression codecs by name. Deflate, stored,
+ * lz and parallel (deflate in blocks, and any frame on receipt) are
+ * registered up front; further codecs can be plugged in with register
+ * before the configuration is loaded.
+ */
+public class Codecs {
+
+    /// message property naming the codec of a compressed body
+    public static final String HEADER = "X_Codec";
+
+    /// message property asking the replier to compress with this codec
+    public static final String REPLY_HEADER = "X_ReplyCodec";
+
+    /// message property giving the uncompressed size of a bytes message, so
+    /// the receiver can size its buffer up front
+    public static final String LENGTH_HEADER = "X_Length";
+
+    public static final CompressionCodec DEFLATE =
+        new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+
+    private static final Map<String, CompressionCodec> codecs =
+        new ConcurrentHashMap<String, CompressionCodec>();
+
+    static {
+        register(DEFLATE);
+        register(new StoredCodec());
+        register(new LzCodec());
+        register(new ParallelCodec(DEFLATE, ParallelCodec.DEFAULT_BLOCK_SIZE));
+    }
+
+    /**
+     * Register
+     *
+     * @params  codec to make available under its name
+     */
+    public static void register(CompressionCodec codec) {
+        codecs.put(codec.name(), codec);
+    }
+
+    /**
+     * For Name
+     *
+     * @params  codec name as found in a message header
+     * @returns the codec
+     * @throws  IllegalArgumentException if there is no such codec
+     */
+    public static CompressionCodec forName(String name) {
+        CompressionCodec codec = codecs.get(name.trim().toLowerCase());
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown compression codec: " + name);
+        }
+        return codec;
+    }
+
+    /**
+     * For Name
+     *
+     * As above, but deflate is created at the given level.
+     *
+     * @params  codec name from the configuration
+     * @params  deflate level, Deflater.DEFAULT_COMPRESSION for the default
+     * @returns the codec
+     */
+    public static CompressionCodec forName(String name, int level) {
+        if (DeflateCodec.NAME.equals(name.trim().toLowerCase())
+            && level != Deflater.DEFAULT_COMPRESSION) {
+            return new DeflateCodec(level);
+        }
+        return forName(name);
+    }
+
+    /**
+     * For Reply Setting
+     *
+     * Interprets an out_compress_message setting: "true" is deflate, "false"
+     * or nothing means plain replies, anything else is a codec name.
+     *
+     * @params  configured value, may be null
+     * @returns the reply codec or null for uncompressed replies
+     */
+    public static CompressionCodec forReplySetting(String value) {
+        if (value == null || value.trim().isEmpty()
+            || value.trim().equalsIgnoreCase("false")) {
+            return null;
+        }
+        if (value.trim().equalsIgnoreCase("true")) {
+            return DEFLATE;
+        }
+        return forName(value);
+    }
+}
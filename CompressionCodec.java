@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * Interface:  CompressionCodec
+ *
+ * A compression algorithm for message bodies. Codecs work on the scratch
+ * buffers of the calling thread's CompressionContext: the source is passed
+ * in and the result is left in the context's output buffer. Codecs must be
+ * stateless (or immutable) since one instance is shared by every thread.
+ *
+ * The name travels in the Codecs.HEADER property of every compressed
+ * message so the receiving side can pick the matching codec.
+ *
+ * The ByteBuffer variants take heap or direct buffers. By default they go
+ * through the byte array methods, copying only what is not array backed;
+ * codecs which can work on buffers directly override them, and give
+ * maxCompressedLength so the result can go straight into a buffer of that
+ * size (see BufferArena).
+ */
+public interface CompressionCodec {
+
+    /**
+     * @returns the name used in configuration and in the message header
+     */
+    String name();
+
+    /**
+     * Compress
+     *
+     * @params  context providing scratch buffers and native codecs
+     * @params  bytes to compress
+     * @params  number of bytes to compress
+     * @returns number of compressed bytes in context.output()
+     */
+    int compress(CompressionContext context, byte[] source, int length);
+
+    /**
+     * Decompress
+     *
+     * @params  context providing scratch buffers and native codecs
+     * @params  bytes to decompress
+     * @params  number of bytes to decompress
+     * @returns number of decompressed bytes in context.output()
+     * @throws  DataFormatException on corrupt input
+     */
+    int decompress(CompressionContext context, byte[] source, int length)
+        throws DataFormatException;
+
+    /**
+     * Compress
+     *
+     * @params  context providing scratch buffers and native codecs
+     * @params  bytes to compress, from position to limit; consumed
+     * @returns number of compressed bytes in context.output()
+     */
+    default int compress(CompressionContext context, ByteBuffer source) {
+        int length = source.remaining();
+        return compress(context, context.array(source), length);
+    }
+
+    /**
+     * Compress
+     *
+     * @params  context providing scratch buffers and native codecs
+     * @params  bytes to compress, from position to limit; consumed
+     * @params  buffer receiving the compressed bytes at its position, with
+     *          room for maxCompressedLength
+     * @returns number of compressed bytes written to the target
+     * @throws  BufferOverflowException if they do not fit
+     */
+    default int compress(CompressionContext context, ByteBuffer source, ByteBuffer target) {
+        int count = compress(context, source);
+        target.put(context.output(0), 0, count);
+        return count;
+    }
+
+    /**
+     * Max Compressed Length
+     *
+     * @params  number of bytes to compress
+     * @returns most bytes they can compress to, negative if the codec does
+     *          not know; compressing into a buffer is then not worth it
+     */
+    default int maxCompressedLength(int length) {
+        return -1;
+    }
+
+    /**
+     * Decompress
+     *
+     * @params  context providing scratch buffers and native codecs
+     * @params  bytes to decompress, from position to limit; consumed
+     * @params  buffer receiving the decompressed bytes at its position
+     * @returns number of decompressed bytes written to the target
+     * @throws  DataFormatException on corrupt input, or if the result does
+     *          not fit the target
+     */
+    default int decompress(CompressionContext context, ByteBuffer source, ByteBuffer target)
+        throws DataFormatException {
+
+        int length = source.remaining();
+        int count = decompress(context, context.array(source), length);
+        if (count > target.remaining()) {
+            throw new DataFormatException("Decompressed " + count + " bytes, room for "
+                + target.remaining());
+        }
+        target.put(context.output(0), 0, count);
+        return count;
+    }
+}
@@ -0,0 +1,621 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+import java.util.function.IntFunction;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Class:  CompressionContext
+ *
+ * Per thread compression state: one Deflater, one Inflater, a UTF-8 encoder,
+ * the lz hash table and the scratch buffers the codecs work in. Everything is
+ * reset and reused from message to message instead of being allocated each
+ * time, and compressed output is written straight from the scratch buffer
+ * into the bytes message, tagged with the codec that produced it.
+ *
+ * Virtual threads (see TaskExecutors.isVirtual) borrow a context from a
+ * shared pool instead, which keeps at most MAX_POOLED idle contexts and
+ * ends the native deflater and inflater of the rest. Either way a context
+ * is taken with acquire and given back with close.
+ *
+ * Messages held in ByteBuffers skip the UTF-8 step: heap buffers are read in
+ * place, direct ones are read by the codec where it can (else through the
+ * input scratch buffer), and replies are decompressed into a buffer sized
+ * from the length header of the message.
+ *
+ * Scratch buffers grow to fit the largest message seen, but buffers grown
+ * beyond MAX_RETAINED_BYTES are dropped after use so a single huge bulk
+ * message does not pin its buffers to the thread forever.
+ *
+ * Given a BufferArena, large messages stay off heap instead: the UTF-8
+ * encoding, the compressed and the received body and the decompressed
+ * result are held in leased direct buffers, returned as soon as the
+ * message is done with. Only the String a caller sends or gets back is on
+ * the heap. Codecs which do not know their maxCompressedLength (lz) work in
+ * the scratch arrays as before.
+ */
+public class CompressionContext implements AutoCloseable {
+
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_RETAINED_BYTES   = 4 * 1024 * 1024;
+
+    /// most a body decompresses to per byte: deflate's limit, the other
+    /// codecs expand less
+    private static final int MAX_EXPANSION        = 1032;
+
+    /// idle contexts kept for virtual threads; more than one per carrier
+    /// is only needed for the blocks of a ParallelCodec
+    private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadLocal<CompressionContext> contexts =
+        ThreadLocal.withInitial(() -> new CompressionContext(false));
+
+    /// a second context per thread for the blocks of a ParallelCodec, so a
+    /// block worked on by the thread framing a message leaves that
+    /// message's scratch buffers alone
+    private static final ThreadLocal<CompressionContext> blockContexts =
+        ThreadLocal.withInitial(() -> new CompressionContext(false));
+
+    /// contexts lent to virtual threads, most recently returned first
+    private static final ConcurrentLinkedDeque<CompressionContext> pool =
+        new ConcurrentLinkedDeque<CompressionContext>();
+    private static final AtomicInteger idle = new AtomicInteger();
+
+    private final boolean        pooled;
+    private final Deflater       deflater;
+    private final Inflater       inflater;
+    private final CharsetEncoder encoder;
+    private final CharsetDecoder decoder;
+    private final CharBuffer     chars;
+    private byte[]               input;
+    private byte[]               output;
+    private int[]                hashTable;
+
+    /**
+     * Acquire
+     *
+     * @returns the calling thread's context, or one lent from the pool on a
+     *          virtual thread; to be closed when done with
+     */
+    public static CompressionContext acquire() {
+        return TaskExecutors.isVirtual() ? borrow() : contexts.get();
+    }
+
+    /**
+     * Acquire For Block
+     *
+     * @returns as acquire, the context for blocks, see ParallelCodec
+     */
+    static CompressionContext acquireForBlock() {
+        return TaskExecutors.isVirtual() ? borrow() : blockContexts.get();
+    }
+
+    /**
+     * Borrow
+     *
+     * @returns an idle context from the pool, a new one if there is none
+     */
+    private static CompressionContext borrow() {
+        CompressionContext context = pool.pollFirst();
+        if (context == null) {
+            return new CompressionContext(true);
+        }
+        idle.decrementAndGet();
+        return context;
+    }
+
+    /**
+     * Constructor
+     *
+     * Creates the (native) deflater and inflater once for the thread, or
+     * for the pool.
+     *
+     * @params  true if lent from the pool rather than held by a thread
+     */
+    CompressionContext(boolean pooled) {
+        this.pooled = pooled;
+        deflater = new Deflater();
+        inflater = new Inflater();
+        encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars = CharBuffer.allocate(8192);
+        input = new byte[INITIAL_BUFFER_BYTES];
+        output = new byte[INITIAL_BUFFER_BYTES];
+    }
+
+    /**
+     * Compress
+     *
+     * - Encode the message as UTF-8 into the input scratch buffer.
+     * - Compress it with the codec into the output scratch buffer.
+     * - Write the compressed bytes into the bytes message and name the codec
+     *   in its header.
+     *
+     * @params  message to compress
+     * @params  codec to compress with
+     * @params  bytes message receiving the compressed body
+     * @returns compressed size
+     */
+    public int compress(String message, CompressionCodec codec, BytesMessage bytes) {
+        try {
+            int length = encode(message);
+            int count = codec.compress(this, input, length);
+            bytes.writeBytes(output, 0, count);
+            bytes.setStringProperty(Codecs.HEADER, codec.name());
+            bytes.setStringProperty(Codecs.LENGTH_HEADER, Integer.toString(length));
+            return count;
+        }
+        finally {
+            trim();
+        }
+    }
+
+    /**
+     * Compress
+     *
+     * As above, off heap: the message is encoded into a leased buffer and
+     * compressed into another, see BufferArena.
+     *
+     * @params  message to compress
+     * @params  codec to compress with
+     * @params  bytes message receiving the compressed body
+     * @params  arena to lease buffers from, null to use the scratch buffers
+     * @returns compressed size
+     */
+    public int compress(String message, CompressionCodec codec, BytesMessage bytes,
+                        BufferArena arena) {
+        if (arena == null) {
+            return compress(message, codec, bytes);
+        }
+        try (BufferArena.Lease encoded = encode(message, arena)) {
+            return compress(encoded.buffer(), codec, bytes, arena);
+        }
+    }
+
+    /**
+     * Compress
+     *
+     * As above, for a message which already is bytes.
+     *
+     * @params  message to compress, from position to limit; consumed
+     * @params  codec to compress with
+     * @params  bytes message receiving the compressed body
+     * @returns compressed size
+     */
+    public int compress(ByteBuffer message, CompressionCodec codec, BytesMessage bytes) {
+        try {
+            int length = message.remaining();
+            int count = codec.compress(this, message);
+            bytes.writeBytes(output, 0, count);
+            bytes.setStringProperty(Codecs.HEADER, codec.name());
+            bytes.setStringProperty(Codecs.LENGTH_HEADER, Integer.toString(length));
+            return count;
+        }
+        finally {
+            trim();
+        }
+    }
+
+    /**
+     * Compress
+     *
+     * As above, off heap: the message is compressed into a leased buffer of
+     * the codec's maxCompressedLength, see BufferArena.
+     *
+     * @params  message to compress, from position to limit; consumed
+     * @params  codec to compress with
+     * @params  bytes message receiving the compressed body
+     * @params  arena to lease buffers from, null to use the scratch buffers
+     * @returns compressed size
+     */
+    public int compress(ByteBuffer message, CompressionCodec codec, BytesMessage bytes,
+                        BufferArena arena) {
+        int length = message.remaining();
+        int bound = codec.maxCompressedLength(length);
+        if (arena == null || bound < 0) {
+            return compress(message, codec, bytes);
+        }
+        try (BufferArena.Lease compressed = arena.allocate(bound)) {
+            ByteBuffer target = compressed.buffer();
+            int count = codec.compress(this, message, target);
+            target.flip();
+            bytes.writeBytes(target);
+            bytes.setStringProperty(Codecs.HEADER, codec.name());
+            bytes.setStringProperty(Codecs.LENGTH_HEADER, Integer.toString(length));
+            return count;
+        }
+    }
+
+    /**
+     * Decompress
+     *
+     * - Read the message body into the input scratch buffer.
+     * - Decompress it with the codec into the output scratch buffer.
+     * - Decode the result as UTF-8.
+     *
+     * @params  compressed bytes message
+     * @params  codec the message was compressed with
+     * @returns uncompressed message
+     * @throws  DataFormatException
+     */
+    public String decompress(BytesMessage bytes, CompressionCodec codec)
+        throws DataFormatException {
+        try {
+            bytes.reset();
+            int length = bytes.getBodyLength();
+            if (input.length < length) {
+                input = new byte[length];
+            }
+            length = Math.max(bytes.readBytes(input, length), 0);
+            int count = codec.decompress(this, input, length);
+            return new String(output, 0, count, StandardCharsets.UTF_8);
+        }
+        finally {
+            trim();
+        }
+    }
+
+    /**
+     * Decompress
+     *
+     * As above, off heap: the body is read into a leased buffer and
+     * decompressed into another of the size the message gives, which is
+     * then decoded. Messages which do not give their size (sent by an
+     * older client) use the scratch buffers.
+     *
+     * @params  compressed bytes message
+     * @params  codec the message was compressed with
+     * @params  arena to lease buffers from, null to use the scratch buffers
+     * @returns uncompressed message
+     * @throws  DataFormatException
+     */
+    public String decompress(BytesMessage bytes, CompressionCodec codec, BufferArena arena)
+        throws DataFormatException {
+
+        int size = announcedLength(bytes);
+        if (arena == null || size < 0) {
+            return decompress(bytes, codec);
+        }
+        try (BufferArena.Lease body = read(bytes, arena);
+             BufferArena.Lease result = arena.allocate(size)) {
+            ByteBuffer target = result.buffer();
+            codec.decompress(this, body.buffer(), target);
+            target.flip();
+            return decode(target);
+        }
+    }
+
+    /**
+     * Decompress
+     *
+     * - Read the message body into the input scratch buffer.
+     * - If the message gives its uncompressed size, decompress it with the
+     *   codec straight into a buffer of that size.
+     * - Otherwise (sent by an older client) decompress into the output
+     *   scratch buffer and copy the result into a buffer of its size.
+     *
+     * @params  compressed bytes message
+     * @params  codec the message was compressed with
+     * @params  allocates the buffer for a given size, e.g.
+     *          ByteBuffer::allocateDirect
+     * @returns the uncompressed message, flipped for reading
+     * @throws  DataFormatException
+     */
+    public ByteBuffer decompress(BytesMessage bytes, CompressionCodec codec,
+                                 IntFunction<ByteBuffer> allocator) throws DataFormatException {
+        return decompress(bytes, codec, allocator, null);
+    }
+
+    /**
+     * Decompress
+     *
+     * As above; given an arena, a body of known uncompressed size is read
+     * into a leased buffer rather than the input scratch buffer.
+     *
+     * @params  compressed bytes message
+     * @params  codec the message was compressed with
+     * @params  allocates the buffer for a given size
+     * @params  arena to lease buffers from, null to use the scratch buffers
+     * @returns the uncompressed message, flipped for reading
+     * @throws  DataFormatException
+     */
+    public ByteBuffer decompress(BytesMessage bytes, CompressionCodec codec,
+                                 IntFunction<ByteBuffer> allocator, BufferArena arena)
+        throws DataFormatException {
+
+        int size = announcedLength(bytes);
+        if (arena != null && size >= 0) {
+            try (BufferArena.Lease body = read(bytes, arena)) {
+                ByteBuffer target = allocator.apply(size);
+                codec.decompress(this, body.buffer(), target);
+                target.flip();
+                return target;
+            }
+        }
+        try {
+            bytes.reset();
+            int length = bytes.getBodyLength();
+            if (input.length < length) {
+                input = new byte[length];
+            }
+            length = Math.max(bytes.readBytes(input, length), 0);
+            ByteBuffer target;
+            if (size >= 0) {
+                target = allocator.apply(size);
+                codec.decompress(this, ByteBuffer.wrap(input, 0, length), target);
+            }
+            else {
+                int count = codec.decompress(this, input, length);
+                target = allocator.apply(count);
+                target.put(output, 0, count);
+            }
+            target.flip();
+            return target;
+        }
+        finally {
+            trim();
+        }
+    }
+
+    /**
+     * Read
+     *
+     * @params  bytes message
+     * @params  arena to lease the buffer from
+     * @returns lease of its body, flipped for reading
+     */
+    private static BufferArena.Lease read(BytesMessage bytes, BufferArena arena) {
+        bytes.reset();
+        BufferArena.Lease body = arena.allocate(bytes.getBodyLength());
+        bytes.readBytes(body.buffer());
+        body.buffer().flip();
+        return body;
+    }
+
+    /**
+     * Announced Length
+     *
+     * The header is taken from the sender and buffers are sized from it, so
+     * it is checked before it is believed.
+     *
+     * @params  bytes message
+     * @returns uncompressed size from its header, -1 if missing or invalid
+     * @throws  DataFormatException if the size is more than the body can
+     *          decompress to, or than ParallelCodec.MAX_LENGTH (larger
+     *          messages are streamed)
+     */
+    static int announcedLength(BytesMessage bytes) throws DataFormatException {
+        String value = bytes.getStringProperty(Codecs.LENGTH_HEADER);
+        if (value == null) {
+            return -1;
+        }
+        int size;
+        try {
+            size = Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException nfe) {
+            return -1;
+        }
+        if (size > ParallelCodec.MAX_LENGTH || size > (long) bytes.getBodyLength() * MAX_EXPANSION) {
+            throw new DataFormatException("Implausible uncompressed length " + size
+                + " for a body of " + bytes.getBodyLength() + " bytes");
+        }
+        return size;
+    }
+
+    /**
+     * Array
+     *
+     * For codecs working on arrays, see CompressionCodec.
+     *
+     * @params  bytes from position to limit; consumed
+     * @returns array holding them from index zero: the buffer's own if it is
+     *          a heap buffer starting there, else the input scratch buffer
+     */
+    byte[] array(ByteBuffer source) {
+        int length = source.remaining();
+        if (source.hasArray() && source.arrayOffset() + source.position() == 0) {
+            source.position(source.limit());
+            return source.array();
+        }
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        source.get(input, 0, length);
+        return input;
+    }
+
+    /**
+     * Output
+     *
+     * @params  minimum capacity needed, contents are not preserved
+     * @returns the output scratch buffer
+     */
+    byte[] output(int capacity) {
+        if (output.length < capacity) {
+            output = new byte[capacity];
+        }
+        return output;
+    }
+
+    /**
+     * Grow Output
+     *
+     * @params  number of bytes in use to carry over
+     * @returns the output scratch buffer, twice the size
+     */
+    byte[] growOutput(int used) {
+        output = grow(output, used);
+        return output;
+    }
+
+    /**
+     * Hash Table
+     *
+     * @params  number of hash bits
+     * @returns scratch table of 2^bits entries, contents undefined
+     */
+    int[] hashTable(int bits) {
+        if (hashTable == null || hashTable.length != 1 << bits) {
+            hashTable = new int[1 << bits];
+        }
+        return hashTable;
+    }
+
+    Deflater deflater() {
+        return deflater;
+    }
+
+    Inflater inflater() {
+        return inflater;
+    }
+
+    /**
+     * Encode
+     *
+     * UTF-8 encodes the message into the input scratch buffer, retrying with
+     * a larger buffer on overflow.
+     *
+     * @params  message to encode
+     * @returns number of encoded bytes
+     */
+    private int encode(String message) {
+        if (input.length < message.length()) {
+            input = new byte[message.length() + message.length() / 8];
+        }
+        CharBuffer chars = CharBuffer.wrap(message);
+        for (;;) {
+            ByteBuffer out = ByteBuffer.wrap(input);
+            encoder.reset();
+            CoderResult result = encoder.encode(chars, out, true);
+            if (! result.isOverflow()) {
+                result = encoder.flush(out);
+            }
+            if (! result.isOverflow()) {
+                return out.position();
+            }
+            chars.rewind();
+            input = new byte[input.length * 2];
+        }
+    }
+
+    /**
+     * Encode
+     *
+     * As above, into a leased buffer, retrying with a larger one on
+     * overflow.
+     *
+     * @params  message to encode
+     * @params  arena to lease the buffer from
+     * @returns lease of the encoded bytes, flipped for reading
+     */
+    private BufferArena.Lease encode(String message, BufferArena arena) {
+        CharBuffer chars = CharBuffer.wrap(message);
+        long size = message.length() + message.length() / 8;
+        for (;;) {
+            BufferArena.Lease lease = arena.allocate((int) Math.min(size, Integer.MAX_VALUE - 8));
+            ByteBuffer out = lease.buffer();
+            /// the slab may be larger than asked for, use all of it
+            out.limit(out.capacity());
+            encoder.reset();
+            CoderResult result = encoder.encode(chars, out, true);
+            if (! result.isOverflow()) {
+                result = encoder.flush(out);
+            }
+            if (! result.isOverflow()) {
+                out.flip();
+                return lease;
+            }
+            lease.close();
+            chars.rewind();
+            size = Math.max(size, out.capacity()) * 2;
+        }
+    }
+
+    /**
+     * Decode
+     *
+     * Decodes UTF-8 a chunk at a time, so the bytes are never copied onto
+     * the heap as a whole.
+     *
+     * @params  bytes to decode, from position to limit; consumed
+     * @returns decoded string
+     */
+    private String decode(ByteBuffer bytes) {
+        StringBuilder sb = new StringBuilder(bytes.remaining());
+        decoder.reset();
+        for (;;) {
+            chars.clear();
+            CoderResult result = decoder.decode(bytes, chars, true);
+            if (! result.isOverflow()) {
+                result = decoder.flush(chars);
+            }
+            chars.flip();
+            sb.append(chars);
+            if (! result.isOverflow()) {
+                return sb.toString();
+            }
+        }
+    }
+
+    /**
+     * Grow
+     *
+     * @params  buffer to grow
+     * @params  number of bytes in use to carry over
+     * @returns buffer twice the size holding the same bytes
+     */
+    private static byte[] grow(byte[] buffer, int used) {
+        byte[] grown = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, grown, 0, used);
+        return grown;
+    }
+
+    /**
+     * Close
+     *
+     * Gives a pooled context back, or ends its deflater and inflater if the
+     * pool has enough idle ones. A thread's own context stays with it.
+     */
+    public void close() {
+        trim();
+        if (! pooled) {
+            return;
+        }
+        if (idle.incrementAndGet() <= MAX_POOLED) {
+            pool.offerFirst(this);
+        }
+        else {
+            idle.decrementAndGet();
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Trim
+     *
+     * Lets go of scratch buffers grown beyond what we want to keep around.
+     */
+    void trim() {
+        if (input.length > MAX_RETAINED_BYTES) {
+            input = new byte[INITIAL_BUFFER_BYTES];
+        }
+        if (output.length > MAX_RETAINED_BYTES) {
+            output = new byte[INITIAL_BUFFER_BYTES];
+        }
+    }
+}
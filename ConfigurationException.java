@@ -0,0 +1,24 @@
+import java.util.List;
+
+
+/**
+ * Class:  ConfigurationException
+ *
+ * Thrown when mq.properties does not validate. Lists every problem found,
+ * not just the first, so a broken file can be fixed in one go.
+ */
+public class ConfigurationException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> problems;
+
+    public ConfigurationException(List<String> problems) {
+        super("Invalid MQ configuration: " + String.join("; ", problems));
+        this.problems = List.copyOf(problems);
+    }
+
+    public List<String> getProblems() {
+        return problems;
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.Properties;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchEvent;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchService;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.ClosedWatchServiceException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Class:  ConfigurationWatcher
+ *
+ * Watches mq.properties and hands every valid change to a listener, see
+ * ConnectionPool.reconfigure:
+ * - The file's directory is watched with a WatchService on a daemon thread;
+ *   events for other files are ignored.
+ * - Editors tend to write a file in several steps, so a change is only read
+ *   once the file has been quiet for SETTLE_MILLIS.
+ * - A file which reads the same as the last one loaded is ignored.
+ * - A file which does not validate is logged with all its problems and
+ *   otherwise ignored: the pools keep running on the last good
+ *   configuration.
+ */
+public class ConfigurationWatcher implements Runnable {
+
+    /// quiet time after the last event before the file is read
+    private static final long SETTLE_MILLIS = 500;
+
+    private final Path                         location;
+    private final Consumer<PoolConfiguration>  listener;
+    private final Logger                       logger;
+    private WatchService                       service;
+    private Thread                             thread;
+    private Properties                         current;
+    private volatile boolean                   running;
+
+    /**
+     * Constructor
+     *
+     * @params  configuration file
+     * @params  called on the watcher thread with each valid change
+     */
+    public ConfigurationWatcher(Path location, Consumer<PoolConfiguration> listener) {
+        this.location = location.toAbsolutePath();
+        this.listener = listener;
+        this.logger = LoggerAdapter.getInstance().getLogger();
+    }
+
+    /**
+     * Start
+     *
+     * Registers the file's directory and starts the watcher thread. Failing
+     * to watch is logged; the pools then keep their configuration until
+     * restarted.
+     */
+    public void start() {
+        try {
+            current = read();
+            service = FileSystems.getDefault().newWatchService();
+            location.getParent().register(service,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        }
+        catch (IOException ex) {
+            String s = "Failed to watch configuration: " + location;
+            Utilities.logException(ex, s);
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "ConfigurationWatcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching configuration: " + location);
+    }
+
+    /**
+     * Run
+     *
+     * Waits for events on the file, lets them settle and reloads it.
+     */
+    public void run() {
+        try {
+            while (running) {
+                WatchKey key = service.take();
+                boolean changed = concerns(key);
+                /// drain the burst of events a single save makes
+                while (running) {
+                    key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    changed |= concerns(key);
+                }
+                if (changed && running) {
+                    reload();
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ex) {
+            /// closed
+        }
+    }
+
+    /**
+     * Concerns
+     *
+     * @params  signalled key, reset here
+     * @returns true if any of its events is about the file
+     */
+    private boolean concerns(WatchKey key) {
+        boolean concerns = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (location.getFileName().equals(event.context())) {
+                concerns = true;
+            }
+        }
+        key.reset();
+        return concerns;
+    }
+
+    /**
+     * Reload
+     *
+     * Reads, validates and hands on the file if it changed.
+     */
+    private void reload() {
+        try {
+            Properties props = read();
+            if (props.equals(current)) {
+                return;
+            }
+            PoolConfiguration config = PoolConfiguration.parse(props);
+            current = props;
+            logger.info("Configuration changed, applying: " + location);
+            listener.accept(config);
+        }
+        catch (ConfigurationException ex) {
+            logger.warning("Configuration change ignored, " + ex.getMessage());
+        }
+        catch (Exception ex) {
+            String s = "Failed to apply configuration: " + location;
+            Utilities.logException(ex, s);
+        }
+    }
+
+    /**
+     * @returns contents of the file
+     * @throws  IOException if it cannot be read
+     */
+    private Properties read() throws IOException {
+        Properties props = new Properties();
+        try (InputStream stream = Files.newInputStream(location)) {
+            props.load(stream);
+        }
+        return props;
+    }
+
+    /**
+     * Close
+     *
+     * Stops watching.
+     */
+    public void close() {
+        running = false;
+        try {
+            if (service != null) {
+                service.close();
+            }
+        }
+        catch (IOException ex) {
+            String s = "Failure to stop watching configuration: " + location;
+            Utilities.logException(ex, s);
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+}
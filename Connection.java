@@ -1,9 +1,17 @@
 import java.sql.Timestamp;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
 import java.util.logging.Logger;
-import java.io.ByteArrayOutputStream;
 import java.util.zip.DataFormatException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -11,27 +19,62 @@ import java.util.zip.DataFormatException;
  *
  * Rudimentary connection class with the ability to connect to IBM JMS message
  * queues. Has the ability to send and receive messages. Messages can be plain
- * text or compressed.
+ * text or compressed. Messages which already are bytes can be sent from and
+ * received into ByteBuffers (heap or direct), skipping the conversion to and
+ * from String. Messages too large to hold in memory are streamed as a
+ * sequence of chunk messages, see openOutputStream and openInputStream.
  *
  **/
 public class Connection implements Comparable<Connection> {
 
+    /// turns a received message into what the caller gets back
+    private interface Decoder<T> {
+        T decode(Message message) throws JMSException, DataFormatException;
+    }
+
     Logger                   logger;
     MQQueueConnection        connection;
     MQQueueSession           session;
     MQQueueConnectionFactory factory;
     ConnectionProperties     props;
     Timestamp                timestamp;
+    AtomicInteger            state;
+
+    /// when the connection was made and last found alive by a probe, in
+    /// millis, see validate
+    long                     createdAt;
+    volatile long            validatedAt;
+
+    /// failed without being disposed of, probed before its next use
+    volatile boolean         suspect;
+
+    /// generation of its pool's endpoint it was made for, see
+    /// ConnectionPool.reconfigure
+    int                      generation;
+
+    /// resolved once per session, see invalidate
+    MQQueue                  sendDestination;
+    MQQueue                  receiveDestination;
+    MQQueueSender            sender;
+
+    /// sender on the hedge queue, created on the first hedged send
+    MQQueue                  hedgeDestination;
+    MQQueueSender            hedgeSender;
+
+    /// transacted session for batches, created on first transacted batch
+    MQQueueSession           batchSession;
+    MQQueueSender            batchSender;
 
     /**
      * Constructor
      *
-     * Sets member connection properties.
+     * Sets member connection properties and the pool state.
      *
      * @params  connection properties
      */
     public Connection(ConnectionProperties props) {
         this.props = props;
+        this.state = new AtomicInteger(ConnectionBag.NOT_IN_USE);
     }
 
     /**
@@ -42,8 +85,10 @@ public class Connection implements Comparable<Connection> {
      * - Establishes and starts mq connection.
      * - Establishes mq session.
      * - Sets logger from singleton.
+     *
+     * @throws  JMSException if the queue manager cannot be reached
      */
-    public void init() {
+    public void init() throws JMSException {
 
         factory = new MQQueueConnectionFactory();
         factory.setQueueManager(props.manager);
@@ -63,98 +108,318 @@ public class Connection implements Comparable<Connection> {
         connection.start();
         session = (MQQueueSession) connection.createQueueSession(false, "dummy");
         logger = LoggerAdapter.getInstance().getLogger();
+        createdAt = System.currentTimeMillis();
+        validatedAt = createdAt;
+    }
+
+    /**
+     * Validate
+     *
+     * Probes the connection with a round trip to the queue manager: a
+     * non-blocking receive on the receive queue for a correlation id no
+     * message carries, so nothing is consumed. A failure invalidates the
+     * cached sender and destinations.
+     *
+     * @returns true if the queue manager answered
+     */
+    public boolean validate() {
+        if (session == null) {
+            return false;
+        }
+        MQQueueReceiver probe = null;
+        try {
+            String corrId = "JMSCorrelationID='probe-" + UUID.randomUUID() + "'";
+            probe = session.createReceiver(receiveDestination(), corrId);
+            probe.receiveNoWait();
+            validatedAt = System.currentTimeMillis();
+            suspect = false;
+            return true;
+        }
+        catch (Exception ex) {
+            String s = "Connection failed validation. Queue type: " + props.type;
+            Utilities.logException(ex, s);
+            invalidate();
+            return false;
+        }
+        finally {
+            if (probe != null) {
+                try {
+                    probe.close();
+                }
+                catch (Exception ex) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Suspect
+     *
+     * Marks the connection as possibly broken after a failure which did not
+     * lead to disposing of it (no retries left, or the circuit breaker
+     * opened); it is then probed before it is handed out again.
+     */
+    void suspect() {
+        invalidate();
+        suspect = true;
+    }
+
+    /**
+     * Last Active
+     *
+     * @returns when the connection was last used or found alive, in millis
+     */
+    long lastActive() {
+        long used = timestamp == null ? 0L : timestamp.getTime();
+        return Math.max(used, validatedAt);
+    }
+
+    /**
+     * Is Expired
+     *
+     * @params  current time in millis
+     * @returns true if the connection outlived the pool's max lifetime
+     */
+    boolean isExpired(long now) {
+        return props.maxLifetime > 0 && now - createdAt >= props.maxLifetime;
     }
 
     /**
      * Compress
      *
-     * - Establish the deflater.
-     * - Deflate message into an output stream.
-     *   [could this be an infinite loop].
-     * - And serialize the output stream into a bytes message.
+     * - Compress the message as UTF-8 with the pool's codec using this
+     *   thread's pooled buffers, see CompressionContext; in parallel blocks
+     *   if it is not below the pool's parallel threshold.
+     * - The compressed bytes go straight into the bytes message, which names
+     *   the codec in its header.
      * - Logs elapsed time for the compression process.
      *
+     * @params  session creating the message
      * @params  message to compress
      * @returns compressed bytes message
      */
-    private BytesMessage compress(String message) {
+    private BytesMessage compress(MQQueueSession target, String message) {
 
-        /// establish the deflater
         String originalSize = Integer.toString(message.length());
         String s = "Compress. Message size: " + originalSize;
         TimeTracker tracker = new TimeTracker();
         tracker.start(s);
-        BytesMessage bytes = session.createBytesMessage();
-        byte[] compressed = new byte[50000];
-        Deflater deflater = new Deflater();
-        deflater.setInput(message.getBytes());
-        deflater.finish();
-
-        /// begin the deflation sequence into an output stream
-        int count = 0;
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        while (! deflater.finished()) {
-            count = deflater.deflate(compressed);
-            stream.write(compressed, 0, count);
-        }
-        deflater.end();
-        String compressedSize = Integer.toString(compressed.length);
-
-        /// serialize stream into the bytes message
-        bytes.writeBytes(stream.toByteArray());
-        s = "Compress. Compressed size: " + compressedSize;
+        BytesMessage bytes = target.createBytesMessage();
+        BufferArena arena = arena(message.length());
+        CompressionCodec codec = codec(message.length());
+        int compressedSize;
+        try (CompressionContext context = CompressionContext.acquire()) {
+            compressedSize = context.compress(message, codec, bytes, arena);
+        }
+        s = "Compress. Compressed size: " + Integer.toString(compressedSize);
+        s += ". Codec: " + codec;
+        tracker.mark(s);
+        return bytes;
+    }
+
+    /**
+     * Compress
+     *
+     * As above, for a message which already is bytes.
+     *
+     * @params  session creating the message
+     * @params  message to compress, from position to limit; consumed
+     * @returns compressed bytes message
+     */
+    private BytesMessage compress(MQQueueSession target, ByteBuffer message) {
+
+        String originalSize = Integer.toString(message.remaining());
+        String s = "Compress. Message size: " + originalSize;
+        TimeTracker tracker = new TimeTracker();
+        tracker.start(s);
+        BytesMessage bytes = target.createBytesMessage();
+        BufferArena arena = arena(message.remaining());
+        CompressionCodec codec = codec(message.remaining());
+        int compressedSize;
+        try (CompressionContext context = CompressionContext.acquire()) {
+            compressedSize = context.compress(message, codec, bytes, arena);
+        }
+        s = "Compress. Compressed size: " + Integer.toString(compressedSize);
+        s += ". Codec: " + codec;
         tracker.mark(s);
         return bytes;
     }
 
+    /**
+     * Codec
+     *
+     * @params  size of a message in bytes (or chars)
+     * @returns the pool's codec, compressing in parallel blocks if the
+     *          message is not below the pool's parallel threshold
+     */
+    private CompressionCodec codec(long size) {
+        int threshold = props.parallelThreshold;
+        if (threshold > 0 && size >= threshold && ! (props.codec instanceof ParallelCodec)) {
+            int blockSize = props.parallelBlockSize > 0 ? props.parallelBlockSize : ParallelCodec.DEFAULT_BLOCK_SIZE;
+            return new ParallelCodec(props.codec, blockSize);
+        }
+        return props.codec;
+    }
+
+    /**
+     * Arena
+     *
+     * @params  size of a message in bytes (or chars)
+     * @returns the shared buffer arena if the pool keeps messages this large
+     *          off heap, else null
+     */
+    private BufferArena arena(long size) {
+        int threshold = props.offHeapThreshold;
+        return threshold > 0 && size >= threshold ? BufferArena.shared() : null;
+    }
+
+    /**
+     * Arena
+     *
+     * @params  received bytes message
+     * @returns the shared buffer arena if the pool keeps a message this
+     *          large (compressed or not) off heap, else null
+     * @throws  DataFormatException if its announced length is implausible
+     */
+    private BufferArena arena(BytesMessage bytes) throws DataFormatException {
+        return arena(Math.max(bytes.getBodyLength(), CompressionContext.announcedLength(bytes)));
+    }
+
+    /**
+     * Store
+     *
+     * Writes the message into a bytes message as it is, naming the stored
+     * codec so the receiver does not take it for deflate.
+     *
+     * @params  session creating the message
+     * @params  message to store, from position to limit; consumed
+     * @returns bytes message
+     */
+    private BytesMessage store(MQQueueSession target, ByteBuffer message) {
+        BytesMessage bytes = target.createBytesMessage();
+        bytes.setStringProperty(Codecs.LENGTH_HEADER, Integer.toString(message.remaining()));
+        bytes.writeBytes(message);
+        bytes.setStringProperty(Codecs.HEADER, StoredCodec.NAME);
+        return bytes;
+    }
+
+    /**
+     * Should Compress
+     *
+     * @params  message about to be sent
+     * @returns true if the pool compresses and the message is large enough
+     *          for compression to pay off
+     */
+    boolean shouldCompress(String message) {
+        return props.codec != null && message.length() >= props.compressThreshold;
+    }
+
+    /**
+     * Request Reply Codec
+     *
+     * Asks the replier to compress its reply with the configured codec.
+     *
+     * @params  message about to be sent
+     */
+    void requestReplyCodec(Message message) {
+        if (props.replyCodec != null) {
+            message.setStringProperty(Codecs.REPLY_HEADER, props.replyCodec.name());
+        }
+    }
+
     /**
      * Send
      *
-     * - Setup the temporary queue and queue sender.
-     * - Compress message if necessary.
-     * - Otherwise use a plain text message.
-     * - Send the message using the sender.
-     * - Obtain the correlation id from the bytes message.
+     * - Obtain the cached queue sender.
+     * - Dispatch the message (see dispatch).
+     * - Obtain the correlation id from the sent message.
      *
      * @params  message to be sent
      * @returns correlation id
      * @throws  JMSException (any others?)
      */
     public String send(String message) throws JMSException {
+        return send(message, false);
+    }
 
-        /// correlation id is returned, sender must be closed and exception
-        /// thrown if necessary - from the finally block
-        String correlationId = "";
-        MQQueueSender sender = null;
-        JMSException  out = null;
-        try {
-
-            /// create the temporary queue and sender
-            MQQueue queue = session.createQueue(props.sendQueue);
-            queue.setTargetClient("dummy");
-            sender = session.createSender(queue);
+    /**
+     * Send Hedge
+     *
+     * Sends a duplicate of a request which is slow to be answered, to the
+     * pool's hedge queue (by default the send queue itself). The duplicate
+     * gets its own correlation id; the reply comes back on the usual
+     * receive queue.
+     *
+     * @params  message to be sent
+     * @returns correlation id of the duplicate
+     * @throws  JMSException
+     */
+    public String sendHedge(String message) throws JMSException {
+        return send(message, true);
+    }
 
-            if (props.compress) {
+    /**
+     * Send
+     *
+     * @params  message to be sent
+     * @params  true to send through the hedge sender
+     * @returns correlation id
+     * @throws  JMSException
+     */
+    private String send(String message, boolean hedge) throws JMSException {
+        return send(message, hedge, null);
+    }
 
-                /// a compressed send
-                BytesMessage bytes = compress(message);
-                sender.send(bytes);
+    /**
+     * Send
+     *
+     * @params  message to be sent
+     * @params  true to send through the hedge sender
+     * @params  correlation id the message carries, null for none
+     * @returns correlation id: the one given, else the message id
+     * @throws  JMSException
+     */
+    private String send(String message, boolean hedge, String correlationId) throws JMSException {
 
-                /// to correlate the response message
-                correlationId = bytes.getJMSMessageID();
-            }
-            else {
+        /// the cached sender on the send (or hedge) queue, resolved within
+        /// the send so a failure to create it invalidates the connection
+        return send(() -> dispatch(session, hedge ? hedgeSender() : sender(), message, correlationId),
+                    message);
+    }
 
-                /// an uncompressed send, use a text message
-                TextMessage textMessage = session.createTextMessage();
-                textMessage.setText(message);
+    /**
+     * Send
+     *
+     * As send, for a message which already is bytes, e.g. serialized by the
+     * caller. It goes out as a bytes message: compressed with the pool's
+     * codec if it is not below the compression threshold, as it is
+     * otherwise.
+     *
+     * @params  message to be sent, from position to limit; consumed
+     * @returns correlation id
+     * @throws  JMSException
+     */
+    public String send(ByteBuffer message) throws JMSException {
+        int size = message.remaining();
+        return send(() -> dispatch(session, sender(), message), size + " bytes");
+    }
 
-                /// dispatch to destination
-                sender.send(textMessage);
+    /**
+     * Send
+     *
+     * @params  sends the message through the cached handles
+     * @params  what is sent, for the log
+     * @returns correlation id
+     * @throws  JMSException
+     */
+    private String send(Callable<String> dispatch, String message) throws JMSException {
 
-                /// to correlate the response message
-                correlationId = textMessage.getJMSMessageID();
-            }
+        /// correlation id is returned, exception thrown if necessary - from
+        /// the finally block
+        String correlationId = "";
+        JMSException  out = null;
+        try {
+            correlationId = dispatch.call();
         }
         catch (Exception ex) {
 
@@ -164,23 +429,14 @@ public class Connection implements Comparable<Connection> {
             if (ex instanceof JMSException) {
                 out = (JMSException) ex;
             }
+            /// the cached handles may be broken, resolve them again next time
+            invalidate();
         }
         finally {
 
             /// there has been some activity on this connection
             timestamp = new Timestamp(System.currentTimeMillis());
 
-            /// if we have a sender make sure to close it
-            if (sender != null) {
-                try {
-                    sender.close();
-                }
-                catch (Exception ex) {
-                    String s = "Failure to close sender. Message: " + message;
-                    s += ". Queue type: " + props.type;
-                    Utilities.logException(ex, s);
-                }
-            }
             /// rethrow the exception if there was one
             if (out != null) {
                 throw out;
@@ -191,100 +447,546 @@ public class Connection implements Comparable<Connection> {
     }
 
     /**
-     * Uncompress
+     * Send Batch
      *
-     * - Read the message into a bytes [].
-     * - Establish the inflater.
-     * - Establish the output stream and write buffer.
-     * - Enter the inflation loop [we exit when count is zero?]
-     * - Convert the output stream to the returned string.
+     * Sends the messages in order through one sender, sharing this thread's
+     * compression context. If the pool uses transacted batches the sends go
+     * through a separate transacted session and are committed together (and
+     * rolled back together on failure).
      *
-     * @params  message to uncompress
-     * @returns uncompressed message
-     * @throws  DataFormatException
+     * @params  messages to be sent
+     * @returns correlation ids, in the order of the messages
+     * @throws  BatchSendException carrying the correlation ids of messages
+     *          that did go out (none for a transacted batch)
      */
-    private String uncompress(Message message) throws DataFormatException {
+    public List<String> sendBatch(List<String> messages) throws JMSException {
 
-        /// read the message into a plain bytes []
-        BytesMessage bytesMessage = (BytesMessage) message;
-        int length = bytesMessage.getBodyLength();
-        byte[] bytes = new byte[length];
-        int count = bytesMessage.readBytes(bytes);
+        List<String> correlationIds = new ArrayList<String>(messages.size());
+        BatchSendException out = null;
+        boolean transacted = props.transactedBatch;
+        try {
+            MQQueueSession target = transacted ? batchSession() : session;
+            MQQueueSender sender = transacted ? batchSender() : sender();
+            for (String message : messages) {
+                correlationIds.add(dispatch(target, sender, message));
+            }
+            if (transacted) {
+                target.commit();
+            }
+        }
+        catch (Exception ex) {
+            String s = "Failure to send batch. Sent " + correlationIds.size();
+            s += " of " + messages.size() + " messages. Queue type: " + props.type;
+            Utilities.logException(ex, s);
+            if (transacted) {
+                rollback();
+                correlationIds.clear();
+            }
+            JMSException cause = ex instanceof JMSException ? (JMSException) ex : null;
+            out = new BatchSendException(correlationIds, cause);
 
-        /// setup the inflater with the bytes []
-        Inflater inflater = new Inflater();
-        inflater.setInput(bytes);
+            /// the cached handles may be broken, resolve them again next time
+            invalidate();
+        }
+        finally {
 
-        /// setup the output stream and read buffer
-        ByteArrayOutputStream stream = new ByteArrayOutputStream(bytes.length);
-        byte[] buffer = new byte[1024];
-        logger.info("Decompression sequence starting");
+            /// there has been some activity on this connection
+            timestamp = new Timestamp(System.currentTimeMillis());
+        }
+        if (out != null) {
+            throw out;
+        }
+        return correlationIds;
+    }
+
+    /**
+     * Dispatch
+     *
+     * - Compress message if the pool compresses and the message is not
+     *   below the compression threshold.
+     * - Otherwise use a plain text message.
+     * - Ask for the configured reply codec, if any.
+     * - Send the message using the sender.
+     *
+     * @params  session creating the message
+     * @params  sender to send with
+     * @params  message to be sent
+     * @returns correlation id
+     */
+    private String dispatch(MQQueueSession target, MQQueueSender sender, String message)
+        throws Exception {
 
-        while (! inflater.finished()) {
-            count = inflater.inflate(buffer);
+        return dispatch(target, sender, message, null);
+    }
 
-            /// is it possible when everything is finished count is zero
-            /// but the inflater still is not finished ?
-            if (count == 0) {
-                break;
+    /**
+     * Dispatch
+     *
+     * As above, the message carrying the given correlation id.
+     *
+     * @params  session creating the message
+     * @params  sender to send with
+     * @params  message to be sent
+     * @params  correlation id the message carries, null for none
+     * @returns correlation id: the one given, else the message id
+     */
+    private String dispatch(MQQueueSession target, MQQueueSender sender, String message,
+                            String correlationId) throws Exception {
+
+        if (shouldCompress(message)) {
+
+            /// a compressed send
+            BytesMessage bytes = compress(target, message);
+            requestReplyCodec(bytes);
+            if (correlationId != null) {
+                bytes.setJMSCorrelationID(correlationId);
             }
-            stream.write(buffer, 0, count);
+            sender.send(bytes);
+
+            /// to correlate the response message
+            return correlationId != null ? correlationId : bytes.getJMSMessageID();
+        }
+        else {
+
+            /// an uncompressed send, use a text message
+            TextMessage textMessage = target.createTextMessage();
+            textMessage.setText(message);
+            requestReplyCodec(textMessage);
+            if (correlationId != null) {
+                textMessage.setJMSCorrelationID(correlationId);
+            }
+
+            /// dispatch to destination
+            sender.send(textMessage);
+
+            /// to correlate the response message
+            return correlationId != null ? correlationId : textMessage.getJMSMessageID();
+        }
+    }
+
+    /**
+     * Dispatch
+     *
+     * - Compress the message if the pool compresses and the message is not
+     *   below the compression threshold.
+     * - Otherwise store it as it is.
+     * - Ask for the configured reply codec, if any.
+     * - Send the bytes message using the sender.
+     *
+     * @params  session creating the message
+     * @params  sender to send with
+     * @params  message to be sent, from position to limit; consumed
+     * @returns correlation id
+     */
+    private String dispatch(MQQueueSession target, MQQueueSender sender, ByteBuffer message)
+        throws Exception {
+
+        BytesMessage bytes = encode(target, message);
+        requestReplyCodec(bytes);
+        sender.send(bytes);
+
+        /// to correlate the response message
+        return bytes.getJMSMessageID();
+    }
+
+    /**
+     * Encode
+     *
+     * @params  session creating the message
+     * @params  message to encode, from position to limit; consumed
+     * @returns bytes message, compressed with the pool's codec if the
+     *          message is not below the compression threshold, stored as it
+     *          is otherwise
+     */
+    BytesMessage encode(MQQueueSession target, ByteBuffer message) {
+        boolean compress = props.codec != null && message.remaining() >= props.compressThreshold;
+        return compress ? compress(target, message) : store(target, message);
+    }
+
+    /**
+     * Open Output Stream
+     *
+     * Starts a message which is written rather than passed in whole, and
+     * goes out as a sequence of chunk messages of the pool's chunk size,
+     * see ChunkedOutputStream. The connection is the stream's until it is
+     * closed.
+     *
+     * @returns stream to write the message to; its correlation id, known up
+     *          front, is that of the reply
+     */
+    public ChunkedOutputStream openOutputStream() {
+        return new ChunkedOutputStream(this, props.chunkSize);
+    }
+
+    /**
+     * Send Chunk
+     *
+     * Sends one chunk of a streamed message on the cached sender, handling
+     * failures as send does. Called on the stream's sending thread.
+     *
+     * @params  encoded chunk
+     * @params  what is sent, for the log
+     * @throws  JMSException if the chunk did not go out
+     */
+    void sendChunk(BytesMessage chunk, String what) throws JMSException {
+        String messageId = send(() -> {
+            sender().send(chunk);
+            return chunk.getJMSMessageID();
+        }, what);
+        if (messageId == null || messageId.isEmpty()) {
+            throw new JMSException("Failure to send " + what);
+        }
+    }
+
+    /**
+     * Sender
+     *
+     * Resolves the send queue and creates the sender on first use. Both live
+     * as long as the session, or until invalidated after a failure.
+     *
+     * @returns cached sender on the send queue
+     */
+    MQQueueSender sender() {
+        if (sender == null) {
+            if (sendDestination == null) {
+                sendDestination = session.createQueue(props.sendQueue);
+                sendDestination.setTargetClient("dummy");
+            }
+            sender = session.createSender(sendDestination);
+        }
+        return sender;
+    }
+
+    /**
+     * Hedge Sender
+     *
+     * @returns cached sender on the hedge queue, the plain sender if the
+     *          hedge queue is the send queue
+     */
+    MQQueueSender hedgeSender() {
+        if (props.hedgeSendQueue == null || props.hedgeSendQueue.equals(props.sendQueue)) {
+            return sender();
+        }
+        if (hedgeSender == null) {
+            if (hedgeDestination == null) {
+                hedgeDestination = session.createQueue(props.hedgeSendQueue);
+                hedgeDestination.setTargetClient("dummy");
+            }
+            hedgeSender = session.createSender(hedgeDestination);
+        }
+        return hedgeSender;
+    }
+
+    /**
+     * Batch Session
+     *
+     * @returns the transacted session, created on first use
+     */
+    MQQueueSession batchSession() {
+        if (batchSession == null) {
+            batchSession = connection.createQueueSession(true, "dummy");
+        }
+        return batchSession;
+    }
+
+    /**
+     * Batch Sender
+     *
+     * @returns cached sender on the send queue of the transacted session
+     */
+    MQQueueSender batchSender() {
+        if (batchSender == null) {
+            MQQueue queue = batchSession().createQueue(props.sendQueue);
+            queue.setTargetClient("dummy");
+            batchSender = batchSession().createSender(queue);
+        }
+        return batchSender;
+    }
+
+    /**
+     * Rollback
+     *
+     * Rolls back the transacted session after a failed batch.
+     */
+    private void rollback() {
+        try {
+            if (batchSession != null) {
+                batchSession.rollback();
+            }
+        }
+        catch (Exception ex) {
+            String s = "Failure to roll back batch. Queue type: " + props.type;
+            Utilities.logException(ex, s);
+        }
+    }
+
+    /**
+     * Receive Destination
+     *
+     * @returns cached receive queue, resolved on first use
+     */
+    MQQueue receiveDestination() {
+        if (receiveDestination == null) {
+            receiveDestination = session.createQueue(props.receiveQueue);
+        }
+        return receiveDestination;
+    }
+
+    /**
+     * Receiver
+     *
+     * @params  correlation id to select
+     * @returns new receiver on the cached receive queue, for the caller to
+     *          close
+     * @throws  JMSException
+     */
+    MQQueueReceiver receiver(String correlationId) throws JMSException {
+        String corrId = "JMSCorrelationID='" + correlationId + "'";
+        return session.createReceiver(receiveDestination(), corrId);
+    }
+
+    /**
+     * Invalidate
+     *
+     * Closes the cached sender and forgets the resolved destinations. Called
+     * on failure and when the session goes away.
+     */
+    void invalidate() {
+        if (sender != null) {
+            try {
+                sender.close();
+            }
+            catch (Exception ex) {
+                String s = "Failure to close sender. Queue type: " + props.type;
+                Utilities.logException(ex, s);
+            }
+        }
+        if (hedgeSender != null) {
+            try {
+                hedgeSender.close();
+            }
+            catch (Exception ex) {
+                String s = "Failure to close hedge sender. Queue type: " + props.type;
+                Utilities.logException(ex, s);
+            }
+        }
+        if (batchSender != null) {
+            try {
+                batchSender.close();
+            }
+            catch (Exception ex) {
+                String s = "Failure to close batch sender. Queue type: " + props.type;
+                Utilities.logException(ex, s);
+            }
+        }
+        sender = null;
+        hedgeSender = null;
+        batchSender = null;
+        sendDestination = null;
+        hedgeDestination = null;
+        receiveDestination = null;
+    }
+
+    /**
+     * Uncompress
+     *
+     * - Pick the codec named in the message header; bytes messages without
+     *   one are deflate as they have always been.
+     * - Decompress using this thread's pooled buffers, see
+     *   CompressionContext, and decode the result as UTF-8.
+     *
+     * @params  message to uncompress
+     * @returns uncompressed message
+     * @throws  DataFormatException
+     */
+    private String uncompress(Message message) throws DataFormatException {
+        String name = message.getStringProperty(Codecs.HEADER);
+        CompressionCodec codec = name == null ? Codecs.DEFLATE : Codecs.forName(name);
+        logger.info(() -> "Decompression sequence starting. Codec: " + codec.name());
+        BytesMessage bytes = (BytesMessage) message;
+        String result;
+        try (CompressionContext context = CompressionContext.acquire()) {
+            result = context.decompress(bytes, codec, arena(bytes));
         }
-        /// end the inflater
-        inflater.end();
         logger.info("Decompression sequence ended");
+        return result;
+    }
 
-        /// produce a string from the output stream
-        String result = stream.toString();
+    /**
+     * Uncompress
+     *
+     * As above, into a buffer rather than a String.
+     *
+     * @params  message to uncompress
+     * @params  allocates the buffer for a given size
+     * @returns uncompressed message, flipped for reading
+     * @throws  DataFormatException
+     */
+    private ByteBuffer uncompress(Message message, IntFunction<ByteBuffer> allocator)
+        throws DataFormatException {
+
+        String name = message.getStringProperty(Codecs.HEADER);
+        CompressionCodec codec = name == null ? Codecs.DEFLATE : Codecs.forName(name);
+        logger.info(() -> "Decompression sequence starting. Codec: " + codec.name());
+        BytesMessage bytes = (BytesMessage) message;
+        ByteBuffer result;
+        try (CompressionContext context = CompressionContext.acquire()) {
+            result = context.decompress(bytes, codec, allocator, arena(bytes));
+        }
+        logger.info("Decompression sequence ended");
         return result;
     }
 
     /**
      * Receive
      *
-     * - Setup the temporary queue and queue sender.
-     * - Compress message if necessary.
-     * - Otherwise use a plain text message.
-     * - Send the message using the sender.
-     * - Obtain the correlation id from the bytes message.
+     * - Setup a receiver on the cached receive queue, selecting on the
+     *   correlation id (the receiver itself is per message).
+     * - Receive the message within the timeout.
+     * - Uncompress or read the plain text message.
      *
      * @params  correlation id of message to receive
      * @returns received message
      * @throws  JMSException, DataFormatException
      */
     public String receive(String correlationId) throws JMSException, DataFormatException {
+        return receive(correlationId, props.timeout).orElse("");
+    }
+
+    /**
+     * Receive
+     *
+     * As above, but waits no longer than the deadline allows (nor longer
+     * than the receive timeout), and tells a timeout apart from an empty
+     * message.
+     *
+     * @params  correlation id of message to receive
+     * @params  deadline of the request
+     * @returns the reply, timed out if none arrived in time
+     * @throws  JMSException, DataFormatException
+     */
+    public Reply receive(String correlationId, Deadline deadline) throws JMSException, DataFormatException {
+        /// no time left: zero would mean waiting with no limit
+        long timeout = deadline.cap(props.timeout);
+        if (timeout <= 0) {
+            return Reply.timedOut();
+        }
+        return receive(correlationId, timeout);
+    }
+
+    /**
+     * Receive
+     *
+     * As receive, into a buffer: a bytes message is uncompressed (or copied)
+     * straight into it, a text message is UTF-8 encoded.
+     *
+     * @params  correlation id of message to receive
+     * @params  allocates the buffer for a given size, e.g.
+     *          ByteBuffer::allocateDirect
+     * @returns received message, flipped for reading; null if none arrived
+     *          within the receive timeout
+     * @throws  JMSException, DataFormatException
+     */
+    public ByteBuffer receive(String correlationId, IntFunction<ByteBuffer> allocator)
+        throws JMSException, DataFormatException {
+
+        return receive(correlationId, props.timeout, m -> decode(m, allocator), null);
+    }
+
+    /**
+     * Receive
+     *
+     * As above, into a buffer leased from the arena, for bulk replies which
+     * should stay off heap.
+     *
+     * @params  correlation id of message to receive
+     * @params  arena to lease the buffer from
+     * @returns lease of the received message, flipped for reading, which
+     *          the caller must close; null if none arrived within the
+     *          receive timeout
+     * @throws  JMSException, DataFormatException
+     */
+    public BufferArena.Lease receive(String correlationId, BufferArena arena)
+        throws JMSException, DataFormatException {
+
+        List<BufferArena.Lease> leased = new ArrayList<BufferArena.Lease>(1);
+        ByteBuffer body = null;
+        try {
+            body = receive(correlationId, size -> {
+                BufferArena.Lease lease = arena.allocate(size);
+                leased.add(lease);
+                return lease.buffer();
+            });
+        }
+        finally {
+            /// a reply which failed to decode gives its buffer back
+            if (body == null) {
+                for (BufferArena.Lease lease : leased) {
+                    lease.close();
+                }
+            }
+        }
+        return body == null ? null : leased.get(0);
+    }
+
+    /**
+     * Receive
+     *
+     * @params  correlation id of message to receive
+     * @params  millis to wait, zero for no limit
+     * @returns the reply, timed out if none arrived in time
+     * @throws  JMSException, DataFormatException
+     */
+    private Reply receive(String correlationId, long timeout) throws JMSException, DataFormatException {
+        return receive(correlationId, timeout, m -> Reply.received(decode(m)), Reply.timedOut());
+    }
+
+    /**
+     * Receive
+     *
+     * @params  correlation id of message to receive
+     * @params  millis to wait, zero for no limit
+     * @params  turns the received message into the result
+     * @params  result if nothing arrived in time
+     * @returns the result
+     * @throws  JMSException, DataFormatException if the message arrived
+     *          but could not be decoded, which is not a timeout
+     */
+    private <T> T receive(String correlationId, long timeout, Decoder<T> decoder, T timedOut)
+        throws JMSException, DataFormatException {
 
         /// like send, exception may have to be thrown,
         /// the read content is in the result
         JMSException out = null;
+        DataFormatException corrupt = null;
         MQQueueReceiver receiver = null;
-        String result = "";
+        T result = timedOut;
         try {
 
-            /// establish receiver and receive message
-            MQQueue queue = session.createQueue(props.receiveQueue);   
-            String corrId = "JMSCorrelationID='" + correlationId + "'";
-            receiver = session.createReceiver(queue, corrId);
-            Message message = receiver.receive(props.timeout);
+            /// establish receiver on the cached queue and receive message
+            receiver = receiver(correlationId);
+            Message message = receiver.receive(timeout);
 
-            if (props.compress && message != null) {
-                /// a compressed receive, so uncompress
-                result = uncompress(message);
-            }
-            else if (!props.compress && message != null) {
-                /// plain vanilla receive, into text message
-                TextMessage textMessage = (TextMessage) message;
-                result = textMessage.getText();
-            }
-            else if (message == null) {
-                /// are we throwing here
+            if (message != null) {
+                result = decoder.decode(message);
             }
         }
-        catch (Exception ex) {
+        catch (JMSException ex) {
             String s = "Failure to receive message for correlationId: " + correlationId;
             Utilities.logException(ex, s);
-            if (ex instanceof JMSException) {
-                out = (JMSException) ex;
+            out = ex;
+            invalidate();
+        }
+        catch (DataFormatException | RuntimeException ex) {
+            String s = "Failure to decode message for correlationId: " + correlationId;
+            Utilities.logException(ex, s);
+            if (ex instanceof DataFormatException) {
+                corrupt = (DataFormatException) ex;
+            }
+            else {
+                /// e.g. an unknown codec, no less a bad payload
+                corrupt = new DataFormatException(s + ": " + ex);
+                corrupt.initCause(ex);
             }
         }
         finally {
@@ -307,19 +1009,168 @@ public class Connection implements Comparable<Connection> {
             if (out != null) {
                 throw out;
             }
-            /// otherwise we're ok, return the received message
+            if (corrupt != null) {
+                throw corrupt;
+            }
+            /// otherwise we're ok, return the received message (or the timeout)
             return result;
         }
     }
 
+    /**
+     * Open Input Stream
+     *
+     * Reads a reply sent as a sequence of chunk messages (or as a single
+     * message) as a stream, see ChunkedInputStream, waiting up to the
+     * receive timeout for each chunk. The connection is the stream's until
+     * it is closed.
+     *
+     * @params  correlation id of message to receive
+     * @returns stream of the message
+     */
+    public ChunkedInputStream openInputStream(String correlationId) {
+        return new ChunkedInputStream(this, correlationId, props.timeout);
+    }
+
+    /**
+     * Send and Receive
+     *
+     * - Takes a correlation id from the reply demultiplexer of this
+     *   connection's receive queue and registers it, rather than opening a
+     *   receiver.
+     * - Sends the message carrying that correlation id.
+     * The connection is free for other work as soon as this returns.
+     *
+     * @params  message to be sent
+     * @returns future completed with the reply
+     * @throws  JMSException if the send fails
+     */
+    public CompletableFuture<String> sendAndReceive(String message) throws JMSException {
+        return sendExpecting(message, null, false);
+    }
+
+    /**
+     * Send and Receive
+     *
+     * As above, with the wait for the reply bounded by the deadline. The
+     * future does not fail on a timeout but completes with a timed out
+     * reply, so callers need not unwrap exceptions to tell the two apart.
+     *
+     * @params  message to be sent
+     * @params  deadline of the request, null for the receive timeout
+     * @params  true to send as a hedge, see sendHedge
+     * @returns future completed with the reply
+     * @throws  JMSException if the send fails
+     */
+    public CompletableFuture<Reply> sendAndReceive(String message, Deadline deadline, boolean hedge)
+        throws JMSException {
+
+        CompletableFuture<String> reply = sendExpecting(message, deadline, hedge);
+        return reply.handle((body, ex) -> {
+            if (ex == null) {
+                return hedge ? Reply.hedged(body) : Reply.received(body);
+            }
+            Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+            if (cause instanceof TimeoutException) {
+                return Reply.timedOut();
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    /**
+     * Send Expecting
+     *
+     * - Takes a correlation id from the reply demultiplexer and registers it
+     *   before sending, so the reply cannot arrive unexpected.
+     * - Sends the message carrying it, unless the registration failed
+     *   already (no time left); a failed send withdraws the registration.
+     *
+     * @params  message to be sent
+     * @params  deadline of the request, null for the receive timeout
+     * @params  true to send as a hedge, see sendHedge
+     * @returns future completed with the reply
+     * @throws  JMSException if the send fails
+     */
+    private CompletableFuture<String> sendExpecting(String message, Deadline deadline, boolean hedge)
+        throws JMSException {
+
+        ReplyDemultiplexer demux = ReplyDemultiplexer.getInstance(props);
+        String correlationId = demux.nextCorrelationId();
+        CompletableFuture<String> reply = deadline == null
+            ? demux.expect(correlationId)
+            : demux.expect(correlationId, deadline);
+        /// deadline passed or demultiplexer stopped: nobody would get the reply
+        if (reply.isDone()) {
+            return reply;
+        }
+        String sent;
+        try {
+            sent = send(message, hedge, correlationId);
+        }
+        catch (JMSException ex) {
+            reply.cancel(false);
+            throw ex;
+        }
+        /// failed on something other than a JMSException, already logged
+        if (! correlationId.equals(sent)) {
+            reply.completeExceptionally(new JMSException("Failure to send message: " + correlationId));
+        }
+        return reply;
+    }
+
+    /**
+     * Decode
+     *
+     * Whatever arrives is decoded, regardless of this pool's own setting:
+     * - A text message is plain text.
+     * - A bytes message is uncompressed with the codec it names.
+     *
+     * @params  received message
+     * @returns message content
+     * @throws  DataFormatException
+     */
+    String decode(Message message) throws DataFormatException {
+        if (message instanceof TextMessage) {
+            /// plain vanilla receive, into text message
+            TextMessage textMessage = (TextMessage) message;
+            return textMessage.getText();
+        }
+        /// a compressed receive, so uncompress
+        return uncompress(message);
+    }
+
+    /**
+     * Decode
+     *
+     * As above, into a buffer.
+     *
+     * @params  received message
+     * @params  allocates the buffer for a given size
+     * @returns message content, flipped for reading
+     * @throws  DataFormatException
+     */
+    ByteBuffer decode(Message message, IntFunction<ByteBuffer> allocator) throws DataFormatException {
+        if (message instanceof TextMessage) {
+            byte[] text = ((TextMessage) message).getText().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = allocator.apply(text.length);
+            buffer.put(text);
+            buffer.flip();
+            return buffer;
+        }
+        return uncompress(message, allocator);
+    }
+
     /**
      * Dispose
      *
-     * - Close session and nullify.
+     * - Close cached senders and forget cached destinations.
+     * - Close session (and batch session) and nullify.
      * - Stop connection, close and nullify.
      *   [any other cleanup ???]
      */
     public void dispose() {
+        invalidate();
         try {
             if (session != null) {
                 session.close();
@@ -330,6 +1181,16 @@ public class Connection implements Comparable<Connection> {
             String s = "Failed to close session.";
             Utilities.logException(ex, s);
         }
+        try {
+            if (batchSession != null) {
+                batchSession.close();
+            }
+            batchSession = null;
+        }
+        catch (JMSException ex) {
+            String s = "Failed to close batch session.";
+            Utilities.logException(ex, s);
+        }
         try {
             if (connection != null) {
                 connection.stop();
@@ -0,0 +1,350 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Class:  ConnectionBag
+ *
+ * Lock free container for the connections of a single pool. Every connection
+ * carries its own atomic state and is claimed by a compare-and-set, so there
+ * is no pool wide lock on the acquire or release paths:
+ * - Each thread keeps a few affinity slots holding the connections it most
+ *   recently released; these are tried first and are usually uncontended.
+ *   The slots hold weak references and drop connections removed from the
+ *   bag, so a thread which does not come back pins no disposed connection.
+ *   Virtual threads keep none, see TaskExecutors.isVirtual.
+ * - Otherwise the shared list of all connections is scanned for an idle one.
+ * - Threads that find nothing join a FIFO queue of waiters. A releasing
+ *   thread hands its connection to the oldest waiter directly, and newcomers
+ *   do not overtake the queue while anybody is waiting.
+ * Waiters are futures, so a caller can block on one with a deadline or
+ * simply chain on it without holding a thread.
+ * The bag also tracks the total number of connections (including those still
+ * being created) so the owning pool can respect its maximum size.
+ */
+public class ConnectionBag {
+
+    static final int NOT_IN_USE = 0;
+    static final int IN_USE     = 1;
+    static final int REMOVED    = -1;
+    static final int RESERVED   = -2;
+
+    /// number of recently released connections remembered per thread
+    private static final int AFFINITY_SLOTS = 8;
+
+    private final CopyOnWriteArrayList<Connection>                     shared;
+    private final ThreadLocal<ArrayList<WeakReference<Connection>>>    affinity;
+    private final ConcurrentLinkedQueue<CompletableFuture<Connection>> waitQueue;
+    private final AtomicInteger                                        waiters;
+    private final AtomicInteger                                        total;
+
+    /**
+     * Constructor
+     *
+     * Creates the shared list, per thread slots and the wait queue.
+     */
+    public ConnectionBag() {
+        shared = new CopyOnWriteArrayList<Connection>();
+        affinity = ThreadLocal.withInitial(() -> new ArrayList<WeakReference<Connection>>(AFFINITY_SLOTS));
+        waitQueue = new ConcurrentLinkedQueue<CompletableFuture<Connection>>();
+        waiters = new AtomicInteger();
+        total = new AtomicInteger();
+    }
+
+    /**
+     * Borrow
+     *
+     * Non-blocking:
+     * - Nothing if others are already waiting, to keep the queue fair.
+     * - Try this thread's affinity slots, most recently released first.
+     * - Scan the shared list for any idle connection.
+     *
+     * @returns borrowed connection (now in use), null if none was found
+     */
+    public Connection borrow() {
+        if (waiters.get() > 0) {
+            return null;
+        }
+
+        /// the thread local fast path, see TaskExecutors.isVirtual
+        if (TaskExecutors.isVirtual()) {
+            return scan();
+        }
+        ArrayList<WeakReference<Connection>> slots = affinity.get();
+        for (int i = slots.size() - 1; i >= 0; --i) {
+            Connection conn = slots.remove(i).get();
+            if (conn != null && conn.state.compareAndSet(NOT_IN_USE, IN_USE)) {
+                return conn;
+            }
+        }
+        return scan();
+    }
+
+    /**
+     * Enqueue
+     *
+     * Joins the back of the wait queue. The returned future completes with a
+     * connection handed over by a releasing thread. A caller giving up must
+     * complete the future exceptionally (or cancel it) which withdraws it
+     * from the queue; if that fails the connection was already handed over.
+     *
+     * @returns future completed with a connection in use
+     */
+    public CompletableFuture<Connection> enqueue() {
+        CompletableFuture<Connection> waiter = new CompletableFuture<Connection>();
+        waiters.incrementAndGet();
+        waiter.whenComplete((conn, ex) -> {
+            waiters.decrementAndGet();
+            if (ex != null) {
+                waitQueue.remove(waiter);
+            }
+        });
+        waitQueue.offer(waiter);
+
+        /// a connection released between the caller's borrow and the offer
+        /// above did not see this waiter, so look once more
+        Connection conn = scan();
+        if (conn != null && ! waiter.complete(conn)) {
+            requite(conn);
+        }
+        return waiter;
+    }
+
+    /**
+     * Fail
+     *
+     * Fails the oldest waiter, for instance when the connection being
+     * created while it waited could not be made.
+     *
+     * @params  cause the waiter fails with
+     * @returns true if there was a waiter to fail
+     */
+    public boolean fail(Throwable cause) {
+        CompletableFuture<Connection> waiter;
+        while ((waiter = waitQueue.poll()) != null) {
+            if (waiter.completeExceptionally(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scan
+     *
+     * @returns an idle connection from the shared list claimed for use,
+     *          null if there is none
+     */
+    private Connection scan() {
+        for (Connection conn : shared) {
+            if (conn.state.compareAndSet(NOT_IN_USE, IN_USE)) {
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Requite
+     *
+     * Returns a borrowed connection to the bag. If threads are waiting the
+     * connection is handed to the oldest of them directly, otherwise it is
+     * kept in this thread's affinity slots for the next borrow (not on a
+     * virtual thread, see TaskExecutors.isVirtual). Connections removed from
+     * the bag in the meantime are ignored.
+     *
+     * @params  connection being returned
+     */
+    public void requite(Connection conn) {
+
+        /// disposed of while borrowed, it must never be handed out again
+        if (conn.state.get() == REMOVED) {
+            return;
+        }
+        for (;;) {
+            /// still in use at this point, so nobody else can claim it
+            CompletableFuture<Connection> waiter;
+            while ((waiter = waitQueue.poll()) != null) {
+                if (waiter.complete(conn)) {
+                    return;
+                }
+            }
+            conn.state.set(NOT_IN_USE);
+
+            /// a waiter which queued after our poll will scan for it, unless
+            /// we take it back to serve the queue ourselves
+            if (waitQueue.isEmpty() || ! conn.state.compareAndSet(NOT_IN_USE, IN_USE)) {
+                break;
+            }
+        }
+
+        if (TaskExecutors.isVirtual()) {
+            return;
+        }
+        ArrayList<WeakReference<Connection>> slots = affinity.get();
+        prune(slots);
+        if (slots.size() >= AFFINITY_SLOTS) {
+            slots.remove(0);
+        }
+        slots.add(new WeakReference<Connection>(conn));
+    }
+
+    /**
+     * Prune
+     *
+     * Drops affinity slots whose connection was collected or removed from
+     * the bag.
+     *
+     * @params  this thread's slots
+     */
+    private static void prune(ArrayList<WeakReference<Connection>> slots) {
+        slots.removeIf(slot -> {
+            Connection conn = slot.get();
+            return conn == null || conn.state.get() == REMOVED;
+        });
+    }
+
+    /**
+     * Reserve Capacity
+     *
+     * Claims room for one more connection if the bag is below the maximum.
+     * A successful claim must be followed by add or unreserveCapacity.
+     *
+     * @params  maximum number of connections
+     * @returns true if a slot was claimed
+     */
+    public boolean reserveCapacity(int maxSize) {
+        for (;;) {
+            int current = total.get();
+            if (current >= maxSize) {
+                return false;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unreserve Capacity
+     *
+     * Gives back a slot claimed by reserveCapacity when creation failed.
+     */
+    public void unreserveCapacity() {
+        total.decrementAndGet();
+    }
+
+    /**
+     * Add
+     *
+     * Adds a newly created connection for which capacity was reserved.
+     *
+     * @params  connection to add
+     * @params  true if the caller keeps the connection (in use)
+     */
+    public void add(Connection conn, boolean inUse) {
+        /// added as in use, requite then serves any waiters first
+        conn.state.set(IN_USE);
+        shared.add(conn);
+        if (! inUse) {
+            requite(conn);
+        }
+    }
+
+    /**
+     * Reserve
+     *
+     * Claims an idle connection so it can be removed without racing a
+     * borrower.
+     *
+     * @params  connection to reserve
+     * @returns true if the connection was idle and is now reserved
+     */
+    public boolean reserve(Connection conn) {
+        return conn.state.compareAndSet(NOT_IN_USE, RESERVED);
+    }
+
+    /**
+     * Unreserve
+     *
+     * Returns a reserved connection to use, handing it to the oldest waiter
+     * if there is one.
+     *
+     * @params  connection to unreserve
+     */
+    public void unreserve(Connection conn) {
+        if (conn.state.compareAndSet(RESERVED, IN_USE)) {
+            requite(conn);
+        }
+    }
+
+    /**
+     * Remove
+     *
+     * Removes an in-use or reserved connection from the bag for good.
+     *
+     * @params  connection to remove
+     * @returns true if the connection was part of the bag
+     */
+    public boolean remove(Connection conn) {
+        if (! conn.state.compareAndSet(IN_USE, REMOVED)
+            && ! conn.state.compareAndSet(RESERVED, REMOVED)) {
+            return false;
+        }
+        if (shared.remove(conn)) {
+            total.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Idle Connections
+     *
+     * @returns snapshot of the connections not currently in use
+     */
+    public List<Connection> idleConnections() {
+        List<Connection> idle = new ArrayList<Connection>();
+        for (Connection conn : shared) {
+            if (conn.state.get() == NOT_IN_USE) {
+                idle.add(conn);
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * Count of connections in the given state
+     *
+     * @params  state to count
+     * @returns number of connections in that state
+     */
+    public int count(int state) {
+        int count = 0;
+        for (Connection conn : shared) {
+            if (conn.state.get() == state) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @returns total connections, including ones being created
+     */
+    public int size() {
+        return total.get();
+    }
+
+    /**
+     * @returns number of threads currently waiting for a connection
+     */
+    public int waiting() {
+        return waiters.get();
+    }
+}
@@ -1,131 +1,180 @@
-import java.util.Properties;
-import java.io.InputStream;
-import java.io.FileInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.io.IOException;
-import java.io.FileNotFoundException;
-
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Class:  ConnectionConfiguration
+ *
+ * Where the configuration lives and what it currently is. init() loads and
+ * validates $SYSTEM/conf/mq.properties into a PoolConfiguration; the static
+ * fields mirror the read, write and bulk pools and the global settings of
+ * the latest configuration, for code (and tests) which reads or sets them
+ * directly. Pools set up by hand through the static fields are picked up by
+ * current().
+ */
 public class ConnectionConfiguration {
 
     public static ConnectionProperties  readProps;
     public static ConnectionProperties  writeProps;
     public static ConnectionProperties  bulkProps;
+    public static List<ConnectionProperties> readShards;
+    public static List<ConnectionProperties> writeShards;
+    public static List<ConnectionProperties> bulkShards;
     public static long                  evictionPeriod;
-    public static int                   overMinimumThreshold;
-
-    public static void init() throws FileNotFoundException, IOException {
+    public static long                  healthCheckPeriod = 30000L;
+    public static long                  metricsPeriod = 0L;
+    public static double                demandAlpha = 0.3;
+    public static double                headroom = 0.2;
+    public static double                shrinkFraction = 0.25;
+    public static double                shardErrorThreshold = 0.5;
+    public static double                shardLatencyFactor = 3.0;
+    public static long                  shardHealthWindow = 10000L;
+
+    private static volatile Path               location;
+    private static volatile PoolConfiguration  loaded;
+
+    /**
+     * Initialize
+     *
+     * Loads and validates $SYSTEM/conf/mq.properties.
+     *
+     * @throws  IOException if the file cannot be read
+     * @throws  ConfigurationException if it does not validate
+     */
+    public static void init() throws IOException, ConfigurationException {
         String catalina = System.getenv("SYSTEM");
-        String location = catalina + "/conf/mq.properties";
-
-        Properties props = new Properties();
-        InputStream stream = new FileInputStream(location);
-        props.load(stream);
-        loadMQReadProperties(props);
-        loadMQWriteProperties(props);
-        loadMQBulkProperties(props);
-
-        /// we don't want multiple timers at this point
-        String s = props.getProperty("mq.eviction_period", "60000");
-        evictionPeriod = Long.parseLong(s);
-        s = props.getProperty("mq.over_minimum_threshold", "3");
-        overMinimumThreshold = Integer.parseInt(s);
+        Path path = Paths.get(catalina, "conf", "mq.properties");
+        apply(PoolConfiguration.load(path));
+        location = path;
     }
 
-    public static void loadMQReadProperties(Properties props) {
-        readProps = new ConnectionProperties();
-        readProps.type = ConnectionType.Read;
-        readProps.manager = props.getProperty("mq.read.manager");
-        readProps.hostname = props.getProperty("mq.read.hostname");
-        readProps.channel = props.getProperty("mq.read.channel");
-        readProps.port = Integer.parseInt(props.getProperty("mq.read.port"));
-        readProps.sendQueue = props.getProperty("mq.read.send_queue");
-        readProps.receiveQueue = props.getProperty("mq.read.receive_queue");
-
-        readProps.compress = false;
-        String value = props.getProperty("mq.read.compress_message");
-        if (value.toLowerCase().equals("true"))
-            readProps.compress = true;
-
-        readProps.compressOut = false;
-        value = props.getProperty("mq.read.out_compress_message");
-        if (value.toLowerCase().equals("true"))
-            readProps.compressOut = true;
-
-        readProps.timeout = 0L;
-        value = props.getProperty("mq.read.timeout").trim();
-        if (! value.isEmpty())
-            readProps.timeout = Long.parseLong(value) * 1000L;
-
-        readProps.username = props.getProperty("mq.read.mqusername", "");
-        readProps.password = props.getProperty("mq.read.mqpassword", "");
-        String minSize = props.getProperty("mq.read_min_pool_size", "10");
-        readProps.minSize = Integer.parseInt(minSize);
-        String maxSize = props.getProperty("mq.read_max_pool_size", "100");
-        readProps.maxSize = Integer.parseInt(maxSize);
+    /**
+     * Location
+     *
+     * @returns the file init() loaded, null if it was not called
+     */
+    public static Path location() {
+        return location;
     }
 
-    public static void loadMQWriteProperties(Properties props) {
-        writeProps = new ConnectionProperties();
-        writeProps.type = ConnectionType.Write;
-        writeProps.manager = props.getProperty("mq.manager");
-        writeProps.hostname = props.getProperty("mq.hostname");
-        writeProps.channel = props.getProperty("mq.channel");
-        writeProps.port = Integer.parseInt(props.getProperty("mq.port"));
-        writeProps.sendQueue = props.getProperty("mq.send_queue");
-        writeProps.receiveQueue = props.getProperty("mq.receive_queue");
-
-        writeProps.compress = false;
-        String value = props.getProperty("mq.compress_message");
-        if (value.toLowerCase().equals("true"))
-            writeProps.compress = true;
-
-        writeProps.compressOut = false;
-        value = props.getProperty("mq.out_compress_message");
-        if (value.toLowerCase().equals("true"))
-            writeProps.compressOut = true;
-
-        writeProps.timeout = 0L;
-        value = props.getProperty("mq.timeout").trim();
-        if (! value.isEmpty())
-            writeProps.timeout = Long.parseLong(value) * 1000L;
-
-        writeProps.username = props.getProperty("mq.mqusername", "");
-        writeProps.password = props.getProperty("mq.mqpassword", "");
-        String minSize = props.getProperty("mq.min_pool_size", "10");
-        writeProps.minSize = Integer.parseInt(minSize);
-        String maxSize = props.getProperty("mq.max_pool_size", "100");
-        writeProps.maxSize = Integer.parseInt(maxSize);
+    /**
+     * Apply
+     *
+     * Makes the configuration current and mirrors it into the static
+     * fields.
+     *
+     * @params  validated configuration
+     */
+    public static synchronized void apply(PoolConfiguration config) {
+        readShards = shardsOf(config, ConnectionType.Read);
+        writeShards = shardsOf(config, ConnectionType.Write);
+        bulkShards = shardsOf(config, ConnectionType.Bulk);
+        readProps = readShards == null ? null : readShards.get(0);
+        writeProps = writeShards == null ? null : writeShards.get(0);
+        bulkProps = bulkShards == null ? null : bulkShards.get(0);
+        evictionPeriod = config.evictionPeriod;
+        healthCheckPeriod = config.healthCheckPeriod;
+        metricsPeriod = config.metricsPeriod;
+        demandAlpha = config.demandAlpha;
+        headroom = config.headroom;
+        shrinkFraction = config.shrinkFraction;
+        shardErrorThreshold = config.shardErrorThreshold;
+        shardLatencyFactor = config.shardLatencyFactor;
+        shardHealthWindow = config.shardHealthWindow;
+        loaded = config;
     }
 
-    public static void loadMQBulkProperties(Properties props) {
-        bulkProps = new ConnectionProperties();
-        bulkProps.type = ConnectionType.Bulk;
-        bulkProps.manager = props.getProperty("mq.bulk.manager");
-        bulkProps.hostname = props.getProperty("mq.bulk.hostname");
-        bulkProps.channel = props.getProperty("mq.bulk.channel");
-        bulkProps.port = Integer.parseInt(props.getProperty("mq.bulk.port"));
-        bulkProps.sendQueue = props.getProperty("mq.bulk.send_queue");
-        bulkProps.receiveQueue = props.getProperty("mq.bulk.receive_queue");
+    private static List<ConnectionProperties> shardsOf(PoolConfiguration config, ConnectionType type) {
+        String name = config.poolFor(type);
+        return name == null ? null : config.endpoints(name);
+    }
 
-        bulkProps.compress = false;
-        String value = props.getProperty("mq.bulk.compress_message");
-        if (value.toLowerCase().equals("true"))
-            bulkProps.compress = true;
+    /**
+     * Current
+     *
+     * @returns the configuration last applied; or, if the static fields were
+     *          set by hand since (or instead), one made from them
+     */
+    public static synchronized PoolConfiguration current() {
+        PoolConfiguration config = loaded;
+        if (config != null && matches(config)) {
+            return config;
+        }
+        Map<String, List<ConnectionProperties>> pools = new LinkedHashMap<String, List<ConnectionProperties>>();
+        for (ConnectionType type : ConnectionType.values()) {
+            List<ConnectionProperties> shards = shards(type);
+            if (shards.get(0) == null) {
+                continue;
+            }
+            String name = type.name().toLowerCase();
+            for (ConnectionProperties props : shards) {
+                if (props.pool == null) {
+                    props.pool = name;
+                }
+            }
+            pools.put(shards.get(0).pool, shards);
+        }
+        return new PoolConfiguration(pools, evictionPeriod, healthCheckPeriod, metricsPeriod,
+            demandAlpha, headroom, shrinkFraction, shardErrorThreshold, shardLatencyFactor,
+            shardHealthWindow);
+    }
 
-        bulkProps.compressOut = false;
-        value = props.getProperty("mq.bulk.out_compress_message");
-        if (value.toLowerCase().equals("true"))
-            bulkProps.compressOut = true;
+    /**
+     * @params  configuration last applied
+     * @returns true if the static fields still mirror it
+     */
+    private static boolean matches(PoolConfiguration config) {
+        return mirrors(readProps, readShards, shardsOf(config, ConnectionType.Read))
+            && mirrors(writeProps, writeShards, shardsOf(config, ConnectionType.Write))
+            && mirrors(bulkProps, bulkShards, shardsOf(config, ConnectionType.Bulk))
+            && evictionPeriod == config.evictionPeriod
+            && healthCheckPeriod == config.healthCheckPeriod
+            && metricsPeriod == config.metricsPeriod
+            && demandAlpha == config.demandAlpha
+            && headroom == config.headroom
+            && shrinkFraction == config.shrinkFraction
+            && shardErrorThreshold == config.shardErrorThreshold
+            && shardLatencyFactor == config.shardLatencyFactor
+            && shardHealthWindow == config.shardHealthWindow;
+    }
 
-        bulkProps.timeout = 0L;
-        value = props.getProperty("mq.bulk.timeout").trim();
-        if (! value.isEmpty())
-            bulkProps.timeout = Long.parseLong(value) * 1000L;
+    private static boolean mirrors(ConnectionProperties props, List<ConnectionProperties> shards,
+                                   List<ConnectionProperties> configured) {
+        if (configured == null) {
+            return props == null && shards == null;
+        }
+        return shards == configured && props == configured.get(0);
+    }
 
-        bulkProps.username = props.getProperty("mq.bulk.mqusername", "");
-        bulkProps.password = props.getProperty("mq.bulk.mqpassword", "");
-        String minSize = props.getProperty("mq.bulk_min_pool_size", "10");
-        bulkProps.minSize = Integer.parseInt(minSize);
-        String maxSize = props.getProperty("mq.bulk_max_pool_size", "100");
-        bulkProps.maxSize = Integer.parseInt(maxSize);
+    /**
+     * Shards
+     *
+     * @params  connection type
+     * @returns properties of every endpoint serving that type; the type's
+     *          own properties if no endpoints were configured
+     */
+    public static List<ConnectionProperties> shards(ConnectionType type) {
+        List<ConnectionProperties> shards;
+        ConnectionProperties props;
+        if (type == ConnectionType.Read) {
+            shards = readShards;
+            props = readProps;
+        }
+        else if (type == ConnectionType.Write) {
+            shards = writeShards;
+            props = writeProps;
+        }
+        else {
+            shards = bulkShards;
+            props = bulkProps;
+        }
+        if (shards == null || shards.isEmpty() || ! shards.contains(props)) {
+            return Collections.singletonList(props);
+        }
+        return shards;
     }
 }
@@ -1,9 +1,23 @@
 import java.util.logging.*;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.PriorityQueue;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.List;
+import java.util.EnumMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.sql.Timestamp;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -11,41 +25,70 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * Contains pools for read, write and bulk requests. Each pool is primed to a
  * minimum size based on its configured properties.  A pool can grow beyond a
- * minimum size to a configured maximum.  Minimal eviction logic exists wherein
- * connections are evicted from the available pool if the available pool has
- * grown beyond the minimum size for a configured interval. The configured
- * interval is reached after successive timer pops of the eviction interval.
- * For instance, if for 3 successive timer pops the available pool has remained
- * remained beyond the minimum size then we can 'assume' that the pool is in a
- * 'quiescent' state since it hasn't been flooded with a barrage of new requests.
+ * minimum size to a configured maximum.  Periodic jobs run per pool on the
+ * MaintenanceScheduler.
+ * On every eviction period each pool is resized towards the target of its
+ * PoolSizer: the moving average of observed demand plus some headroom. A
+ * pool below its target is topped up off the request path; a pool above it
+ * gives back a fraction of the excess, so it shrinks gradually instead of
+ * dropping to the minimum just before the next burst.
  * Connections are ordered based on a last updated timestamp in ascending order.
- * Connections which have been idle for the longest period are at the front of
- * the queue and get evicted first.
+ * Connections which have been idle for the longest period are evicted first.
+ * Acquire and release do not take a pool lock, see ConnectionBag.
+ * Connections are created in the background, never on an acquiring thread:
+ * at startup (the three pools in parallel), to keep a low water mark of idle
+ * connections ready ahead of demand, and for callers finding the pool empty,
+ * who wait for the new connection or any released one, whichever comes first.
+ * Connections are validated so requests do not find dead sockets: past the
+ * pool's max lifetime they are retired on borrow, release or timer pop, and
+ * once idle for the validation interval they are probed by the health check
+ * (a keep-alive) or, failing that, on borrow.
+ * Maintenance jobs pick their victims first and then close them in parallel,
+ * so one slow close does not hold up the rest. shutdown() stops the jobs and
+ * closes every connection.
+ * A type can be served by several endpoints (queue managers), see
+ * ConnectionConfiguration.shards: each gets a pool of its own, with its own
+ * sizing, breaker and metrics, and every acquire picks one of them (see
+ * Shards), steering clear of endpoints which fail or lag behind the rest.
+ * Besides the read, write and bulk pools any number of named pools can be
+ * configured, see PoolConfiguration; acquires by type go to the pool named
+ * after the type (or else the first of that type). The configuration file
+ * is watched and changes are applied live by reconfigure().
  */
 public class ConnectionPool {
 
     /**
-     * Locked Pool
+     * Pool
      *
-     * Locked since access to the pool connections must be thread safe.
-     * Also contains the connection configuration properties for the
-     * specific pool
+     * Holds the connections of one pool in a lock free bag along with the
+     * connection configuration properties for the specific pool.
      */
-    class LockedPool {
+    class Pool {
 
         /**
          * Constructor
          *
-         * Sets member properties, creates lock and pools.
+         * Sets member properties, creates the bag, its sizer, the dispatch
+         * retry policy and circuit breaker, the endpoint health, metrics and
+         * the hedge policy.
          *
          * @params  configured connection properties
+         * @params  configuration of the sizer and endpoint health
          */
-        LockedPool(ConnectionProperties p) {
-            overMinimumCount = 0;
+        Pool(ConnectionProperties p, PoolConfiguration config) {
             props = p;
-            lock = new ReentrantLock();
-            available = new PriorityQueue<Connection>();
-            inUse = new PriorityQueue<Connection>();
+            endpoint = p.endpoint != null ? p.endpoint : p.manager;
+            name = (p.pool != null ? p.pool : String.valueOf(p.type)) + "/" + endpoint;
+            bag = new ConnectionBag();
+            creating = new AtomicInteger();
+            sizer = new PoolSizer(p, config.demandAlpha, config.headroom, config.shrinkFraction);
+            retry = RetryPolicy.of(p);
+            breaker = new CircuitBreaker(name, p.breakerThreshold, p.breakerOpenTime);
+            health = new EndpointHealth(name, config.shardErrorThreshold,
+                config.shardLatencyFactor, config.shardHealthWindow);
+            metrics = new PoolMetrics(p, bag, sizer, breaker, health);
+            hedge = new HedgePolicy(p.hedgePercentile, p.hedgeMinSamples, metrics.replyLatency());
+            jobs = new ArrayList<ScheduledFuture<?>>();
         }
 
         /**
@@ -56,124 +99,1188 @@ public class ConnectionPool {
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("Pool Type: " + props.type + ". ");
-            sb.append("Available Connections: " + available.size() + ". ");
-            sb.append("InUse Connections: " + inUse.size() + ". ");
-            sb.append("Over minimum count: " + overMinimumCount + ".");
+            sb.append("Pool: " + name + ". ");
+            sb.append("Available Connections: " + bag.count(ConnectionBag.NOT_IN_USE) + ". ");
+            sb.append("InUse Connections: " + bag.count(ConnectionBag.IN_USE) + ". ");
+            sb.append("Waiting: " + bag.waiting() + ". ");
+            sb.append("Creating: " + creating.get() + ". ");
+            sb.append("Demand: " + sizer.getDemand() + ". ");
+            sb.append("Target: " + sizer.getTarget() + ".");
             return sb.toString();
         }
 
-        int                        overMinimumCount;
         ConnectionProperties       props;
-        ReentrantLock              lock;
-        PriorityQueue<Connection>  available;
-        PriorityQueue<Connection>  inUse;
+        String                     endpoint;
+        String                     name;
+        ConnectionBag              bag;
+        AtomicInteger              creating;
+        PoolSizer                  sizer;
+        volatile RetryPolicy       retry;
+        CircuitBreaker             breaker;
+        EndpointHealth             health;
+        PoolMetrics                metrics;
+        volatile HedgePolicy       hedge;
+        List<ScheduledFuture<?>>   jobs;
+        ObjectName                 objectName;
+        /// bumped when the endpoint moves; older connections are replaced
+        volatile int               generation;
+        /// dropped from the configuration, closing as connections return
+        volatile boolean           retired;
     }
 
-    private LockedPool             readPool;
-    private LockedPool             writePool;
-    private LockedPool             bulkPool;
-    private TimerTask              evictionTask;
-    private Timer                  evictionTimer;
-    private int                    overMinimumThreshold;
-    private Logger                 logger;
-    private static ConnectionPool  instance = null;
+    /**
+     * Shards
+     *
+     * The pools serving one connection type, one per endpoint, and the
+     * choice between them:
+     * - Endpoints whose breaker is open, or which their health says to
+     *   drain, are passed over while any other is left.
+     * - Of the remaining ones two are drawn at random and the less loaded
+     *   (acquires in flight relative to its max size) wins. Nearly as good
+     *   as the least loaded of all, without everybody piling onto the same
+     *   endpoint between two looks at the load.
+     * Picking takes no lock and allocates nothing, as it is done on every
+     * acquire.
+     */
+    class Shards {
+
+        /**
+         * Constructor
+         *
+         * @params  pool name
+         * @params  connection type
+         * @params  pools of its endpoints, at least one
+         * @params  pools of endpoints removed before, still closing
+         */
+        Shards(String name, ConnectionType type, List<Pool> pools, List<Pool> retired) {
+            this.name = name;
+            this.type = type;
+            this.pools = pools;
+            this.retired = retired;
+        }
+
+        /**
+         * Pick
+         *
+         * @params  pool to pass over if there is a healthy alternative, null
+         *          for none
+         * @returns pool to acquire from
+         */
+        Pool pick(Pool avoid) {
+            List<Pool> pools = this.pools;
+            if (pools.isEmpty()) {
+                throw new IllegalStateException("Pool removed: " + name);
+            }
+            if (pools.size() == 1) {
+                return pools.get(0);
+            }
+            long fastest = 0L;
+            for (Pool pool : pools) {
+                long latency = pool.health.getLatency();
+                if (latency > 0 && (fastest == 0 || latency < fastest) && pool.breaker.isAvailable()) {
+                    fastest = latency;
+                }
+            }
+            /// two healthy pools drawn at random in one pass (reservoir
+            /// sampling), so an acquire allocates nothing
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Pool first = null;
+            Pool second = null;
+            int healthy = 0;
+            boolean avoided = false;
+            for (Pool pool : pools) {
+                if (pool.health.check(fastest) || ! pool.breaker.isAvailable()) {
+                    continue;
+                }
+                if (pool == avoid) {
+                    avoided = true;
+                    continue;
+                }
+                ++healthy;
+                if (healthy == 1) {
+                    first = pool;
+                }
+                else if (healthy == 2) {
+                    second = pool;
+                }
+                else {
+                    int slot = random.nextInt(healthy);
+                    if (slot == 0) {
+                        first = pool;
+                    }
+                    else if (slot == 1) {
+                        second = pool;
+                    }
+                }
+            }
+            if (healthy == 0) {
+                /// all endpoints in trouble, spread the load anyway and let
+                /// the breakers decide
+                return avoided ? avoid : lessLoaded(pools);
+            }
+            if (second == null) {
+                return first;
+            }
+            /// a tie goes either way, not to the earlier endpoint
+            return random.nextBoolean() ? lessLoaded(first, second) : lessLoaded(second, first);
+        }
+
+        /**
+         * Less Loaded
+         *
+         * @params  candidate pools
+         * @returns the less loaded of two drawn at random
+         */
+        private Pool lessLoaded(List<Pool> candidates) {
+            int n = candidates.size();
+            if (n == 1) {
+                return candidates.get(0);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int i = random.nextInt(n);
+            int j = random.nextInt(n - 1);
+            if (j >= i) {
+                ++j;
+            }
+            return lessLoaded(candidates.get(i), candidates.get(j));
+        }
+
+        /**
+         * @params  pool
+         * @params  another pool
+         * @returns the less loaded of the two
+         */
+        private Pool lessLoaded(Pool a, Pool b) {
+            return load(b) < load(a) ? b : a;
+        }
+
+        /**
+         * @params  pool
+         * @returns acquires in flight relative to the pool's max size
+         */
+        private double load(Pool pool) {
+            return (double) pool.sizer.getDemand() / Math.max(pool.props.maxSize, 1);
+        }
+
+        /**
+         * Of
+         *
+         * @params  connection acquired from one of the pools
+         * @returns its pool
+         */
+        Pool of(Connection conn) {
+            List<Pool> pools = this.pools;
+            for (Pool pool : pools) {
+                if (pool.props == conn.props) {
+                    return pool;
+                }
+            }
+            for (Pool pool : retired) {
+                if (pool.props == conn.props) {
+                    return pool;
+                }
+            }
+            /// made by hand with the type's properties
+            return pools.isEmpty() ? retired.get(0) : pools.get(0);
+        }
+
+        /**
+         * Find
+         *
+         * @params  endpoint name
+         * @returns its pool, null if the endpoint is not in rotation
+         */
+        Pool find(String endpoint) {
+            for (Pool pool : pools) {
+                if (pool.endpoint.equals(endpoint)) {
+                    return pool;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Of
+         *
+         * @params  endpoint name
+         * @returns its pool
+         * @throws  IllegalArgumentException if the type has no such endpoint
+         */
+        Pool of(String endpoint) {
+            Pool pool = find(endpoint);
+            if (pool == null) {
+                throw new IllegalArgumentException("No endpoint " + endpoint + " for " + name);
+            }
+            return pool;
+        }
+
+        /**
+         * @returns names of the endpoints
+         */
+        List<String> endpoints() {
+            List<String> names = new ArrayList<String>(pools.size());
+            for (Pool pool : pools) {
+                names.add(pool.endpoint);
+            }
+            return names;
+        }
+
+        final String               name;
+        final ConnectionType       type;
+        /// replaced as a whole on reconfigure, as are the ones below
+        volatile List<Pool>        pools;
+        volatile List<Pool>        retired;
+        volatile boolean           removed;
+    }
+
+    /// by pool name, including removed pools until their connections
+    /// are closed; replaced as a whole on reconfigure
+    private volatile Map<String, Shards>          shards;
+    /// pool serving acquires by type
+    private volatile Map<ConnectionType, Shards>  byType;
+    private volatile PoolConfiguration            config;
+    private ConfigurationWatcher                  watcher;
+    private ExecutorService                       creator;
+    private MaintenanceScheduler                  scheduler;
+    private volatile boolean                      closed;
+    private Logger                                logger;
+    private static ConnectionPool                 instance = null;
+
+    /**
+     * Singleton Accessor
+     *
+     * @returns singleton instance
+     */
+    public static ConnectionPool getInstance() {
+        if (null == instance) {
+            instance = new ConnectionPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Initialize
+     *
+     * Calls init with the current configuration, see
+     * ConnectionConfiguration.current.
+     */
+    public void init() {
+        init(ConnectionConfiguration.current());
+    }
+
+    /**
+     * Initialize
+     *
+     * - Sets up logger and the background connection creator.
+     * - Creates the pools of every name and endpoint in parallel.
+     * - Registers their metrics with JMX.
+     * - Schedules the maintenance jobs.
+     * - Watches the configuration file, if it was loaded from one and
+     *   mq.watch_config is on.
+     *
+     * @params  validated configuration
+     */
+    public void init(PoolConfiguration config) {
+        logger = LoggerAdapter.getInstance().getLogger();
+        closed = false;
+        this.config = config;
+        /// platform threads: client libraries tend to block in monitors
+        /// while connecting, which would pin a virtual thread anyway
+        creator = TaskExecutors.create(TaskExecutors.Mode.PLATFORM, "ConnectionCreator");
+        BufferArena.shared().configure(config.arenaMaxRetained, config.arenaTrackLeaks);
+        Map<String, List<CompletableFuture<Pool>>> making =
+            new LinkedHashMap<String, List<CompletableFuture<Pool>>>();
+        for (String name : config.names()) {
+            List<CompletableFuture<Pool>> pools = new ArrayList<CompletableFuture<Pool>>();
+            for (ConnectionProperties props : config.endpoints(name)) {
+                pools.add(CompletableFuture.supplyAsync(() -> makePool(props), creator));
+            }
+            making.put(name, pools);
+        }
+        Map<String, Shards> all = new LinkedHashMap<String, Shards>();
+        for (Map.Entry<String, List<CompletableFuture<Pool>>> entry : making.entrySet()) {
+            List<Pool> pools = joinAll(entry.getValue());
+            ConnectionType type = pools.get(0).props.type;
+            all.put(entry.getKey(), new Shards(entry.getKey(), type, pools, List.of()));
+        }
+        shards = Collections.unmodifiableMap(all);
+        byType = byType(config, all);
+        scheduler = new MaintenanceScheduler(3, "PoolMaintenance");
+        for (Shards group : all.values()) {
+            for (Pool pool : group.pools) {
+                registerMetrics(group, pool);
+                schedule(pool);
+            }
+        }
+        Path location = ConnectionConfiguration.location();
+        if (config.watch && location != null) {
+            watcher = new ConfigurationWatcher(location, next -> {
+                ConnectionConfiguration.apply(next);
+                reconfigure(next);
+            });
+            watcher.start();
+        }
+    }
+
+    /**
+     * By Type
+     *
+     * @params  configuration
+     * @params  pools by name
+     * @returns pools serving acquires by type
+     */
+    private static Map<ConnectionType, Shards> byType(PoolConfiguration config,
+                                                      Map<String, Shards> all) {
+        Map<ConnectionType, Shards> byType = new EnumMap<ConnectionType, Shards>(ConnectionType.class);
+        for (ConnectionType type : ConnectionType.values()) {
+            String name = config.poolFor(type);
+            if (name != null && all.containsKey(name)) {
+                byType.put(type, all.get(name));
+            }
+        }
+        return Collections.unmodifiableMap(byType);
+    }
+
+    private static List<Pool> joinAll(List<CompletableFuture<Pool>> futures) {
+        List<Pool> pools = new ArrayList<Pool>(futures.size());
+        for (CompletableFuture<Pool> future : futures) {
+            pools.add(future.join());
+        }
+        return Collections.unmodifiableList(pools);
+    }
+
+    /**
+     * Register Metrics
+     *
+     * Registers the pool's metrics as mq:type=ConnectionPool,name=<type>
+     * (the pool name for pools not named after their type, and with
+     * ,endpoint=<endpoint> if the pool has several), replacing an earlier
+     * registration (after a re-init or reconfigure). Failure to register is
+     * logged but not fatal.
+     *
+     * @params  shards of the pool's type
+     * @params  pool whose metrics are registered
+     */
+    private void registerMetrics(Shards shards, Pool pool) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(shards, pool);
+            unregisterMetrics(pool);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(pool.metrics, name);
+            pool.objectName = name;
+        }
+        catch (Exception ex) {
+            String s = "Failed to register metrics for pool: " + pool;
+            Utilities.logException(ex, s);
+        }
+    }
+
+    /**
+     * Object Name
+     *
+     * @params  shards of the pool's type
+     * @params  pool
+     * @returns JMX name of the pool's metrics
+     */
+    private static ObjectName objectName(Shards shards, Pool pool) throws Exception {
+        String label = shards.name.equalsIgnoreCase(shards.type.name())
+            ? shards.type.name() : ObjectName.quote(shards.name);
+        String name = "mq:type=ConnectionPool,name=" + label;
+        if (shards.pools.size() > 1) {
+            name += ",endpoint=" + ObjectName.quote(pool.endpoint);
+        }
+        return new ObjectName(name);
+    }
+
+    /**
+     * Endpoints
+     *
+     * @params  connection type
+     * @returns names of the endpoints serving that type
+     */
+    public List<String> endpoints(ConnectionType type) {
+        return shardsFor(type).endpoints();
+    }
+
+    /**
+     * Pick
+     *
+     * Chooses the endpoint the next acquire of a type should go to, for
+     * callers which need to know it up front, see Shards.
+     *
+     * @params  connection type
+     * @returns endpoint name
+     */
+    public String pick(ConnectionType type) {
+        return shardsFor(type).pick(null).endpoint;
+    }
+
+    /**
+     * Pick
+     *
+     * @params  connection type
+     * @params  endpoint to pass over if there is a healthy alternative
+     * @returns endpoint name
+     */
+    public String pick(ConnectionType type, String avoid) {
+        Shards shards = shardsFor(type);
+        return shards.pick(shards.find(avoid)).endpoint;
+    }
+
+    /**
+     * Metrics
+     *
+     * @params  connection type
+     * @params  endpoint name
+     * @returns live metrics of that endpoint's pool
+     */
+    public PoolMetrics metrics(ConnectionType type, String endpoint) {
+        return shardsFor(type).of(endpoint).metrics;
+    }
+
+    /**
+     * Metrics
+     *
+     * @params  pooled connection
+     * @returns live metrics of its pool
+     */
+    public PoolMetrics metrics(Connection conn) {
+        return poolOf(conn).metrics;
+    }
+
+    /**
+     * Retry Policy
+     *
+     * @params  pooled connection
+     * @returns how dispatches through its pool are retried
+     */
+    public RetryPolicy retryPolicy(Connection conn) {
+        return poolOf(conn).retry;
+    }
+
+    /**
+     * Breaker
+     *
+     * @params  connection type
+     * @params  endpoint name
+     * @returns circuit breaker guarding dispatches to that endpoint
+     */
+    public CircuitBreaker breaker(ConnectionType type, String endpoint) {
+        return shardsFor(type).of(endpoint).breaker;
+    }
+
+    /**
+     * Breaker
+     *
+     * @params  pooled connection
+     * @returns circuit breaker guarding dispatches through its pool
+     */
+    public CircuitBreaker breaker(Connection conn) {
+        return poolOf(conn).breaker;
+    }
+
+    /**
+     * Hedge Policy
+     *
+     * @params  connection type
+     * @params  endpoint name
+     * @returns when request/replies to that endpoint are hedged
+     */
+    public HedgePolicy hedgePolicy(ConnectionType type, String endpoint) {
+        return shardsFor(type).of(endpoint).hedge;
+    }
+
+    /**
+     * Succeeded
+     *
+     * Reports a dispatch which went through to the breaker and the health
+     * of the connection's endpoint.
+     *
+     * @params  connection dispatched on
+     * @params  System.nanoTime() when the dispatch started
+     */
+    public void succeeded(Connection conn, long startNanos) {
+        Pool pool = poolOf(conn);
+        pool.breaker.onSuccess();
+        pool.health.succeeded(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Failed
+     *
+     * Reports a failed dispatch to the breaker and the health of the
+     * connection's endpoint.
+     *
+     * @params  connection dispatched on
+     */
+    public void failed(Connection conn) {
+        Pool pool = poolOf(conn);
+        pool.breaker.onFailure();
+        pool.health.failed();
+    }
+
+    /**
+     * Snapshot
+     *
+     * @params  connection type
+     * @returns copy of the current metrics of its pools, added up
+     */
+    public PoolMetrics.Snapshot snapshot(ConnectionType type) {
+        return snapshot(shardsFor(type));
+    }
+
+    private static PoolMetrics.Snapshot snapshot(Shards shards) {
+        if (shards.pools.size() == 1) {
+            return shards.pools.get(0).metrics.snapshot();
+        }
+        List<PoolMetrics.Snapshot> snapshots = new ArrayList<PoolMetrics.Snapshot>();
+        for (Pool pool : shards.pools) {
+            snapshots.add(pool.metrics.snapshot());
+        }
+        return PoolMetrics.Snapshot.combine(snapshots);
+    }
+
+    /**
+     * Snapshot
+     *
+     * @params  connection type
+     * @params  endpoint name
+     * @returns copy of the current metrics of that endpoint's pool
+     */
+    public PoolMetrics.Snapshot snapshot(ConnectionType type, String endpoint) {
+        return shardsFor(type).of(endpoint).metrics.snapshot();
+    }
+
+    /**
+     * Schedule
+     *
+     * Schedules, for the pool:
+     * - resizing (and eviction) every eviction period,
+     * - the health check of idle connections every health check period,
+     * - logging its metrics every metrics period (if not zero).
+     *
+     * @params  pool to maintain
+     */
+    private void schedule(Pool pool) {
+        PoolConfiguration config = this.config;
+        List<ScheduledFuture<?>> jobs = new ArrayList<ScheduledFuture<?>>();
+        jobs.add(scheduler.schedule("resize " + pool.name,
+            () -> resize(pool), config.evictionPeriod));
+        jobs.add(scheduler.schedule("health check " + pool.name,
+            () -> validateIdle(pool), config.healthCheckPeriod));
+        jobs.add(scheduler.schedule("metrics " + pool.name,
+            () -> logger.info(pool.metrics.snapshot().toString()), config.metricsPeriod));
+        pool.jobs = jobs;
+    }
+
+    /**
+     * Unschedule
+     *
+     * Cancels the pool's maintenance jobs, letting a running one finish.
+     *
+     * @params  pool
+     */
+    private void unschedule(Pool pool) {
+        for (ScheduledFuture<?> job : pool.jobs) {
+            if (job != null) {
+                job.cancel(false);
+            }
+        }
+        pool.jobs = List.of();
+    }
+
+    /**
+     * Reconfigure
+     *
+     * Applies a new configuration to the running pools, without touching
+     * connections which are still good for it:
+     * - Sizes, timeouts, retries, breaker, hedging, codecs and the other
+     *   settings of an endpoint are updated in place; connections see them
+     *   on their next use. A pool is then fitted to its new min and max
+     *   sizes, see fit.
+     * - An endpoint whose queue manager, channel, queues or credentials
+     *   changed closes its idle connections, and those in use as they are
+     *   released; new ones reach the new destination.
+     * - New endpoints and pools are created (connections are made in the
+     *   background), removed ones stop taking acquires and close down as
+     *   their connections are released.
+     * - Changed maintenance periods are rescheduled, the sizer, health and
+     *   buffer arena settings updated.
+     * The type of a pool cannot change while running; such a pool keeps its
+     * old settings, as it would with a file failing to validate.
+     *
+     * @params  validated configuration
+     */
+    public synchronized void reconfigure(PoolConfiguration next) {
+        if (closed) {
+            return;
+        }
+        PoolConfiguration previous = config;
+        config = next;
+        boolean periods = previous.evictionPeriod != next.evictionPeriod
+            || previous.healthCheckPeriod != next.healthCheckPeriod
+            || previous.metricsPeriod != next.metricsPeriod;
+
+        Map<String, Shards> all = new LinkedHashMap<String, Shards>(shards);
+        for (String name : next.names()) {
+            List<ConnectionProperties> wanted = next.endpoints(name);
+            ConnectionType type = wanted.get(0).type;
+            Shards group = all.get(name);
+            if (group != null && ! group.removed && group.type != type) {
+                logger.warning("Pool " + name + " cannot change from " + group.type
+                    + " to " + type + " while running, keeping its settings");
+                continue;
+            }
+            if (group == null || group.removed) {
+                List<Pool> closing = group == null ? List.of() : group.retired;
+                group = new Shards(name, type, List.of(), closing);
+                all.put(name, group);
+                logger.info("Adding pool: " + name);
+            }
+            update(group, wanted);
+        }
+        for (Shards group : all.values()) {
+            if (! group.removed && ! next.names().contains(group.name)) {
+                logger.info("Removing pool: " + group.name);
+                List<Pool> closing = new ArrayList<Pool>(group.retired);
+                for (Pool pool : group.pools) {
+                    withdraw(pool);
+                    closing.add(pool);
+                }
+                group.retired = closing;
+                group.pools = List.of();
+                group.removed = true;
+            }
+        }
+        /// forget what has finished closing
+        for (Shards group : new ArrayList<Shards>(all.values())) {
+            List<Pool> closing = new ArrayList<Pool>();
+            for (Pool pool : group.retired) {
+                if (pool.bag.size() > 0) {
+                    closing.add(pool);
+                }
+            }
+            group.retired = closing;
+            if (group.removed && closing.isEmpty()) {
+                all.remove(group.name);
+            }
+        }
+        shards = Collections.unmodifiableMap(all);
+        byType = byType(next, all);
+        BufferArena.shared().configure(next.arenaMaxRetained, next.arenaTrackLeaks);
+
+        for (Pool pool : pools()) {
+            pool.sizer.configure(next.demandAlpha, next.headroom, next.shrinkFraction);
+            pool.health.configure(next.shardErrorThreshold, next.shardLatencyFactor,
+                next.shardHealthWindow);
+            if (periods) {
+                unschedule(pool);
+                schedule(pool);
+            }
+        }
+        logger.info("Connection pools reconfigured: " + next.names());
+    }
+
+    /**
+     * Update
+     *
+     * Brings the endpoints of a pool in line with the configuration.
+     *
+     * @params  pool
+     * @params  properties of the endpoints it should have
+     */
+    private void update(Shards group, List<ConnectionProperties> wanted) {
+        List<Pool> pools = new ArrayList<Pool>();
+        boolean changed = false;
+        for (ConnectionProperties props : wanted) {
+            Pool pool = group.find(props.endpoint != null ? props.endpoint : props.manager);
+            if (pool == null) {
+                pool = new Pool(props, config);
+                schedule(pool);
+                fit(pool);
+                changed = true;
+                logger.info("Adding endpoint: " + pool.name);
+            }
+            else {
+                update(pool, props);
+            }
+            pools.add(pool);
+        }
+        List<Pool> closing = new ArrayList<Pool>(group.retired);
+        for (Pool pool : group.pools) {
+            if (! pools.contains(pool)) {
+                withdraw(pool);
+                closing.add(pool);
+                changed = true;
+            }
+        }
+        group.retired = closing;
+        group.pools = Collections.unmodifiableList(pools);
+        if (changed) {
+            for (Pool pool : pools) {
+                registerMetrics(group, pool);
+            }
+        }
+    }
+
+    /**
+     * Update
+     *
+     * Updates the settings of one endpoint in place, see reconfigure.
+     *
+     * @params  pool of the endpoint
+     * @params  its new properties
+     */
+    private void update(Pool pool, ConnectionProperties props) {
+        boolean moved = ! pool.props.sameDestination(props);
+        pool.props.assign(props);
+        pool.retry = RetryPolicy.of(pool.props);
+        pool.breaker.configure(props.breakerThreshold, props.breakerOpenTime);
+        pool.hedge = new HedgePolicy(props.hedgePercentile, props.hedgeMinSamples,
+            pool.metrics.replyLatency());
+        if (moved) {
+            logger.info("Endpoint moved, replacing its connections: " + pool.name);
+            ++pool.generation;
+            closeIdle(pool);
+            ReplyDemultiplexer.reconnect(pool.props);
+        }
+        fit(pool);
+    }
+
+    /**
+     * Fit
+     *
+     * Fits a pool to its (new) size limits:
+     * - Below the min size, connections are created in the background.
+     * - Above the max size, idle connections are closed, longest idle
+     *   first; connections in use are closed as they are released.
+     * - Callers kept waiting by a lower max size get new connections.
+     *
+     * @params  pool
+     */
+    private void fit(Pool pool) {
+        int total = pool.bag.size();
+        for (int i = total; i < pool.props.minSize; ++i) {
+            if (! pool.bag.reserveCapacity(pool.props.minSize)) {
+                break;
+            }
+            createInBackground(pool, false);
+        }
+        int excess = total - pool.props.maxSize;
+        if (excess > 0) {
+            List<Connection> idle = longestIdleFirst(pool.bag.idleConnections());
+            List<Connection> victims = new ArrayList<Connection>();
+            for (Connection conn : idle) {
+                if (excess <= 0) {
+                    break;
+                }
+                if (pool.bag.reserve(conn)) {
+                    pool.bag.remove(conn);
+                    pool.metrics.evicted();
+                    victims.add(conn);
+                    --excess;
+                }
+            }
+            disposeAll(pool, victims);
+        }
+        for (int i = pool.bag.waiting(); i > 0; --i) {
+            if (! pool.bag.reserveCapacity(pool.props.maxSize)) {
+                break;
+            }
+            createInBackground(pool, true);
+        }
+    }
+
+    /**
+     * Longest Idle First
+     *
+     * Threads using the connections keep rewriting their timestamps, so
+     * they are sorted on a snapshot of them: sorting on the live values
+     * could see an order which contradicts itself, and fail.
+     *
+     * @params  idle connections
+     * @returns them ordered by last use, oldest first
+     */
+    private static List<Connection> longestIdleFirst(List<Connection> idle) {
+        List<Map.Entry<Long, Connection>> keyed = new ArrayList<Map.Entry<Long, Connection>>(idle.size());
+        for (Connection conn : idle) {
+            Timestamp timestamp = conn.timestamp;
+            keyed.add(Map.entry(timestamp == null ? Long.MIN_VALUE : timestamp.getTime(), conn));
+        }
+        keyed.sort(Map.Entry.comparingByKey());
+        List<Connection> sorted = new ArrayList<Connection>(keyed.size());
+        for (Map.Entry<Long, Connection> entry : keyed) {
+            sorted.add(entry.getValue());
+        }
+        return sorted;
+    }
 
     /**
-     * Singleton Accessor
+     * Close Idle
      *
-     * @returns singleton instance
+     * @params  pool whose idle connections are closed, in parallel
+     * @returns future completed once they are
      */
-    public static ConnectionPool getInstance() {
-        if (null == instance) {
-            instance = new ConnectionPool();
+    private CompletableFuture<Void> closeIdle(Pool pool) {
+        List<Connection> victims = new ArrayList<Connection>();
+        for (Connection conn : pool.bag.idleConnections()) {
+            if (pool.bag.reserve(conn)) {
+                pool.bag.remove(conn);
+                victims.add(conn);
+            }
         }
-        return instance;
+        return disposeAll(pool, victims);
     }
 
     /**
-     * Initialize
+     * Withdraw
+     *
+     * Takes a pool out of rotation: its jobs stop, its waiters fail, its
+     * idle connections are closed and the others as they are released.
      *
-     * - Sets up logger.
-     * - Creates the three pools.
-     * - Initializes timers
+     * @params  pool dropped from the configuration
      */
-    public void init() {
-        logger = LoggerAdapter.getInstance().getLogger();
-        readPool = makePool(ConnectionConfiguration.readProps);
-        writePool = makePool(ConnectionConfiguration.writeProps);
-        bulkPool = makePool(ConnectionConfiguration.bulkProps);
-        initTimers();
+    private void withdraw(Pool pool) {
+        logger.info("Removing endpoint: " + pool.name);
+        pool.retired = true;
+        unschedule(pool);
+        unregisterMetrics(pool);
+        IllegalStateException ise = new IllegalStateException("Endpoint removed: " + pool.name);
+        while (pool.bag.fail(ise)) {
+        }
+        closeIdle(pool);
+    }
+
+    /**
+     * Shutdown
+     *
+     * - Stops the maintenance jobs.
+     * - Fails anybody waiting for a connection; later acquires fail too.
+     * - Closes idle connections in parallel; connections in use are closed
+     *   as they are released.
+     * - Stops the reply demultiplexers and unregisters the metrics.
+     *
+     * @params  maximum time to wait for running jobs and closes, in millis
+     */
+    public void shutdown(long timeout) {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+        synchronized (this) {
+            closed = true;
+        }
+        scheduler.shutdown(timeout);
+        List<CompletableFuture<Void>> closing = new ArrayList<CompletableFuture<Void>>();
+        for (Pool pool : allPools()) {
+            IllegalStateException ise = new IllegalStateException("Connection pool shut down: " + pool.name);
+            while (pool.bag.fail(ise)) {
+            }
+            closing.add(closeIdle(pool));
+        }
+        try {
+            CompletableFuture.allOf(closing.toArray(new CompletableFuture<?>[0]))
+                .get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (Exception ex) {
+            String s = "Connections still closing after shutdown timeout";
+            Utilities.logException(ex, s);
+        }
+        ReplyDemultiplexer.shutdownAll();
+        creator.shutdown();
+        unregisterMetrics();
+    }
+
+    /**
+     * Unregister Metrics
+     */
+    private void unregisterMetrics() {
+        for (Pool pool : allPools()) {
+            unregisterMetrics(pool);
+        }
     }
 
     /**
-     * Initialize Timer
+     * Unregister Metrics
      *
-     * Only one timer at this point - the connection eviction timer
+     * @params  pool whose metrics are unregistered, if they are
      */
-    private void initTimers() {
-        overMinimumThreshold = ConnectionConfiguration.overMinimumThreshold;
-        evictionTask = new TimerTask() {
-            public void run() {
-                evict();
+    private void unregisterMetrics(Pool pool) {
+        ObjectName name = pool.objectName;
+        if (name == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
             }
-        };
-        evictionTimer = new Timer("EvictionTimer");
-        long period = ConnectionConfiguration.evictionPeriod;
-        evictionTimer.schedule(evictionTask, period, period);
+            pool.objectName = null;
+        }
+        catch (Exception ex) {
+            String s = "Failed to unregister metrics for pool: " + pool;
+            Utilities.logException(ex, s);
+        }
+    }
+
+    /**
+     * Pools
+     *
+     * @returns the pools of every name and endpoint in rotation
+     */
+    private List<Pool> pools() {
+        List<Pool> pools = new ArrayList<Pool>();
+        for (Shards group : shards.values()) {
+            pools.addAll(group.pools);
+        }
+        return pools;
+    }
+
+    /**
+     * All Pools
+     *
+     * @returns the pools in rotation and those still closing
+     */
+    private List<Pool> allPools() {
+        List<Pool> pools = pools();
+        for (Shards group : shards.values()) {
+            pools.addAll(group.retired);
+        }
+        return pools;
     }
 
     /**
      * Make Pool
      *
-     * Create a pool and add connections upto the minimum size
+     * Create a pool and add connections upto the minimum size, creating
+     * them in parallel. A connection which cannot be made is logged and
+     * left to be created on demand later.
      *
      * @params  connection pool properties
      * @returns constructed pool
      */
-    private LockedPool makePool(ConnectionProperties props) {
-        LockedPool pool = new LockedPool(props);
+    private Pool makePool(ConnectionProperties props) {
+        Pool pool = new Pool(props, config);
+        List<CompletableFuture<Void>> created = new ArrayList<CompletableFuture<Void>>();
         for (int i = 0; i < props.minSize; ++i) {
-            Connection conn = new Connection(props);
-            conn.init();
-            pool.available.offer(conn);
+            if (pool.bag.reserveCapacity(props.maxSize)) {
+                created.add(createInBackground(pool, false));
+            }
         }
+        CompletableFuture.allOf(created.toArray(new CompletableFuture<?>[0])).join();
         return pool;
     }
 
     /**
      * Acquire
      *
-     * Calls acquireFrom for the supplied pool type.
+     * Waits as long as it takes for a connection of the supplied type.
      *
      * @params  connection type
      * @returns acquired connection
      */
     public Connection acquire(ConnectionType type) throws Exception {
-      if (type == ConnectionType.Read) {
-        return acquireFrom(readPool);
-      }
-      else if (type == ConnectionType.Write) {
-        return acquireFrom(writePool);
-      }
-      else {
-        return acquireFrom(bulkPool);
-      }
+        return acquire(type, 0);
+    }
+
+    /**
+     * Acquire
+     *
+     * Calls acquireFrom for the pool of the endpoint picked for the type.
+     *
+     * @params  connection type
+     * @params  maximum time to wait in millis, zero to wait indefinitely
+     * @returns acquired connection
+     * @throws  PoolTimeoutException if the pool stayed full for the timeout
+     */
+    public Connection acquire(ConnectionType type, long timeout) throws Exception {
+        return acquireFrom(shardsFor(type).pick(null), timeout);
+    }
+
+    /**
+     * Acquire
+     *
+     * Calls acquireFrom for the pool of the given endpoint.
+     *
+     * @params  connection type
+     * @params  endpoint name, see pick
+     * @params  maximum time to wait in millis, zero to wait indefinitely
+     * @returns acquired connection
+     * @throws  PoolTimeoutException if the pool stayed full for the timeout
+     */
+    public Connection acquire(ConnectionType type, String endpoint, long timeout) throws Exception {
+        return acquireFrom(shardsFor(type).of(endpoint), timeout);
+    }
+
+    /**
+     * Acquire Asynchronously
+     *
+     * Does not block while the pool is full; the future completes once a
+     * connection is released to this caller, in arrival order.
+     *
+     * @params  connection type
+     * @returns future completed with the acquired connection
+     */
+    public CompletableFuture<Connection> acquireAsync(ConnectionType type) {
+        return acquireAsyncFrom(shardsFor(type).pick(null));
+    }
+
+    /**
+     * Acquire Asynchronously
+     *
+     * As above but the future fails with a PoolTimeoutException if no
+     * connection was handed over within the timeout.
+     *
+     * @params  connection type
+     * @params  maximum time to wait in millis
+     * @returns future completed with the acquired connection
+     */
+    public CompletableFuture<Connection> acquireAsync(ConnectionType type, long timeout) {
+        CompletableFuture<Connection> future = acquireAsyncFrom(shardsFor(type).pick(null));
+        if (! future.isDone()) {
+            PoolTimeoutException pte = new PoolTimeoutException(type, timeout);
+            CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS)
+                .execute(() -> future.completeExceptionally(pte));
+        }
+        return future;
+    }
+
+    /**
+     * Pool Names
+     *
+     * @returns names of the configured pools
+     */
+    public List<String> poolNames() {
+        List<String> names = new ArrayList<String>();
+        for (Shards group : shards.values()) {
+            if (! group.removed) {
+                names.add(group.name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Acquire
+     *
+     * As acquire by type, from a named pool, see PoolConfiguration.
+     *
+     * @params  pool name
+     * @params  maximum time to wait in millis, zero to wait indefinitely
+     * @returns acquired connection
+     * @throws  IllegalArgumentException if there is no such pool
+     * @throws  PoolTimeoutException if the pool stayed full for the timeout
+     */
+    public Connection acquire(String pool, long timeout) throws Exception {
+        return acquireFrom(shardsFor(pool).pick(null), timeout);
+    }
+
+    /**
+     * Acquire Asynchronously
+     *
+     * @params  pool name
+     * @returns future completed with the acquired connection
+     * @throws  IllegalArgumentException if there is no such pool
+     */
+    public CompletableFuture<Connection> acquireAsync(String pool) {
+        return acquireAsyncFrom(shardsFor(pool).pick(null));
+    }
+
+    /**
+     * Snapshot
+     *
+     * @params  pool name
+     * @returns copy of the current metrics of its endpoints, added up
+     * @throws  IllegalArgumentException if there is no such pool
+     */
+    public PoolMetrics.Snapshot snapshot(String pool) {
+        return snapshot(shardsFor(pool));
+    }
+
+    /**
+     * Shards For
+     *
+     * @params  connection type
+     * @returns the pools serving that type
+     * @throws  IllegalStateException if no pool serves it
+     */
+    private Shards shardsFor(ConnectionType type) {
+        Shards shards = byType.get(type);
+        if (shards == null) {
+            throw new IllegalStateException("No pool configured for " + type);
+        }
+        return shards;
+    }
+
+    /**
+     * Shards For
+     *
+     * @params  pool name
+     * @returns the pools of its endpoints
+     * @throws  IllegalArgumentException if there is no such pool
+     */
+    private Shards shardsFor(String name) {
+        Shards shards = this.shards.get(name);
+        if (shards == null || shards.removed) {
+            throw new IllegalArgumentException("No pool named " + name);
+        }
+        return shards;
+    }
+
+    /**
+     * Pool Of
+     *
+     * @params  pooled connection
+     * @returns the pool it was acquired from
+     */
+    private Pool poolOf(Connection conn) {
+        Shards shards = conn.props.pool == null ? null : this.shards.get(conn.props.pool);
+        if (shards == null) {
+            shards = shardsFor(conn.props.type);
+        }
+        return shards.of(conn);
     }
 
     /**
      * Acquire From
      *
-     * Thin wrapper to call lockedAcquire; eases the code in the main
-     * work function
+     * Waits on acquireAsyncFrom for at most the timeout. On a timeout the
+     * wait is withdrawn from the queue; should a connection have been handed
+     * over at that very moment it is returned instead.
      *
      * @params  pool being acquired from
+     * @params  maximum time to wait in millis, zero to wait indefinitely
      */
-    private Connection acquireFrom(LockedPool pool) throws Exception {
+    private Connection acquireFrom(Pool pool, long timeout) throws Exception {
+        CompletableFuture<Connection> future = acquireAsyncFrom(pool);
         try {
-            synchronized (pool.lock) {
-                return lockedAcquire(pool);
+            if (timeout > 0) {
+                return future.get(timeout, TimeUnit.MILLISECONDS);
             }
-        } catch (Exception e) {
+            return future.get();
+        }
+        catch (TimeoutException te) {
+            PoolTimeoutException pte = new PoolTimeoutException(pool.props.type, timeout);
+            if (future.completeExceptionally(pte)) {
+                logger.warning(pte.getMessage() + " " + pool);
+                throw pte;
+            }
+            return future.join();
+        }
+        catch (InterruptedException ie) {
+            if (! future.cancel(false) && ! future.isCompletedExceptionally()) {
+                releaseTo(future.join(), pool);
+            }
+            String s = "Interrupted waiting on pool: " + pool;
+            Utilities.logException(ie, s);
+            throw ie;
+        }
+        catch (ExecutionException ee) {
+            Exception e = ee.getCause() instanceof Exception
+                ? (Exception) ee.getCause() : ee;
             String s = "Failed to acquire connection from pool: " + pool;
             Utilities.logException(e, s);
             throw e;
@@ -181,50 +1288,203 @@ public class ConnectionPool {
     }
 
     /**
-     * Locked Acquire
+     * Acquire Asynchronously From
      *
-     * - Acquires from available pool if not empty.
-     * - Else creates a new connection and adds to in-use pool *if* the
-     *   in-Use pool size is less than the max size (these are the total
-     *   number of connections at thi point)
-     * - The pool is full, waits for a connection to arrive in the available
-     *   pool and acquires it.
+     * - Borrows an available connection without blocking, topping up the
+     *   idle connections to the low water mark in the background.
+     * - Else joins the FIFO queue of waiters, and if the total number of
+     *   connections is less than the max size has a new one created in the
+     *   background. The waiter gets whichever connection comes first, so a
+     *   slow connect does not hold it up once another one is released.
      *
      * @params  pool being acquired from
+     * @returns future completed with the acquired connection
      */
-    private Connection lockedAcquire(LockedPool pool) throws InterruptedException {
-        logger.info("Acquiring from -> " + pool);
+    private CompletableFuture<Connection> acquireAsyncFrom(Pool pool) {
 
-        /// there is an available connection, use it
-        if (! pool.available.isEmpty()) {
-            Connection conn = pool.available.poll();
-            pool.inUse.offer(conn);
-            return conn;
+        if (closed) {
+            String s = "Connection pool shut down: " + pool.props.type;
+            return CompletableFuture.failedFuture(new IllegalStateException(s));
         }
-        /// we can still create a new connection and return that
-        else if (pool.inUse.size() < pool.props.maxSize) {
-            Connection conn = new Connection(pool.props);
-            conn.init();
-            pool.inUse.offer(conn);
-            return conn;
+        long start = System.nanoTime();
+        pool.sizer.enter();
+
+        /// there is an available (and valid) connection, use it
+        Connection conn = borrowValid(pool);
+        if (conn != null) {
+            pool.metrics.acquired(start);
+            prewarm(pool);
+            return CompletableFuture.completedFuture(conn);
         }
-        /// the connection pool is empty, wait for an available connection
-        else {
-            while (pool.available.isEmpty()) {
-                try {
-                    logger.info("Pool empty: " + pool);
-                    pool.lock.wait();
-                }
-                catch (InterruptedException e) {
-                    String s = "Interrupted waiting on pool: " + pool;
-                    Utilities.logException(e, s);
-                    throw e;
+        /// nothing idle, wait for a released connection or, while we can
+        /// still grow, for a new one (queued first so it is handed to us)
+        boolean grow = pool.bag.reserveCapacity(pool.props.maxSize);
+        logger.fine(() -> "Pool empty: " + pool);
+        pool.metrics.waiting();
+        CompletableFuture<Connection> future = pool.bag.enqueue();
+        future.whenComplete((c, ex) -> {
+            if (ex == null) {
+                pool.metrics.waited(start);
+                return;
+            }
+            pool.sizer.exit();
+            if (ex instanceof PoolTimeoutException) {
+                pool.metrics.timedOut();
+            }
+        });
+        if (grow) {
+            createInBackground(pool, true);
+        }
+        return future;
+    }
+
+    /**
+     * Borrow Valid
+     *
+     * Borrows an idle connection and tests it before handing it out;
+     * connections failing the test are retired and the next one is tried.
+     *
+     * @params  pool being borrowed from
+     * @returns borrowed connection, null if none is idle
+     */
+    private Connection borrowValid(Pool pool) {
+        for (;;) {
+            Connection conn = pool.bag.borrow();
+            if (conn == null || isUsable(pool, conn)) {
+                return conn;
+            }
+            pool.bag.remove(conn);
+            retire(pool, conn);
+        }
+    }
+
+    /**
+     * Is Usable
+     *
+     * - Past its max lifetime a connection is not.
+     * - Used or probed within the validation interval it is, unless it is
+     *   suspect after a failure.
+     * - Otherwise it is probed, see Connection.validate.
+     *
+     * @params  pool of the connection
+     * @params  connection, claimed by the caller
+     * @returns true if the connection may be handed out
+     */
+    private boolean isUsable(Pool pool, Connection conn) {
+        long now = System.currentTimeMillis();
+        if (conn.isExpired(now)) {
+            pool.metrics.expired();
+            return false;
+        }
+        /// made for where the endpoint used to be
+        if (conn.generation != pool.generation) {
+            return false;
+        }
+        long interval = pool.props.validationInterval;
+        if (! conn.suspect && (interval <= 0 || now - conn.lastActive() < interval)) {
+            return true;
+        }
+        pool.metrics.validated();
+        if (conn.validate()) {
+            return true;
+        }
+        pool.metrics.validationFailed();
+        return false;
+    }
+
+    /**
+     * Retire
+     *
+     * Disposes of a connection already removed from the bag on the creator,
+     * so closing a possibly dead socket does not hold up the caller.
+     *
+     * @params  pool the connection was removed from
+     * @params  connection to dispose of
+     */
+    private void retire(Pool pool, Connection conn) {
+        logger.info(() -> "Retiring connection -> " + conn);
+        pool.metrics.disposed();
+        creator.execute(conn::dispose);
+    }
+
+    /**
+     * Prewarm
+     *
+     * Tops up the idle connections to the pool's low water mark in the
+     * background. Skipped while earlier creations are still in progress, so
+     * the idle count is only read when it can lead to anything.
+     *
+     * @params  pool to top up
+     */
+    private void prewarm(Pool pool) {
+        int lowWater = pool.props.lowWater;
+        if (lowWater <= 0 || pool.creating.get() > 0) {
+            return;
+        }
+        int idle = pool.bag.count(ConnectionBag.NOT_IN_USE);
+        for (int i = idle; i < lowWater; ++i) {
+            if (! pool.bag.reserveCapacity(pool.props.maxSize)) {
+                break;
+            }
+            createInBackground(pool, false);
+        }
+    }
+
+    /**
+     * Create in Background
+     *
+     * Creates a connection, for which capacity has already been reserved,
+     * on the creator and adds it to the bag, which hands it to the oldest
+     * waiter if there is one.
+     *
+     * @params  pool the connection is created for
+     * @params  true if created for a waiter, which then fails along with
+     *          the creation rather than wait for its timeout
+     * @returns future completed once the connection was added or failed
+     */
+    private CompletableFuture<Void> createInBackground(Pool pool, boolean forWaiter) {
+        pool.creating.incrementAndGet();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                pool.bag.add(create(pool), false);
+            }
+            catch (JMSException | RuntimeException ex) {
+                String s = "Failed to create connection for pool: " + pool;
+                Utilities.logException(ex, s);
+                if (forWaiter) {
+                    pool.bag.fail(ex);
                 }
             }
-            Connection conn = pool.available.poll();
-            pool.inUse.offer(conn);
+            finally {
+                pool.creating.decrementAndGet();
+            }
+        }, creator);
+    }
+
+    /**
+     * Create
+     *
+     * Creates and initializes a connection for which capacity has already
+     * been reserved in the bag. The reservation is given back on failure.
+     *
+     * @params  pool the connection is created for
+     * @returns initialized connection
+     * @throws  JMSException if the queue manager cannot be reached
+     */
+    private Connection create(Pool pool) throws JMSException {
+        try {
+            Connection conn = new Connection(pool.props);
+            conn.generation = pool.generation;
+            conn.init();
+            pool.metrics.created();
             return conn;
         }
+        catch (JMSException | RuntimeException ex) {
+            pool.bag.unreserveCapacity();
+            pool.metrics.createFailed();
+            pool.health.failed();
+            throw ex;
+        }
     }
 
     /**
@@ -232,18 +1492,14 @@ public class ConnectionPool {
      *
      * Calls releaseTo to release connection to appropriate pool.
      *
-     * @params  connection being released
+     * @params  connection being released, null for none (after a failed
+     *          disposeAcquire for instance)
      */
     public void release(Connection conn) {
-        if (conn.props.type == ConnectionType.Read) {
-            releaseTo(conn, readPool);
-        }
-        else if (conn.props.type == ConnectionType.Write) {
-            releaseTo(conn, writePool);
-        }
-        else if (conn.props.type == ConnectionType.Bulk) {
-            releaseTo(conn, bulkPool);
+        if (conn == null) {
+            return;
         }
+        releaseTo(conn, poolOf(conn));
     }
 
     /**
@@ -252,125 +1508,252 @@ public class ConnectionPool {
      * Dispose the supplied connection and acquire a new one.
      *
      * @params  connection being disposed of
+     * @returns new connection, null if none could be acquired
      */
     public Connection disposeAcquire(Connection conn) {
-        if (conn.props.type == ConnectionType.Read) {
-            return lockedDisposeAcquire(conn, readPool);
-        }
-        else if (conn.props.type == ConnectionType.Write) {
-            return lockedDisposeAcquire(conn, writePool);
-        }
-        else {
-            return lockedDisposeAcquire(conn, bulkPool);
-        }
+        return disposeAcquireFrom(conn, poolOf(conn));
+    }
+
+    /**
+     * Fail Over
+     *
+     * Dispose the supplied connection and acquire a new one, preferably
+     * from another endpoint of the type, so a retried send does not go back
+     * to the queue manager which just failed. Not for receives: the reply
+     * waits on the queue manager it was sent to.
+     *
+     * @params  connection being disposed of
+     * @returns new connection, null if none could be acquired
+     */
+    public Connection failover(Connection conn) {
+        Pool pool = poolOf(conn);
+        return disposeAcquireFrom(conn, pool, shardsFor(conn.props.type).pick(pool));
     }
 
     /**
-     * Locked Dispose and Acquire
+     * Dispose and Acquire From
      *
-     * - Locks the supplied pool.
-     * - Disposes the passed connection.
-     * - Removes it from the inUse pool.
+     * - Removes the passed connection from the pool.
+     * - Disposes of it.
      * - Acquires a new connection.
-     * - Adds it to the inUse pool.
+     * The passed connection is disposed of either way, so it is never
+     * handed back in place of a new one.
      *
      * @params   connection being disposed of
      * @params   relevant pool
-     * @returns  new connection [on failure the original one]
+     * @returns  new connection, null if none could be acquired
      */
-    public Connection lockedDisposeAcquire(Connection conn, LockedPool pool) {
-        Connection incarnated = conn;
-        synchronized (pool.lock) {
-            try {
-                conn.dispose();
-                pool.inUse.remove(conn);
-                incarnated = lockedAcquire(pool);
-                incarnated.timestamp = conn.timestamp;
-            }
-            catch (Exception ex) {
-            }
+    public Connection disposeAcquireFrom(Connection conn, Pool pool) {
+        return disposeAcquireFrom(conn, pool, pool);
+    }
+
+    /**
+     * Dispose and Acquire From
+     *
+     * As above, with the new connection acquired from the given pool.
+     *
+     * @params   connection being disposed of
+     * @params   relevant pool
+     * @params   pool to acquire the new connection from
+     * @returns  new connection, null if none could be acquired
+     */
+    private Connection disposeAcquireFrom(Connection conn, Pool pool, Pool next) {
+        pool.bag.remove(conn);
+        conn.dispose();
+        pool.metrics.recycled();
+        /// the replacement is acquired anew, so the old one no longer
+        /// counts towards demand
+        pool.sizer.exit();
+        try {
+            Connection incarnated = acquireFrom(next, 0);
+            incarnated.timestamp = conn.timestamp;
             return incarnated;
         }
+        catch (Exception ex) {
+            /// the original is gone, the caller has nothing to release
+            Utilities.logException(ex, "Failure to replace connection in pool: " + next);
+            return null;
+        }
     }
 
     /**
      * Release To
      *
-     * - Removes connection from in-use pool.
-     * - Adds connection to available pool.
-     * - Notifies possibly waiting thread.
+     * Returns the connection to the bag, which hands it to a waiting thread
+     * if there is one.
      *
      * @params  connection being released
      * @params  pool being released into
      */
-    private void releaseTo(Connection conn, LockedPool pool) {
-        synchronized (pool.lock) {
-            logger.info("Releasing to   -> " + pool);
-            pool.inUse.remove(conn);
-            pool.available.offer(conn);
-            pool.lock.notify();
+    private void releaseTo(Connection conn, Pool pool) {
+        logger.fine(() -> "Releasing to   -> " + pool);
+        pool.sizer.exit();
+        /// shutting down, close instead of pooling
+        if (closed) {
+            if (pool.bag.remove(conn)) {
+                conn.dispose();
+                pool.metrics.disposed();
+            }
+            return;
+        }
+        /// rotate connections before the broker drops them, replacing
+        /// the connection for anybody waiting
+        if (conn.isExpired(System.currentTimeMillis()) && pool.bag.remove(conn)) {
+            pool.metrics.expired();
+            retire(pool, conn);
+            replaceForWaiter(pool);
+            return;
+        }
+        /// reconfigured since it was acquired: the endpoint moved, was
+        /// removed or the pool shrank below what is in use
+        boolean stale = pool.retired || conn.generation != pool.generation;
+        if ((stale || pool.bag.size() > pool.props.maxSize) && pool.bag.remove(conn)) {
+            if (! stale) {
+                pool.metrics.evicted();
+            }
+            retire(pool, conn);
+            if (stale && ! pool.retired) {
+                replaceForWaiter(pool);
+            }
+            return;
+        }
+        pool.bag.requite(conn);
+    }
+
+    /**
+     * Replace for Waiter
+     *
+     * @params  pool a connection was retired from, which has a new one
+     *          created if somebody is waiting and it has room
+     */
+    private void replaceForWaiter(Pool pool) {
+        if (pool.bag.waiting() > 0 && pool.bag.reserveCapacity(pool.props.maxSize)) {
+            createInBackground(pool, true);
         }
     }
 
     /**
-     * Evict
+     * Validate Idle
      *
-     * Eviction processor, calls evictFrom for each pool.
+     * Health check and keep-alive: idle connections past their max lifetime
+     * or the validation interval are reserved and tested in parallel as on
+     * borrow, so dead ones are found here rather than on a request. Valid
+     * connections go back to the bag; the others are closed in parallel and
+     * replaced for anybody waiting (the pool tops up to its target on later
+     * resizes).
+     *
+     * @params  pool to validate
      */
-    private void evict() {
-        evictFrom(readPool);
-        evictFrom(writePool);
-        evictFrom(bulkPool);
+    private void validateIdle(Pool pool) {
+        long now = System.currentTimeMillis();
+        long interval = pool.props.validationInterval;
+        List<Connection> candidates = new ArrayList<Connection>();
+        for (Connection conn : pool.bag.idleConnections()) {
+            boolean stale = conn.suspect || (interval > 0 && now - conn.lastActive() >= interval);
+            if (! stale && ! conn.isExpired(now)) {
+                continue;
+            }
+            /// skip connections acquired since the snapshot
+            if (pool.bag.reserve(conn)) {
+                candidates.add(conn);
+            }
+        }
+        List<CompletableFuture<Boolean>> probes = new ArrayList<CompletableFuture<Boolean>>();
+        for (Connection conn : candidates) {
+            probes.add(CompletableFuture.supplyAsync(() -> isUsable(pool, conn), creator));
+        }
+        List<Connection> victims = new ArrayList<Connection>();
+        for (int i = 0; i < candidates.size(); ++i) {
+            Connection conn = candidates.get(i);
+            if (probes.get(i).join()) {
+                pool.bag.unreserve(conn);
+                continue;
+            }
+            pool.bag.remove(conn);
+            pool.metrics.disposed();
+            victims.add(conn);
+            if (pool.bag.waiting() > 0 && pool.bag.reserveCapacity(pool.props.maxSize)) {
+                createInBackground(pool, true);
+            }
+        }
+        disposeAll(pool, victims).join();
     }
 
     /**
-     * Evict From
+     * Dispose All
      *
-     * Simple eviction process:
-     * - Lock the pool.
-     * - Noop if available size is leq the minimum.
-     * - We track the number of times the available pool size is over the
-     *   minumn, giving it a few tries to get a better feel for quiescence.
-     *   If the available pool is over the minimum for some threshold number
-     *   of timer pops then we can start evicting old connections from the
-     *   pool. We also reset the overMinimumCount to zero for the next cycle.
-     * - Otherwise increment overMinimumCount for the next timer pop.
+     * Closes connections already removed from the bag in parallel on the
+     * creator.
+     *
+     * @params  pool the connections were removed from
+     * @params  connections to close
+     * @returns future completed once all are closed
      */
-    private void evictFrom(LockedPool pool) {
+    private CompletableFuture<Void> disposeAll(Pool pool, List<Connection> victims) {
+        CompletableFuture<?>[] closing = new CompletableFuture<?>[victims.size()];
+        for (int i = 0; i < closing.length; ++i) {
+            Connection conn = victims.get(i);
+            logger.info(() -> "Disposing of connection -> " + conn);
+            closing[i] = CompletableFuture.runAsync(conn::dispose, creator);
+        }
+        return CompletableFuture.allOf(closing);
+    }
 
-        logger.info("Timer expired for pool -> " + pool);
+    /**
+     * Resize
+     *
+     * Steers the pool towards the target of its sizer:
+     * - Below the target, connections are created up to it in the
+     *   background, so the next burst finds them warm instead of paying
+     *   the connect on the request path.
+     * - Above the target, the sizer's shrink step of the longest idle
+     *   connections are evicted. Connections in use are never touched, so
+     *   a pool busier than its target simply stays as it is.
+     * Connections are reserved before disposal so a concurrent acquire can
+     * never pick up a connection that is being evicted. The victims are
+     * picked first and then closed in parallel.
+     *
+     * @params  pool to resize
+     */
+    private void resize(Pool pool) {
 
-        /// acquire lock
-        synchronized (pool.lock) {
+        int target = pool.sizer.update();
+        int total = pool.bag.size();
+        logger.info(() -> "Resizing pool -> " + pool);
 
-            /// if available pool size is leq the minimum size
-            /// nothing needs to be done
-            if (pool.available.size() <= pool.props.minSize) {
-                return;
+        /// demand has been higher than what we hold, warm up headroom
+        if (total < target) {
+            for (int i = total; i < target; ++i) {
+                if (! pool.bag.reserveCapacity(target)) {
+                    break;
+                }
+                createInBackground(pool, false);
             }
-            /// how is the count of over minimum size - if it has exceeded
-            /// the threshold then we have to start evicting
-            else if (pool.overMinimumCount >= overMinimumThreshold) {
-            
-                /// iterate over the available pool and evict while the pool
-                /// size is greater then the minimum
-                for (; pool.available.size() > pool.props.minSize;) {
-
-                    /// get the oldest used connection from the pool
-                    Connection conn = pool.available.poll();
+            return;
+        }
 
-                    /// dispose of it cleanly (hopefully)
-                    logger.info("Disposing of connection -> " + conn);
-                    conn.dispose();
-                }
-                /// we have shrunk the pool, now reset the count
-                pool.overMinimumCount = 0;
+        /// over the target, give some of the excess back
+        int excess = pool.sizer.shrinkStep(total);
+        if (excess <= 0) {
+            return;
+        }
+        /// oldest used connections first
+        List<Connection> idle = longestIdleFirst(pool.bag.idleConnections());
+        List<Connection> victims = new ArrayList<Connection>();
+        for (Connection conn : idle) {
+            if (excess <= 0) {
+                break;
             }
-            /// otherwise we need some more time to evaluate, increment the
-            /// over minimum count for the next timer pop
-            else {
-                pool.overMinimumCount++;
+            /// skip connections acquired since the snapshot
+            if (! pool.bag.reserve(conn)) {
+                continue;
             }
+            pool.bag.remove(conn);
+            pool.metrics.evicted();
+            victims.add(conn);
+            --excess;
         }
+        /// dispose of them cleanly (hopefully)
+        disposeAll(pool, victims).join();
     }
 }
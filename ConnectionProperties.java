@@ -1,5 +1,9 @@
+import java.util.Objects;
 
-public class ConnectionProperties {
+
+public class ConnectionProperties implements Cloneable {
+    public String          pool;
+    public String          endpoint;
     public String          manager;
     public String          hostname;
     public String          channel;
@@ -10,13 +14,117 @@ public class ConnectionProperties {
     public int             port; 
     public int             minSize;
     public int             maxSize;
+    public int             lowWater;
+    public long            maxLifetime;
+    public long            validationInterval;
+    public int             retries;
+    public long            retryBaseDelay;
+    public long            retryMaxDelay;
+    public int             breakerThreshold;
+    public long            breakerOpenTime;
+    public double          hedgePercentile;
+    public long            hedgeMinSamples;
+    public String          hedgeSendQueue;
     public long            timeout;
     public boolean         compress;
     public boolean         compressOut;
+    public CompressionCodec codec;
+    public CompressionCodec replyCodec;
+    public int             compressThreshold;
+    public int             offHeapThreshold;
+    public int             chunkSize;
+    public int             parallelThreshold;
+    public int             parallelBlockSize;
+    public boolean         transactedBatch;
     public ConnectionType  type;
 
+    /**
+     * Copy
+     *
+     * Shallow copy, the starting point of an endpoint's properties (codecs
+     * are shared, they are stateless).
+     *
+     * @returns copy of these properties
+     */
+    public ConnectionProperties copy() {
+        try {
+            return (ConnectionProperties) super.clone();
+        }
+        catch (CloneNotSupportedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Assign
+     *
+     * Takes over every setting of another configuration of the same pool
+     * and endpoint, in place, so connections made with these properties
+     * pick up the new values (timeouts, codecs...) on their next use.
+     *
+     * @params  new properties
+     */
+    public void assign(ConnectionProperties from) {
+        pool = from.pool;
+        endpoint = from.endpoint;
+        manager = from.manager;
+        hostname = from.hostname;
+        channel = from.channel;
+        username = from.username;
+        password = from.password;
+        sendQueue = from.sendQueue;
+        receiveQueue = from.receiveQueue;
+        port = from.port;
+        minSize = from.minSize;
+        maxSize = from.maxSize;
+        lowWater = from.lowWater;
+        maxLifetime = from.maxLifetime;
+        validationInterval = from.validationInterval;
+        retries = from.retries;
+        retryBaseDelay = from.retryBaseDelay;
+        retryMaxDelay = from.retryMaxDelay;
+        breakerThreshold = from.breakerThreshold;
+        breakerOpenTime = from.breakerOpenTime;
+        hedgePercentile = from.hedgePercentile;
+        hedgeMinSamples = from.hedgeMinSamples;
+        hedgeSendQueue = from.hedgeSendQueue;
+        timeout = from.timeout;
+        compress = from.compress;
+        compressOut = from.compressOut;
+        codec = from.codec;
+        replyCodec = from.replyCodec;
+        compressThreshold = from.compressThreshold;
+        offHeapThreshold = from.offHeapThreshold;
+        chunkSize = from.chunkSize;
+        parallelThreshold = from.parallelThreshold;
+        parallelBlockSize = from.parallelBlockSize;
+        transactedBatch = from.transactedBatch;
+        type = from.type;
+    }
+
+    /**
+     * Same Destination
+     *
+     * @params  other properties
+     * @returns true if connections made with either reach the same queue
+     *          manager and queues as the same user
+     */
+    public boolean sameDestination(ConnectionProperties other) {
+        return Objects.equals(manager, other.manager)
+            && Objects.equals(hostname, other.hostname)
+            && Objects.equals(channel, other.channel)
+            && port == other.port
+            && Objects.equals(username, other.username)
+            && Objects.equals(password, other.password)
+            && Objects.equals(sendQueue, other.sendQueue)
+            && Objects.equals(receiveQueue, other.receiveQueue)
+            && Objects.equals(hedgeSendQueue, other.hedgeSendQueue);
+    }
+
     public String toString() {
         StringBuilder sb = new StringBuilder(100);
+        sb.append("Pool:             " + pool + "\n");
+        sb.append("Endpoint:         " + endpoint + "\n");
         sb.append("Manager:          " + manager + "\n");
         sb.append("Hostname:         " + hostname + "\n");
         sb.append("Channel:          " + channel + "\n");
@@ -26,9 +134,26 @@ public class ConnectionProperties {
         sb.append("Port:             " + Integer.toString(port) + "\n");
         sb.append("Min size:         " + Integer.toString(minSize) + "\n");
         sb.append("Max size:         " + Integer.toString(maxSize) + "\n");
+        sb.append("Low water mark:   " + Integer.toString(lowWater) + "\n");
+        sb.append("Max lifetime:     " + Long.toString(maxLifetime) + "\n");
+        sb.append("Validation:       " + Long.toString(validationInterval) + "\n");
+        sb.append("Retries:          " + Integer.toString(retries) + " ["
+            + Long.toString(retryBaseDelay) + ", " + Long.toString(retryMaxDelay) + "]\n");
+        sb.append("Breaker:          " + Integer.toString(breakerThreshold) + " / "
+            + Long.toString(breakerOpenTime) + "\n");
         sb.append("Timeout:          " + Long.toString(timeout) + "\n");
         sb.append("Compress:         " + compress + "\n");
         sb.append("CompressOut:      " + compressOut + "\n");
+        sb.append("Codec:            " + codec + "\n");
+        sb.append("ReplyCodec:       " + replyCodec + "\n");
+        sb.append("CompressThreshold:" + Integer.toString(compressThreshold) + "\n");
+        sb.append("OffHeapThreshold: " + Integer.toString(offHeapThreshold) + "\n");
+        sb.append("ChunkSize:        " + Integer.toString(chunkSize) + "\n");
+        sb.append("Parallel:         " + Integer.toString(parallelThreshold) + " in blocks of "
+            + Integer.toString(parallelBlockSize) + "\n");
+        sb.append("TransactedBatch:  " + transactedBatch + "\n");
+        sb.append("Hedge:            p" + hedgePercentile + " after " + hedgeMinSamples
+            + " to " + hedgeSendQueue + "\n");
         sb.append("ConnectionType:   " + type + "\n");
         return sb.toString();
     }
@@ -0,0 +1,61 @@
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Class:  Deadline
+ *
+ * Point in time by which a request must be done, passed from the caller
+ * through the dispatcher to the receive so every wait along the way uses
+ * what is left of the request's budget rather than its own static timeout.
+ * Based on System.nanoTime, so wall clock changes do not move it.
+ */
+public class Deadline {
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * After
+     *
+     * @params  budget in millis from now
+     * @returns deadline that far away
+     */
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0L)));
+    }
+
+    /**
+     * @returns millis left, zero once expired
+     */
+    public long remainingMillis() {
+        long left = expiresAt - System.nanoTime();
+        return left <= 0 ? 0L : Math.max(TimeUnit.NANOSECONDS.toMillis(left), 1L);
+    }
+
+    /**
+     * @returns true once the deadline has passed
+     */
+    public boolean isExpired() {
+        return expiresAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Cap
+     *
+     * @params  a configured timeout in millis, zero or less for none
+     * @returns the shorter of the timeout and the time left, in millis;
+     *          zero once expired, which callers must not pass on as "no
+     *          limit"
+     */
+    public long cap(long timeout) {
+        long left = remainingMillis();
+        return timeout > 0 ? Math.min(timeout, left) : left;
+    }
+
+    public String toString() {
+        return remainingMillis() + " ms left";
+    }
+}
@@ -0,0 +1,151 @@
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * Class:  DeflateCodec
+ *
+ * zlib deflate at a configurable level, using the context's pooled deflater
+ * and inflater. This is the format compressed messages have always used, so
+ * it is also assumed for bytes messages which carry no codec header. The
+ * ByteBuffer variants feed the buffers to zlib directly, direct ones
+ * included, without copying them into arrays first.
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    public static final String NAME = "deflate";
+
+    private final int level;
+
+    /**
+     * Constructor
+     *
+     * @params  deflate level 0-9, or Deflater.DEFAULT_COMPRESSION
+     */
+    public DeflateCodec(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        this.level = level;
+    }
+
+    public String name() {
+        return NAME;
+    }
+
+    public int compress(CompressionContext context, byte[] source, int length) {
+        Deflater deflater = context.deflater();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(source, 0, length);
+        return deflate(context, deflater);
+    }
+
+    public int compress(CompressionContext context, ByteBuffer source) {
+        Deflater deflater = context.deflater();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(source);
+        return deflate(context, deflater);
+    }
+
+    public int compress(CompressionContext context, ByteBuffer source, ByteBuffer target) {
+        Deflater deflater = context.deflater();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(source);
+        deflater.finish();
+
+        int start = target.position();
+        while (! deflater.finished()) {
+            if (! target.hasRemaining()) {
+                throw new BufferOverflowException();
+            }
+            deflater.deflate(target);
+        }
+        return target.position() - start;
+    }
+
+    /// zlib's compressBound (stored blocks on incompressible input, header
+    /// and trailer) with some slack
+    public int maxCompressedLength(int length) {
+        long bound = (long) length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 64;
+        return (int) Math.min(bound, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Deflate
+     *
+     * @params  context whose output buffer receives the result
+     * @params  deflater given its input
+     * @returns number of compressed bytes in context.output()
+     */
+    private static int deflate(CompressionContext context, Deflater deflater) {
+        deflater.finish();
+        byte[] output = context.output(0);
+        int count = 0;
+        while (! deflater.finished()) {
+            if (count == output.length) {
+                output = context.growOutput(count);
+            }
+            count += deflater.deflate(output, count, output.length - count);
+        }
+        return count;
+    }
+
+    public int decompress(CompressionContext context, byte[] source, int length)
+        throws DataFormatException {
+
+        Inflater inflater = context.inflater();
+        inflater.reset();
+        inflater.setInput(source, 0, length);
+
+        byte[] output = context.output(0);
+        int count = 0;
+        while (! inflater.finished()) {
+            if (count == output.length) {
+                output = context.growOutput(count);
+            }
+            int n = inflater.inflate(output, count, output.length - count);
+
+            /// truncated input or a preset dictionary, nothing more to get
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated deflate stream");
+            }
+            count += n;
+        }
+        return count;
+    }
+
+    public int decompress(CompressionContext context, ByteBuffer source, ByteBuffer target)
+        throws DataFormatException {
+
+        Inflater inflater = context.inflater();
+        inflater.reset();
+        inflater.setInput(source);
+
+        int start = target.position();
+        for (;;) {
+            int n = inflater.inflate(target);
+            if (inflater.finished()) {
+                break;
+            }
+            /// truncated input or a preset dictionary, nothing more to get
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated deflate stream");
+            }
+            if (! target.hasRemaining()) {
+                throw new DataFormatException("Decompressed more than room for "
+                    + (target.position() - start) + " bytes");
+            }
+        }
+        return target.position() - start;
+    }
+
+    public String toString() {
+        return NAME + "(" + level + ")";
+    }
+}
@@ -1,4 +1,13 @@
-import java.util.logging.Logger;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
 
 /**
  * Dispatcher
@@ -14,52 +23,512 @@ public class Dispatcher {
     public static class Result {
 
         Result(String result, Connection conn) {
+            this(result, conn, null);
+        }
+
+        Result(String result, Connection conn, Exception failure) {
+            this(result, conn, failure, false);
+        }
+
+        Result(String result, Connection conn, Exception failure, boolean timedOut) {
             this.result = result;
             this.conn = conn;
+            this.failure = failure;
+            this.timedOut = timedOut;
         }
 
         String result;
         Connection conn;
+        /// JMSException, or DataFormatException for a reply which could not
+        /// be decoded
+        Exception failure;
+        boolean timedOut;
     };
 
-    public static int retries = 3;
+    /**
+     * Batch counterpart of Result.
+     */
+    public static class BatchResult {
+
+        BatchResult(List<String> correlationIds, Connection conn, JMSException failure) {
+            this.correlationIds = correlationIds;
+            this.conn = conn;
+            this.failure = failure;
+        }
+
+        List<String> correlationIds;
+        Connection conn;
+        JMSException failure;
+    };
 
     /**
      * Dispatch
      *
-     * For retries count, attempts to dispatch supplied message. If we hit
-     * a JMS exception, dispose of the old connectiona dnd create a new one.
-     * What should we do if we fail even after all retries - throw?
+     * Attempts to dispatch supplied message as often as the pool's retry
+     * policy allows. If we hit a JMS exception, back off, dispose of the
+     * old connection and create a new one. While the pool's circuit breaker
+     * is open nothing is tried at all, so an outage costs neither
+     * connection rebuilds nor broker load.
      *
      * @param   content - message to send or id of message to receive
      * @param   send    - true if sending, false if receiving
-     * @return  a pair of the result and the (possibly new) connection
+     * @return  the result, the (possibly new) connection and, if the
+     *          dispatch did not succeed, the last failure (a
+     *          CircuitOpenException if the breaker refused it); the
+     *          connection is null if it was disposed of and no new one
+     *          could be acquired
      */
     public static Dispatcher.Result
     dispatch(String content, Connection conn, boolean send) {
+        return dispatch(content, conn, send, null);
+    }
+
+    /**
+     * Dispatch
+     *
+     * As above, within a deadline: a receive waits no longer than the time
+     * left, and a retry is only made if its back off ends before the
+     * deadline does.
+     *
+     * @param   content  - message to send or id of message to receive
+     * @param   send     - true if sending, false if receiving
+     * @param   deadline - deadline of the request, null for none
+     * @return  as above; a receive which got no reply in time is flagged
+     *          as timed out, one whose reply could not be decoded fails
+     *          with the DataFormatException
+     */
+    public static Dispatcher.Result
+    dispatch(String content, Connection conn, boolean send, Deadline deadline) {
 
-        Logger logger = LoggerAdapter.getInstance().getLogger();
+        ConnectionPool pool = ConnectionPool.getInstance();
+        if (! pool.breaker(conn).allow()) {
+            return new Dispatcher.Result("", conn, new CircuitOpenException(conn.props.type));
+        }
         String response = "";
-        boolean dispatched = false;
-        for (int i = 0; i < retries; ++i) {
+        Exception failure = null;
+        boolean timedOut = false;
+        for (int retry = 1; ; ++retry) {
+            long start = System.nanoTime();
             try {
                 if (send) {
                     response = conn.send(content);
                 }
-                else {
+                else if (deadline == null) {
                     response = conn.receive(content);
                 }
+                else {
+                    Reply reply = conn.receive(content, deadline);
+                    response = reply.orElse("");
+                    timedOut = reply.isTimedOut();
+                }
+                pool.succeeded(conn, start);
+                failure = null;
+                break;
             }
             catch (JMSException je) {
-                conn = ConnectionPool.getInstance().disposeAcquire(conn);
+                failure = je;
+                if (! retryAfter(pool, conn, retry, deadline)) {
+                    break;
+                }
+                /// a reply can only be received where it was sent
+                CircuitBreaker tried = pool.breaker(conn);
+                conn = send ? pool.failover(conn) : pool.disposeAcquire(conn);
+                /// disposed of, and no replacement to retry on
+                if (conn == null) {
+                    break;
+                }
+                if (! admitted(pool, tried, conn)) {
+                    failure = new CircuitOpenException(conn.props.type);
+                    break;
+                }
             }
-            catch (Exception ex) {
+            catch (DataFormatException ex) {
+                /// the queue manager did answer, the payload was bad
+                pool.succeeded(conn, start);
+                failure = ex;
                 break;
             }
+            catch (RuntimeException ex) {
+                pool.failed(conn);
+                conn.suspect();
+                failure = ex;
+                break;
+            }
+        }
+        return new Dispatcher.Result(response, conn, failure, timedOut);
+    }
+
+    /**
+     * Retry After
+     *
+     * Bookkeeping after a failed attempt: the failure is reported to the
+     * circuit breaker and health of the connection's endpoint, and if the
+     * retry policy has attempts left and the breaker is still closed, the
+     * retry is counted and we back off. Otherwise the connection is marked
+     * suspect, since it is not being disposed of.
+     *
+     * @param   pool  - the connection pool
+     * @param   conn  - connection the attempt failed on
+     * @param   retry    - number of the retry being considered, from 1
+     * @param   deadline - deadline of the request, null for none
+     * @return  true if the caller should retry on a new connection
+     */
+    private static boolean
+    retryAfter(ConnectionPool pool, Connection conn, int retry, Deadline deadline) {
+
+        RetryPolicy policy = pool.retryPolicy(conn);
+        CircuitBreaker breaker = pool.breaker(conn);
+        pool.failed(conn);
+        if (retry < policy.getAttempts()
+            && breaker.getState() == CircuitBreaker.State.CLOSED) {
+            pool.metrics(conn).retried();
+            if (policy.pause(retry, deadline) && breaker.allow()) {
+                return true;
+            }
+        }
+        conn.suspect();
+        return false;
+    }
+
+    /**
+     * Admitted
+     *
+     * The retry was let through by the breaker of the endpoint which
+     * failed (see retryAfter); when fail over moved it to another endpoint,
+     * that endpoint's breaker has to let it through as well.
+     *
+     * @param   pool  - the connection pool
+     * @param   tried - breaker of the connection the attempt failed on
+     * @param   conn  - connection to retry on
+     * @return  true if the retry may go ahead on the connection
+     */
+    private static boolean
+    admitted(ConnectionPool pool, CircuitBreaker tried, Connection conn) {
+
+        CircuitBreaker breaker = pool.breaker(conn);
+        return breaker == tried || breaker.allow();
+    }
+
+    /**
+     * Send and Receive
+     *
+     * Asynchronous request/reply. A pooled connection is only held for the
+     * send; the reply is delivered by the reply demultiplexer of the pool's
+     * receive queue. As with dispatch, a JMS exception on the send disposes
+     * of the connection and the send is retried on a new one, within the
+     * pool's retry policy and circuit breaker, and may move to another
+     * endpoint of the type.
+     *
+     * @param   content - message to send
+     * @param   type    - pool to send through
+     * @return  future completed with the reply, or failed if the send or the
+     *          receive did not succeed
+     */
+    public static CompletableFuture<String>
+    sendAndReceive(String content, ConnectionType type) {
+        String endpoint = ConnectionPool.getInstance().pick(type);
+        return exchange(content, type, endpoint, null, false).thenCompose(reply -> {
+            if (reply.isTimedOut()) {
+                return CompletableFuture.<String>failedFuture(new TimeoutException("No reply"));
+            }
+            return CompletableFuture.completedFuture(reply.getBody());
+        });
+    }
+
+    /**
+     * Send and Receive
+     *
+     * Request/reply within a deadline, hedged once the pool has a hedge
+     * policy and has seen enough replies for it:
+     * - The request is sent as above, and the reply awaited no longer than
+     *   the deadline allows.
+     * - If no reply has come after the hedge delay (a high percentile of
+     *   the pool's reply latency) and there is still time, a duplicate is
+     *   sent to the hedge queue on a connection of its own, from another
+     *   endpoint of the type if there is a healthy one.
+     * - Whichever reply arrives first completes the future; the other one
+     *   is dropped by the demultiplexer.
+     * Hedging trades a little extra load for a shorter tail: only the
+     *   slowest requests are duplicated, by construction a few percent.
+     *
+     * @param   content  - message to send
+     * @param   type     - pool to send through
+     * @param   deadline - deadline of the request
+     * @return  future completed with the reply, timed out if none came in
+     *          time; failed if no request could be sent
+     */
+    public static CompletableFuture<Reply>
+    sendAndReceive(String content, ConnectionType type, Deadline deadline) {
+
+        ConnectionPool pool = ConnectionPool.getInstance();
+        String endpoint = pool.pick(type);
+        PoolMetrics metrics = pool.metrics(type, endpoint);
+        CompletableFuture<Reply> first = new CompletableFuture<Reply>();
+
+        /// legs still out; the last one to fail or time out settles it
+        AtomicInteger outstanding = new AtomicInteger(1);
+        BiConsumer<Reply, Throwable> settle = (reply, ex) -> {
+            if (ex == null && ! reply.isTimedOut()) {
+                first.complete(reply);
+            }
+            else if (outstanding.decrementAndGet() == 0) {
+                if (ex != null) {
+                    first.completeExceptionally(ex);
+                }
+                else {
+                    first.complete(reply);
+                }
+            }
+        };
+        exchange(content, type, endpoint, deadline, false).whenComplete(settle);
+
+        long delay = pool.hedgePolicy(type, endpoint).delay();
+        if (delay >= 0 && delay < deadline.remainingMillis()) {
+            Executor later = CompletableFuture.delayedExecutor(
+                delay, TimeUnit.MILLISECONDS, TaskExecutors.shared());
+            later.execute(() -> {
+                /// only if still unanswered, and the primary has not given up
+                for (int n = outstanding.get(); n > 0 && ! first.isDone(); n = outstanding.get()) {
+                    if (outstanding.compareAndSet(n, n + 1)) {
+                        metrics.hedged();
+                        String other = pool.pick(type, endpoint);
+                        exchange(content, type, other, deadline, true).whenComplete(settle);
+                        break;
+                    }
+                }
+            });
+        }
+        return first.whenComplete((reply, ex) -> {
+            if (reply == null) {
+                return;
+            }
+            if (reply.isTimedOut()) {
+                metrics.replyTimedOut();
+            }
+            else if (reply.isHedged()) {
+                metrics.hedgeWon();
+            }
+        });
+    }
+
+    /**
+     * Exchange
+     *
+     * One leg of a request/reply: acquire, send with retries, and hand the
+     * connection back; the reply comes through the demultiplexer. Replies
+     * received feed the reply latency of the pool sent through, from which
+     * its hedge delay is taken.
+     *
+     * @param   content  - message to send
+     * @param   type     - pool to send through
+     * @param   endpoint - endpoint of the type to send to first
+     * @param   deadline - deadline of the request, null for the receive
+     *                     timeout alone
+     * @param   hedge    - true if this is the hedge leg
+     * @return  future completed with the reply, timed out if the deadline
+     *          passed waiting for a connection or the reply
+     */
+    private static CompletableFuture<Reply>
+    exchange(String content, ConnectionType type, String endpoint, Deadline deadline, boolean hedge) {
+
+        long start = System.nanoTime();
+        ConnectionPool pool = ConnectionPool.getInstance();
+        if (! pool.breaker(type, endpoint).allow()) {
+            return CompletableFuture.failedFuture(new CircuitOpenException(type));
+        }
+        Connection conn = null;
+        try {
+            if (deadline == null) {
+                conn = pool.acquire(type, endpoint, 0);
+            }
+            else if (deadline.isExpired()) {
+                return CompletableFuture.completedFuture(Reply.timedOut());
+            }
+            else {
+                conn = pool.acquire(type, endpoint, deadline.remainingMillis());
+            }
+            for (int retry = 1; ; ++retry) {
+                long sent = System.nanoTime();
+                try {
+                    CompletableFuture<Reply> reply = conn.sendAndReceive(content, deadline, hedge);
+                    pool.succeeded(conn, sent);
+                    PoolMetrics metrics = pool.metrics(conn);
+                    return reply.whenComplete((r, ex) -> {
+                        if (r != null && ! r.isTimedOut()) {
+                            metrics.replied(start);
+                        }
+                    });
+                }
+                catch (JMSException je) {
+                    if (! retryAfter(pool, conn, retry, deadline)) {
+                        return CompletableFuture.failedFuture(je);
+                    }
+                    CircuitBreaker tried = pool.breaker(conn);
+                    conn = pool.failover(conn);
+                    if (conn == null) {
+                        return CompletableFuture.failedFuture(je);
+                    }
+                    if (! admitted(pool, tried, conn)) {
+                        return CompletableFuture.failedFuture(new CircuitOpenException(type));
+                    }
+                }
+            }
+        }
+        catch (PoolTimeoutException ex) {
+            if (deadline != null) {
+                return CompletableFuture.completedFuture(Reply.timedOut());
+            }
+            return CompletableFuture.failedFuture(ex);
+        }
+        catch (Exception ex) {
+            return CompletableFuture.failedFuture(ex);
         }
-        if (! dispatched) {
-            /// throw
+        finally {
+            if (conn != null) {
+                pool.release(conn);
+            }
+        }
+    }
+
+    /**
+     * Submit
+     *
+     * Runs acquire, dispatch and release as one blocking task on the shared
+     * task executor (see TaskExecutors), so in virtual mode every exchange
+     * gets its own virtual thread and the number of exchanges in flight is
+     * not bound by a thread pool.
+     *
+     * @param   content - message to send or id of message to receive
+     * @param   type    - pool to dispatch through
+     * @param   send    - true if sending, false if receiving
+     * @return  future completed with the result of dispatch
+     */
+    public static CompletableFuture<String>
+    submit(String content, ConnectionType type, boolean send) {
+        return submit(content, type, send, TaskExecutors.shared());
+    }
+
+    /**
+     * Submit
+     *
+     * @param   content  - message to send or id of message to receive
+     * @param   type     - pool to dispatch through
+     * @param   send     - true if sending, false if receiving
+     * @param   executor - runs the blocking exchange
+     * @return  future completed with the result of dispatch, or failed if
+     *          no connection could be acquired
+     */
+    public static CompletableFuture<String>
+    submit(String content, ConnectionType type, boolean send, Executor executor) {
+
+        return CompletableFuture.supplyAsync(() -> {
+            ConnectionPool pool = ConnectionPool.getInstance();
+            Connection conn = null;
+            try {
+                conn = pool.acquire(type);
+                Dispatcher.Result res = dispatch(content, conn, send);
+                conn = res.conn;
+                if (res.failure != null) {
+                    throw res.failure;
+                }
+                return res.result;
+            }
+            catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+            finally {
+                if (conn != null) {
+                    pool.release(conn);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Submit and Receive
+     *
+     * Request/reply with the blocking acquire moved off the calling thread:
+     * sendAndReceive runs on the shared task executor and the reply is then
+     * delivered by the reply demultiplexer, so no thread waits for it.
+     *
+     * @param   content - message to send
+     * @param   type    - pool to send through
+     * @return  future completed with the reply
+     */
+    public static CompletableFuture<String>
+    submitAndReceive(String content, ConnectionType type) {
+        return submitAndReceive(content, type, TaskExecutors.shared());
+    }
+
+    /**
+     * Submit and Receive
+     *
+     * @param   content  - message to send
+     * @param   type     - pool to send through
+     * @param   executor - runs the acquire and send
+     * @return  future completed with the reply
+     */
+    public static CompletableFuture<String>
+    submitAndReceive(String content, ConnectionType type, Executor executor) {
+        return CompletableFuture
+            .supplyAsync(() -> sendAndReceive(content, type), executor)
+            .thenCompose(reply -> reply);
+    }
+
+    /**
+     * Dispatch Batch
+     *
+     * Sends the messages through one sender, see Connection.sendBatch. If we
+     * hit a JMS exception the connection is disposed of and a new one picks
+     * up after the last message that did go out (from the start again for
+     * a transacted batch, which was rolled back). Retries follow the pool's
+     * retry policy and circuit breaker as for dispatch.
+     *
+     * @param   contents - messages to send
+     * @param   conn     - connection to send on
+     * @return  correlation ids of the messages sent, in order, and the
+     *          (possibly new) connection, null if none could be acquired;
+     *          if not all messages went out within retries the last
+     *          failure is set as well
+     */
+    public static Dispatcher.BatchResult
+    dispatchBatch(List<String> contents, Connection conn) {
+
+        List<String> correlationIds = new ArrayList<String>(contents.size());
+        ConnectionPool pool = ConnectionPool.getInstance();
+        if (! pool.breaker(conn).allow()) {
+            JMSException open = new CircuitOpenException(conn.props.type);
+            return new Dispatcher.BatchResult(correlationIds, conn, open);
+        }
+        JMSException failure = null;
+        for (int retry = 1; ; ++retry) {
+            List<String> remaining = contents.subList(correlationIds.size(), contents.size());
+            long start = System.nanoTime();
+            try {
+                correlationIds.addAll(conn.sendBatch(remaining));
+                pool.succeeded(conn, start);
+                failure = null;
+                break;
+            }
+            catch (JMSException je) {
+                failure = je;
+                if (je instanceof BatchSendException) {
+                    correlationIds.addAll(((BatchSendException) je).getCorrelationIds());
+                }
+                if (! retryAfter(pool, conn, retry, null)) {
+                    break;
+                }
+                CircuitBreaker tried = pool.breaker(conn);
+                conn = pool.failover(conn);
+                if (conn == null) {
+                    break;
+                }
+                if (! admitted(pool, tried, conn)) {
+                    failure = new CircuitOpenException(conn.props.type);
+                    break;
+                }
+            }
         }
-        return new Dispatcher.Result(response, conn);
+        return new Dispatcher.BatchResult(correlationIds, conn, failure);
     }
 }
@@ -0,0 +1,213 @@
+import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Class:  EndpointHealth
+ *
+ * How well one endpoint (queue manager) of a sharded pool is doing, so the
+ * pool can steer traffic away from it before its circuit breaker trips:
+ * - The error rate and the latency of successful dispatches are tracked as
+ *   exponentially weighted moving averages (EWMA) of the outcomes.
+ * - The error rate fades with the time since the last outcome, over the
+ *   health window, and so does the count of successes backing the latency
+ *   (the latency itself does not, or an idle endpoint would look fast).
+ *   An endpoint which got no traffic because it was drained is thus
+ *   forgiven after a while: its latency goes back to unknown and it gets
+ *   another chance.
+ * - An endpoint is drained while its error rate reaches the threshold, or
+ *   while its latency is more than a multiple of the fastest endpoint's
+ *   (and above MIN_DRAIN_NANOS, so microsecond jitter drains nothing). The
+ *   latency only counts while MIN_SAMPLES recent successes (about that
+ *   many within the window) back it, so a cold first call does not drain
+ *   a new endpoint; unknown, it neither drains the endpoint nor makes it
+ *   the fastest.
+ * - A drained endpoint is taken back once it is within half the limits,
+ *   so it does not flap in and out of rotation right at the threshold.
+ * Lock free; the averages and the time of the last outcome move together
+ * by compare-and-set, so the pool reads them on every acquire without a
+ * lock.
+ */
+public class EndpointHealth {
+
+    /// weight of the newest outcome
+    private static final double ALPHA = 0.1;
+
+    /// latency below which an endpoint is never slow enough to drain
+    private static final long MIN_DRAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /// recent successes before the latency counts
+    private static final int MIN_SAMPLES = 20;
+
+    /// recent successes counted at most, so an idle endpoint's latency goes
+    /// back to unknown after some 0.7 of the window
+    private static final int MAX_SAMPLES = 2 * MIN_SAMPLES;
+
+    /// averages along with the time of the last outcome, replaced as a whole
+    private static final class Averages {
+
+        Averages(double errorRate, double latency, double samples, long at) {
+            this.errorRate = errorRate;
+            this.latency = latency;
+            this.samples = samples;
+            this.at = at;
+        }
+
+        final double errorRate;
+        final double latency;
+        final double samples;
+        final long   at;
+    }
+
+    private final String                    name;
+    private volatile double                 errorThreshold;
+    private volatile double                 latencyFactor;
+    private volatile double                 window;
+    private final Logger                    logger;
+    private final AtomicReference<Averages> averages;
+    private volatile boolean                drained;
+
+    /**
+     * Constructor
+     *
+     * @params  name for the log, e.g. the pool type and endpoint
+     * @params  error rate (0 to 1) draining the endpoint, zero or less never
+     * @params  multiple of the fastest endpoint's latency draining the
+     *          endpoint, zero or less never
+     * @params  millis over which past outcomes fade
+     */
+    public EndpointHealth(String name, double errorThreshold, double latencyFactor, long window) {
+        this.name = name;
+        this.logger = LoggerAdapter.getInstance().getLogger();
+        this.averages = new AtomicReference<Averages>(new Averages(0.0, 0.0, 0.0, 0L));
+        configure(errorThreshold, latencyFactor, window);
+    }
+
+    /**
+     * Configure
+     *
+     * Changes the limits, see the constructor. The averages carry on.
+     *
+     * @params  error rate draining the endpoint
+     * @params  multiple of the fastest endpoint's latency draining it
+     * @params  millis over which past outcomes fade
+     */
+    public void configure(double errorThreshold, double latencyFactor, long window) {
+        this.errorThreshold = errorThreshold;
+        this.latencyFactor = latencyFactor;
+        this.window = TimeUnit.MILLISECONDS.toNanos(Math.max(window, 1L));
+    }
+
+    /**
+     * Succeeded
+     *
+     * The latency is a plain average of the recent successes until there
+     * are enough of them, a moving one after, so the first success after
+     * an idle spell replaces a latency nothing backs any more.
+     *
+     * @params  nanos the dispatch took
+     */
+    public void succeeded(long nanos) {
+        long now = System.nanoTime();
+        Averages current;
+        Averages next;
+        do {
+            current = averages.get();
+            double weight = weight(current, now);
+            double samples = current.samples * weight;
+            double step = Math.max(ALPHA, 1.0 / (samples + 1.0));
+            next = new Averages(current.errorRate * weight * (1.0 - ALPHA),
+                                current.latency + step * (nanos - current.latency),
+                                Math.min(samples + 1.0, MAX_SAMPLES), now);
+        } while (! averages.compareAndSet(current, next));
+    }
+
+    /**
+     * Failed
+     */
+    public void failed() {
+        long now = System.nanoTime();
+        Averages current;
+        Averages next;
+        do {
+            current = averages.get();
+            double weight = weight(current, now);
+            double errorRate = current.errorRate * weight;
+            next = new Averages(errorRate + ALPHA * (1.0 - errorRate), current.latency,
+                                current.samples * weight, now);
+        } while (! averages.compareAndSet(current, next));
+    }
+
+    /**
+     * @params  averages
+     * @params  current time in nanos
+     * @returns how much of the averages is left after fading
+     */
+    private double weight(Averages averages, long now) {
+        if (averages.at == 0L) {
+            return 1.0;
+        }
+        return Math.exp(-(now - averages.at) / window);
+    }
+
+    /**
+     * @returns error rate, 0 to 1
+     */
+    public double getErrorRate() {
+        Averages current = averages.get();
+        return current.errorRate * weight(current, System.nanoTime());
+    }
+
+    /**
+     * @returns average latency of successful dispatches in nanos, zero if
+     *          unknown: too few were seen lately
+     */
+    public long getLatency() {
+        Averages current = averages.get();
+        if (current.samples * weight(current, System.nanoTime()) < MIN_SAMPLES) {
+            return 0L;
+        }
+        return (long) current.latency;
+    }
+
+    /**
+     * Check
+     *
+     * Decides whether the endpoint should be drained, logging changes.
+     *
+     * @params  latency of the fastest endpoint in nanos, zero if unknown
+     * @returns true if traffic should go elsewhere
+     */
+    public boolean check(long fastest) {
+        boolean drain = false;
+        double rate = getErrorRate();
+        long slow = getLatency();
+        double scale = drained ? 0.5 : 1.0;
+        if (errorThreshold > 0 && rate >= errorThreshold * scale) {
+            drain = true;
+        }
+        else if (latencyFactor > 0 && fastest > 0
+                 && slow > Math.max(fastest * Math.max(latencyFactor * scale, 1.0), MIN_DRAIN_NANOS)) {
+            drain = true;
+        }
+        if (drain != drained) {
+            drained = drain;
+            if (drain) {
+                logger.warning(String.format("Draining endpoint %s: error rate %.2f, latency %d us",
+                    name, rate, TimeUnit.NANOSECONDS.toMicros(slow)));
+            }
+            else {
+                logger.info("Endpoint back in rotation: " + name);
+            }
+        }
+        return drain;
+    }
+
+    /**
+     * @returns outcome of the last check
+     */
+    public boolean isDrained() {
+        return drained;
+    }
+}
@@ -1,2 +1,7 @@
 public class JMSException extends Exception {
+    public JMSException() {
+    }
+    public JMSException(String reason) {
+        super(reason);
+    }
 }
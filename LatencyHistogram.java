@@ -0,0 +1,187 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Class:  LatencyHistogram
+ *
+ * Lock free latency histogram in the style of HdrHistogram: log-linear
+ * buckets, each power of two split into SUB_BUCKETS linear sub-buckets, so
+ * any recorded value is reported within about 6% of its true value no matter
+ * its magnitude. Recording is a couple of atomic increments and never
+ * allocates, so it is safe on the acquire path.
+ *
+ * Values are in nanoseconds.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS         = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * Snapshot
+     *
+     * Immutable copy of the histogram at a point in time.
+     */
+    public static class Snapshot {
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Percentile
+         *
+         * @params  percentile, 0 to 100
+         * @returns highest value of the bucket holding that percentile, in
+         *          nanoseconds (zero if nothing was recorded)
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0);
+            rank = Math.max(rank, 1);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestEquivalent(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Merge
+         *
+         * @params  snapshot of another histogram, e.g. of another endpoint
+         * @returns snapshot holding the values of both
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] merged = counts.clone();
+            for (int i = 0; i < merged.length; ++i) {
+                merged[i] += other.counts[i];
+            }
+            return new Snapshot(merged, count + other.count, sum + other.sum,
+                Math.max(max, other.max));
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("count=" + count);
+            sb.append(" mean=" + (long) getMean());
+            sb.append(" p50=" + percentile(50));
+            sb.append(" p99=" + percentile(99));
+            sb.append(" p99.9=" + percentile(99.9));
+            sb.append(" max=" + max);
+            return sb.toString();
+        }
+
+        private final long[] counts;
+        private final long   count;
+        private final long   sum;
+        private final long   max;
+    }
+
+    private final AtomicLongArray counts;
+    private final AtomicLong      count;
+    private final AtomicLong      sum;
+    private final AtomicLong      max;
+
+    /**
+     * Constructor
+     */
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Record
+     *
+     * @params  latency in nanoseconds, negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for (long current = max.get(); value > current; current = max.get()) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Snapshot
+     *
+     * Copies the histogram. Recording may continue concurrently, so the copy
+     * is not atomic but each bucket is consistent.
+     *
+     * @returns snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.get(), max.get());
+    }
+
+    /**
+     * Index
+     *
+     * Values below SUB_BUCKETS map to themselves; otherwise the exponent
+     * picks the bucket and the next SUB_BUCKET_BITS bits the sub-bucket.
+     *
+     * @params  value to map
+     * @returns bucket index
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Highest Equivalent
+     *
+     * @params  bucket index
+     * @returns largest value mapping to the bucket
+     */
+    static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS | sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
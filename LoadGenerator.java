@@ -0,0 +1,585 @@
+import java.util.Set;
+import java.util.List;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.io.Writer;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Class:  LoadGenerator
+ *
+ * Open-loop load against the connection pool, replacing the old Consumer and
+ * Consumption drivers whose fixed set of sleeping threads only issued a new
+ * request once the previous one finished (closed loop), so a slow pool
+ * simply slowed the load down and the stall never showed in a measurement.
+ * - Requests arrive at a configured rate, evenly spaced or as a Poisson
+ *   process, whether or not earlier ones have completed.
+ * - Each request picks an operation from a weighted mix: a pool type and
+ *   whether it only sends or waits for the reply, with a payload size drawn
+ *   from a distribution.
+ * - Latency is measured from when the request should have been issued, so
+ *   any time spent queued behind a stall is counted (no coordinated
+ *   omission); service time from when it actually started is reported
+ *   alongside.
+ * - A warm-up phase runs the same load unmeasured, then the measure phase
+ *   records throughput and latency percentiles per operation.
+ * - Results go to a JSON file for comparing pool and codec settings.
+ *
+ * Settings, from the properties file named on the command line (defaults
+ * in brackets):
+ * - load.rate: requests per second over all operations [100]
+ * - load.arrivals: poisson or uniform [poisson]
+ * - load.mix: operations and weights, e.g. Read/request:60,Write:30,Bulk:10;
+ *   the mode is send or request [Read:1]
+ * - load.payload: payload size in chars, fixed:N, uniform:MIN-MAX or
+ *   lognormal:MEDIAN,SIGMA [fixed:1024]; load.payload.TYPE per pool type
+ * - load.warmup / load.duration: phase lengths in seconds [10 / 60]
+ * - load.timeout: request/reply deadline in millis [5000]
+ * - load.max_outstanding: requests in flight beyond which new ones are
+ *   shed and counted [10000]
+ * - load.results: results file [load-results.json]
+ * - load.echo: answer requests from the in-memory broker, with an
+ *   exponential service time of load.echo_mean_us [false, 1000]
+ */
+public class LoadGenerator {
+
+    /// largest payload a distribution may draw, in chars
+    private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    /// how long to wait for requests still in flight after the last one
+    private static final long DRAIN_MILLIS = 30000;
+
+    /**
+     * Mode
+     *
+     * Send only, or send and wait for the reply.
+     */
+    public enum Mode {
+        SEND, REQUEST
+    }
+
+    /**
+     * Outcome
+     */
+    enum Outcome {
+        OK, TIMEOUT, ERROR
+    }
+
+    /**
+     * Size Distribution
+     *
+     * Payload sizes, in chars.
+     */
+    static class SizeDistribution {
+
+        SizeDistribution(String spec) {
+            String[] parts = spec.trim().split(":", 2);
+            String kind = parts[0].toLowerCase();
+            String args = parts.length > 1 ? parts[1] : "";
+            this.spec = spec.trim();
+            if (kind.equals("fixed")) {
+                shape = kind;
+                a = Double.parseDouble(args);
+                b = a;
+            }
+            else if (kind.equals("uniform")) {
+                String[] range = args.split("-");
+                shape = kind;
+                a = Double.parseDouble(range[0]);
+                b = Double.parseDouble(range[1]);
+            }
+            else if (kind.equals("lognormal")) {
+                String[] params = args.split(",");
+                shape = kind;
+                a = Math.log(Double.parseDouble(params[0]));
+                b = Double.parseDouble(params[1]);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown payload distribution: " + spec);
+            }
+        }
+
+        /**
+         * @returns a payload size drawn from the distribution
+         */
+        int sample() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double size;
+            if (shape.equals("fixed")) {
+                size = a;
+            }
+            else if (shape.equals("uniform")) {
+                size = a + random.nextDouble() * (b - a);
+            }
+            else {
+                size = Math.exp(a + b * random.nextGaussian());
+            }
+            return (int) Math.min(Math.max(size, 1.0), MAX_PAYLOAD);
+        }
+
+        /**
+         * @returns the largest size this distribution is likely to draw
+         */
+        int ceiling() {
+            if (shape.equals("lognormal")) {
+                return (int) Math.min(Math.exp(a + 4.0 * b), MAX_PAYLOAD);
+            }
+            return (int) Math.min(Math.max(a, b), MAX_PAYLOAD);
+        }
+
+        public String toString() {
+            return spec;
+        }
+
+        private final String spec;
+        private final String shape;
+        private final double a;
+        private final double b;
+    }
+
+    /**
+     * Operation
+     *
+     * One entry of the mix, with its measurements.
+     */
+    static class Operation {
+
+        Operation(ConnectionType type, Mode mode, double weight, SizeDistribution sizes) {
+            this.name = type + "/" + mode.name().toLowerCase();
+            this.type = type;
+            this.mode = mode;
+            this.weight = weight;
+            this.sizes = sizes;
+            this.latency = new LatencyHistogram();
+            this.service = new LatencyHistogram();
+            this.issued = new LongAdder();
+            this.completed = new LongAdder();
+            this.timeouts = new LongAdder();
+            this.errors = new LongAdder();
+            this.shed = new LongAdder();
+        }
+
+        final String           name;
+        final ConnectionType   type;
+        final Mode             mode;
+        final double           weight;
+        final SizeDistribution sizes;
+        final LatencyHistogram latency;
+        final LatencyHistogram service;
+        final LongAdder        issued;
+        final LongAdder        completed;
+        final LongAdder        timeouts;
+        final LongAdder        errors;
+        final LongAdder        shed;
+    }
+
+    private final List<Operation> operations;
+    private final double          totalWeight;
+    private final double          rate;
+    private final boolean         poisson;
+    private final long            warmupNanos;
+    private final long            durationNanos;
+    private final long            timeout;
+    private final int             maxOutstanding;
+    private final Path            results;
+    private final String          mix;
+    private final AtomicInteger   outstanding;
+    private final Executor        executor;
+    private final Logger          logger;
+    private String                text;
+    private Instant               startedAt;
+
+    /**
+     * Constructor
+     *
+     * @params  load settings, see the class comment
+     */
+    public LoadGenerator(Properties props) {
+        rate = Double.parseDouble(props.getProperty("load.rate", "100").trim());
+        poisson = props.getProperty("load.arrivals", "poisson").trim().equalsIgnoreCase("poisson");
+        long warmup = Long.parseLong(props.getProperty("load.warmup", "10").trim());
+        long duration = Long.parseLong(props.getProperty("load.duration", "60").trim());
+        warmupNanos = TimeUnit.SECONDS.toNanos(warmup);
+        durationNanos = TimeUnit.SECONDS.toNanos(duration);
+        timeout = Long.parseLong(props.getProperty("load.timeout", "5000").trim());
+        maxOutstanding = Integer.parseInt(props.getProperty("load.max_outstanding", "10000").trim());
+        results = Paths.get(props.getProperty("load.results", "load-results.json").trim());
+        if (rate <= 0) {
+            throw new IllegalArgumentException("load.rate must be positive: " + rate);
+        }
+
+        /// the mix, each entry TYPE[/MODE]:WEIGHT
+        mix = props.getProperty("load.mix", "Read:1").trim();
+        String defaultSizes = props.getProperty("load.payload", "fixed:1024");
+        operations = new ArrayList<Operation>();
+        double sum = 0.0;
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            String[] op = parts[0].trim().split("/");
+            ConnectionType type = ConnectionType.valueOf(op[0].trim());
+            Mode mode = op.length > 1 ? Mode.valueOf(op[1].trim().toUpperCase()) : Mode.SEND;
+            double weight = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : 1.0;
+            String sizes = props.getProperty("load.payload." + type, defaultSizes);
+            operations.add(new Operation(type, mode, weight, new SizeDistribution(sizes)));
+            sum += weight;
+        }
+        totalWeight = sum;
+        outstanding = new AtomicInteger();
+        executor = TaskExecutors.shared();
+        logger = LoggerAdapter.getInstance().getLogger();
+    }
+
+    /**
+     * Run
+     *
+     * Issues the load for the warm-up and measure phases on the calling
+     * thread, then waits for what is still in flight.
+     */
+    public void run() {
+        text = payloadText();
+        startedAt = Instant.now();
+        long start = System.nanoTime();
+        long measureFrom = start + warmupNanos;
+        long end = measureFrom + durationNanos;
+        double gap = TimeUnit.SECONDS.toNanos(1) / rate;
+        logger.info("Load: " + rate + "/s " + (poisson ? "poisson" : "uniform") + ", mix " + mix
+            + ", warm-up " + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + "s, measure "
+            + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + "s");
+
+        /// the schedule does not wait for completions: if issuing falls
+        /// behind, the overdue requests go out at once and the delay shows
+        /// up in their latency
+        long intended = start;
+        while (intended < end) {
+            waitUntil(intended);
+            Operation op = pick();
+            boolean measured = intended >= measureFrom;
+            if (outstanding.get() >= maxOutstanding) {
+                if (measured) {
+                    op.shed.increment();
+                }
+            }
+            else {
+                issue(op, intended, measured);
+            }
+            double next = poisson
+                ? -gap * Math.log(1.0 - ThreadLocalRandom.current().nextDouble())
+                : gap;
+            intended += Math.max((long) next, 1L);
+        }
+        long drainUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        while (outstanding.get() > 0 && System.nanoTime() < drainUntil) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        if (outstanding.get() > 0) {
+            logger.warning("Requests still in flight after the drain: " + outstanding.get());
+        }
+    }
+
+    /**
+     * Issue
+     *
+     * Hands one request to the task executor.
+     *
+     * @params  operation to perform
+     * @params  nano time the request was due
+     * @params  true if in the measure phase
+     */
+    private void issue(Operation op, long intended, boolean measured) {
+        String payload = text.substring(0, Math.min(op.sizes.sample(), text.length()));
+        outstanding.incrementAndGet();
+        if (measured) {
+            op.issued.increment();
+        }
+        executor.execute(() -> {
+            long started = System.nanoTime();
+            CompletableFuture<Outcome> outcome;
+            try {
+                outcome = perform(op, payload);
+            }
+            catch (RuntimeException ex) {
+                outcome = CompletableFuture.failedFuture(ex);
+            }
+            outcome.whenComplete((result, ex) -> {
+                outstanding.decrementAndGet();
+                if (! measured) {
+                    return;
+                }
+                long now = System.nanoTime();
+                if (ex != null || result == Outcome.ERROR) {
+                    op.errors.increment();
+                }
+                else if (result == Outcome.TIMEOUT) {
+                    op.timeouts.increment();
+                }
+                else {
+                    op.completed.increment();
+                    op.latency.record(now - intended);
+                    op.service.record(now - started);
+                }
+            });
+        });
+    }
+
+    /**
+     * Perform
+     *
+     * @params  operation to perform
+     * @params  payload to send
+     * @returns future completed with the outcome; a send completes before
+     *          this returns
+     */
+    private CompletableFuture<Outcome> perform(Operation op, String payload) {
+        if (op.mode == Mode.SEND) {
+            /// run the blocking exchange on this task's own thread
+            return Dispatcher.submit(payload, op.type, true, Runnable::run)
+                .thenApply(id -> Outcome.OK);
+        }
+        return Dispatcher.sendAndReceive(payload, op.type, Deadline.after(timeout))
+            .thenApply(reply -> reply.isTimedOut() ? Outcome.TIMEOUT : Outcome.OK);
+    }
+
+    /**
+     * @returns an operation drawn by weight
+     */
+    private Operation pick() {
+        double draw = ThreadLocalRandom.current().nextDouble() * totalWeight;
+        for (Operation op : operations) {
+            draw -= op.weight;
+            if (draw < 0) {
+                return op;
+            }
+        }
+        return operations.get(operations.size() - 1);
+    }
+
+    /**
+     * Wait Until
+     *
+     * @params  nano time to sleep until
+     */
+    private static void waitUntil(long deadline) {
+        for (long left = deadline - System.nanoTime(); left > 0; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    /**
+     * Payload Text
+     *
+     * XML-ish text long enough for the largest payload of the mix; payloads
+     * are prefixes of it, compressible like the real requests.
+     *
+     * @returns payload text
+     */
+    private String payloadText() {
+        int size = 1;
+        for (Operation op : operations) {
+            size = Math.max(size, op.sizes.ceiling());
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            sb.append("<field id=\"").append(random.nextInt(10000)).append("\">");
+            sb.append(Long.toHexString(random.nextLong()));
+            sb.append("</field>");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    /**
+     * Write Results
+     *
+     * Writes the settings, per operation counts, throughput and latency
+     * percentiles (in micros), and the pools' metrics as JSON.
+     *
+     * @throws  IOException
+     */
+    public void writeResults() throws IOException {
+        double seconds = durationNanos / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"startedAt\": ").append(quote(startedAt.toString())).append(",\n");
+        sb.append("  \"config\": {");
+        sb.append("\"rate\": ").append(rate);
+        sb.append(", \"arrivals\": ").append(quote(poisson ? "poisson" : "uniform"));
+        sb.append(", \"mix\": ").append(quote(mix));
+        sb.append(", \"warmupSeconds\": ").append(warmupNanos / 1e9);
+        sb.append(", \"durationSeconds\": ").append(seconds);
+        sb.append(", \"timeoutMillis\": ").append(timeout);
+        sb.append(", \"executor\": ").append(quote(TaskExecutors.configuredMode().name()));
+        sb.append("},\n");
+        sb.append("  \"operations\": [");
+        for (int i = 0; i < operations.size(); ++i) {
+            Operation op = operations.get(i);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\"name\": ").append(quote(op.name));
+            sb.append(", \"type\": ").append(quote(op.type.name()));
+            sb.append(", \"mode\": ").append(quote(op.mode.name().toLowerCase()));
+            sb.append(", \"payload\": ").append(quote(op.sizes.toString()));
+            sb.append(", \"issued\": ").append(op.issued.sum());
+            sb.append(", \"completed\": ").append(op.completed.sum());
+            sb.append(", \"timeouts\": ").append(op.timeouts.sum());
+            sb.append(", \"errors\": ").append(op.errors.sum());
+            sb.append(", \"shed\": ").append(op.shed.sum());
+            sb.append(", \"throughput\": ").append(String.format("%.2f", op.completed.sum() / seconds));
+            sb.append(",\n     \"latencyMicros\": ").append(percentiles(op.latency.snapshot()));
+            sb.append(",\n     \"serviceMicros\": ").append(percentiles(op.service.snapshot()));
+            sb.append("}");
+        }
+        sb.append("\n  ],\n");
+        sb.append("  \"pools\": {");
+        ConnectionPool pool = ConnectionPool.getInstance();
+        ConnectionType[] types = ConnectionType.values();
+        for (int i = 0; i < types.length; ++i) {
+            PoolMetrics.Snapshot s = pool.snapshot(types[i]);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    ").append(quote(types[i].name())).append(": {");
+            sb.append("\"total\": ").append(s.total);
+            sb.append(", \"target\": ").append(s.target);
+            sb.append(", \"creates\": ").append(s.creates);
+            sb.append(", \"waits\": ").append(s.waits);
+            sb.append(", \"timeouts\": ").append(s.timeouts);
+            sb.append(", \"retries\": ").append(s.retries);
+            sb.append(", \"breakerTrips\": ").append(s.breakerTrips);
+            sb.append(", \"hedges\": ").append(s.hedges);
+            sb.append(", \"hedgeWins\": ").append(s.hedgeWins);
+            sb.append(",\n      \"acquireMicros\": ").append(percentiles(s.acquireLatency));
+            /// how the load was spread over the endpoints of the type
+            sb.append(",\n      \"endpoints\": {");
+            List<String> endpoints = pool.endpoints(types[i]);
+            for (int j = 0; j < endpoints.size(); ++j) {
+                PoolMetrics.Snapshot e = pool.snapshot(types[i], endpoints.get(j));
+                sb.append(j == 0 ? "" : ", ");
+                sb.append(quote(endpoints.get(j))).append(": {");
+                sb.append("\"acquires\": ").append(e.acquireLatency.getCount());
+                sb.append(", \"retries\": ").append(e.retries);
+                sb.append(", \"breakerTrips\": ").append(e.breakerTrips);
+                sb.append(", \"errorRate\": ").append(String.format("%.3f", e.errorRate));
+                sb.append(", \"drained\": ").append(e.drained);
+                sb.append("}");
+            }
+            sb.append("}");
+            sb.append("}");
+        }
+        sb.append("\n  }\n");
+        sb.append("}\n");
+        try (Writer out = Files.newBufferedWriter(results, StandardCharsets.UTF_8)) {
+            out.write(sb.toString());
+        }
+        logger.info("Load results written to: " + results.toAbsolutePath());
+    }
+
+    /**
+     * Summary
+     *
+     * @returns one line per operation, for the log
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        double seconds = durationNanos / 1e9;
+        for (Operation op : operations) {
+            LatencyHistogram.Snapshot s = op.latency.snapshot();
+            sb.append(String.format("%-14s %9.1f/s  ok %d  timeouts %d  errors %d  shed %d  "
+                    + "p50 %dus  p99 %dus  p99.9 %dus  max %dus%n",
+                op.name, op.completed.sum() / seconds, op.completed.sum(), op.timeouts.sum(),
+                op.errors.sum(), op.shed.sum(), micros(s.percentile(50)), micros(s.percentile(99)),
+                micros(s.percentile(99.9)), micros(s.getMax())));
+        }
+        return sb.toString();
+    }
+
+    private static String percentiles(LatencyHistogram.Snapshot s) {
+        return "{\"count\": " + s.getCount()
+            + ", \"mean\": " + micros((long) s.getMean())
+            + ", \"p50\": " + micros(s.percentile(50))
+            + ", \"p90\": " + micros(s.percentile(90))
+            + ", \"p99\": " + micros(s.percentile(99))
+            + ", \"p999\": " + micros(s.percentile(99.9))
+            + ", \"max\": " + micros(s.getMax()) + "}";
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Main
+     *
+     * @params  optional path of the load properties file
+     */
+    public static void main(String[] args) throws Exception {
+        LoggerAdapter.getInstance().init();
+        Logger logger = LoggerAdapter.getInstance().getLogger();
+        Properties props = new Properties();
+        if (args.length > 0) {
+            try (InputStream stream = new FileInputStream(args[0])) {
+                props.load(stream);
+            }
+        }
+        ConnectionConfiguration.init();
+
+        /// without a queue manager to answer, let the in-memory broker echo;
+        /// the demultiplexers drain replies to sends nobody waits for
+        if (Boolean.parseBoolean(props.getProperty("load.echo", "false").trim())) {
+            long mean = Long.parseLong(props.getProperty("load.echo_mean_us", "1000").trim());
+            MemoryBroker.Latency service = MemoryBroker.Latency.exponential(0, mean);
+            Set<String> echoed = new HashSet<String>();
+            PoolConfiguration config = ConnectionConfiguration.current();
+            List<ConnectionProperties> shards = new ArrayList<ConnectionProperties>();
+            for (String name : config.names()) {
+                shards.addAll(config.endpoints(name));
+            }
+            for (ConnectionProperties p : shards) {
+                MemoryBroker broker = MemoryBroker.getInstance(p.manager);
+                for (String queue : new String[] { p.sendQueue, p.hedgeSendQueue }) {
+                    if (queue != null && echoed.add(p.manager + "/" + queue)) {
+                        broker.echo(queue, p.receiveQueue, service);
+                    }
+                }
+                ReplyDemultiplexer.getInstance(p);
+            }
+        }
+        ConnectionPool pool = ConnectionPool.getInstance();
+        pool.init();
+        LoadGenerator generator = new LoadGenerator(props);
+        generator.run();
+        logger.info("Load results:\n" + generator.summary());
+        generator.writeResults();
+        pool.shutdown(5000);
+    }
+}
@@ -1,11 +1,39 @@
-import java.util.Date;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.Logger;
+import java.util.logging.Handler;
 import java.util.logging.LogRecord;
+import java.util.logging.Formatter;
 import java.util.logging.ConsoleHandler;
-import java.util.logging.SimpleFormatter;
 
 public class LoggerAdapter {
 
+    /**
+     * Record Formatter
+     *
+     * Formats "timestamp level thread message". The timestamp pattern is
+     * compiled once and, being immutable, needs no synchronization. The
+     * thread is the one that logged the record, not the one formatting it.
+     */
+    static class RecordFormatter extends Formatter {
+
+        private static final DateTimeFormatter timestamp =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSSSSS")
+                .withZone(ZoneId.systemDefault());
+
+        @Override
+        public String format(LogRecord rec) {
+            String message = rec.getMessage();
+            StringBuilder sb = new StringBuilder(48 + (message == null ? 4 : message.length()));
+            timestamp.formatTo(rec.getInstant(), sb);
+            sb.append(' ').append(rec.getLevel().getLocalizedName());
+            sb.append(' ').append(rec.getLongThreadID());
+            sb.append(' ').append(message);
+            sb.append(System.lineSeparator());
+            return sb.toString();
+        }
+    }
+
     private static LoggerAdapter instance = null;
     private Logger logger = null;
 
@@ -16,23 +44,46 @@ public class LoggerAdapter {
         return instance;
     }
 
+    /**
+     * Initialize
+     *
+     * Asynchronous by default; set with system properties since this runs
+     * before the mq configuration is read:
+     * - mq.log.async           true/false
+     * - mq.log.buffer_size     records the ring buffer holds
+     * - mq.log.overflow        drop or block when the buffer is full
+     */
     public void init() throws Exception {
+        boolean async = Boolean.parseBoolean(System.getProperty("mq.log.async", "true"));
+        int capacity = Integer.parseInt(System.getProperty("mq.log.buffer_size", "8192"));
+        String overflow = System.getProperty("mq.log.overflow", "drop");
+        init(async, capacity, AsyncHandler.OverflowPolicy.valueOf(overflow.trim().toUpperCase()));
+    }
+
+    /**
+     * Initialize
+     *
+     * @params  true to write log records on a background thread
+     * @params  number of records buffered for the background thread
+     * @params  what to do when the buffer is full
+     */
+    public void init(boolean async, int capacity, AsyncHandler.OverflowPolicy policy) {
         logger = Logger.getLogger(LoggerAdapter.class.getName());
         logger.setUseParentHandlers(false);
-        ConsoleHandler handler = new ConsoleHandler();
-        handler.setFormatter(new SimpleFormatter() {
-            private static final String format =
-                "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS.%1$tN %2$s %3$d %4$s%n";
-            @Override
-            public synchronized String format(LogRecord rec) {
-                Date date = new Date(rec.getMillis());
-                String level = rec.getLevel().getLocalizedName();
-                long threadId = Thread.currentThread().getId();
-                String message = rec.getMessage();
-                return String.format(format, date, level, threadId, message);
-            }
-        });
-        logger.addHandler(handler);
+        for (Handler old : logger.getHandlers()) {
+            logger.removeHandler(old);
+            old.close();
+        }
+        ConsoleHandler console = new ConsoleHandler();
+        console.setFormatter(new RecordFormatter());
+        if (async) {
+            AsyncHandler handler = new AsyncHandler(console, capacity, policy);
+            handler.setFormatter(console.getFormatter());
+            logger.addHandler(handler);
+        }
+        else {
+            logger.addHandler(console);
+        }
     }
 
     public Logger getLogger() {
@@ -0,0 +1,208 @@
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * Class:  LzCodec
+ *
+ * Fast pure Java LZ77 codec using the LZ4 block layout, trading ratio for
+ * speed. The output is a 4 byte big endian uncompressed length followed by
+ * sequences of:
+ * - a token: literal length in the high nibble, match length - 4 in the low
+ *   nibble (15 meaning more length bytes follow, 255 meaning more again).
+ * - the literals.
+ * - a 2 byte little endian match offset and any extra match length bytes.
+ * The final sequence holds literals only. Matches are found with a single
+ * probe into a hash table of 4 byte sequences kept in the context.
+ */
+public class LzCodec implements CompressionCodec {
+
+    public static final String NAME = "lz";
+
+    static final int HASH_BITS     = 14;
+    static final int MIN_MATCH     = 4;
+    static final int MAX_OFFSET    = 65535;
+
+    /// the last bytes are always literals, and matches start before this
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_LIMIT   = 12;
+
+    public String name() {
+        return NAME;
+    }
+
+    public int compress(CompressionContext context, byte[] source, int length) {
+        byte[] out = context.output(4 + length + length / 255 + 16);
+        int[] table = context.hashTable(HASH_BITS);
+        Arrays.fill(table, -1);
+
+        writeInt(out, 0, length);
+        int op = 4;
+        int ip = 0;
+        int anchor = 0;
+        int limit = length - MATCH_LIMIT;
+
+        while (ip < limit) {
+            int sequence = readInt(source, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(source, ref) != sequence) {
+                ++ip;
+                continue;
+            }
+            /// extend the match, leaving the last bytes as literals
+            int matchLength = MIN_MATCH;
+            int maxLength = length - LAST_LITERALS - ip;
+            while (matchLength < maxLength
+                   && source[ref + matchLength] == source[ip + matchLength]) {
+                ++matchLength;
+            }
+            op = writeSequence(out, op, source, anchor, ip - anchor, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeSequence(out, op, source, anchor, length - anchor, 0, 0);
+    }
+
+    public int decompress(CompressionContext context, byte[] source, int length)
+        throws DataFormatException {
+
+        try {
+            if (length < 4) {
+                throw new DataFormatException("Truncated lz header");
+            }
+            int original = readInt(source, 0);
+            /// a byte of match length stands for 255 bytes at most, so no
+            /// more than that is allocated for a corrupt header
+            if (original < 0 || original > (long) (length - 4) * 255 + 16) {
+                throw new DataFormatException("Invalid lz length: " + original
+                    + " for " + (length - 4) + " bytes");
+            }
+            byte[] out = context.output(original);
+            int ip = 4;
+            int op = 0;
+
+            while (ip < length) {
+                int token = source[ip++] & 0xff;
+
+                /// literals
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = source[ip++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (ip + literals > length || op + literals > original) {
+                    throw new DataFormatException("Corrupt lz literals");
+                }
+                System.arraycopy(source, ip, out, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= length) {
+                    break;
+                }
+
+                /// match
+                int offset = (source[ip] & 0xff) | ((source[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int matchLength = token & 0x0f;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = source[ip++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (offset == 0 || offset > op || op + matchLength > original) {
+                    throw new DataFormatException("Corrupt lz match");
+                }
+                int from = op - offset;
+                if (offset >= matchLength) {
+                    System.arraycopy(out, from, out, op, matchLength);
+                    op += matchLength;
+                }
+                else {
+                    /// overlapping copy, a repeating pattern
+                    for (int end = op + matchLength; op < end;) {
+                        out[op++] = out[from++];
+                    }
+                }
+            }
+            if (op != original) {
+                throw new DataFormatException("Truncated lz input");
+            }
+            return op;
+        }
+        catch (IndexOutOfBoundsException ex) {
+            throw new DataFormatException("Corrupt lz input");
+        }
+    }
+
+    /**
+     * Write Sequence
+     *
+     * @params  output buffer
+     * @params  output position
+     * @params  source buffer
+     * @params  start of the literals in the source
+     * @params  number of literals
+     * @params  match offset, unused if there is no match
+     * @params  match length, zero for the final literals only sequence
+     * @returns new output position
+     */
+    private static int writeSequence(byte[] out, int op, byte[] source, int anchor,
+                                     int literals, int offset, int matchLength) {
+        int tokenPosition = op++;
+        int token = Math.min(literals, 15) << 4;
+        if (literals >= 15) {
+            op = writeLength(out, op, literals - 15);
+        }
+        System.arraycopy(source, anchor, out, op, literals);
+        op += literals;
+
+        if (matchLength > 0) {
+            out[op++] = (byte) offset;
+            out[op++] = (byte) (offset >>> 8);
+            int extra = matchLength - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            if (extra >= 15) {
+                op = writeLength(out, op, extra - 15);
+            }
+        }
+        out[tokenPosition] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] out, int op, int length) {
+        for (; length >= 255; length -= 255) {
+            out[op++] = (byte) 255;
+        }
+        out[op++] = (byte) length;
+        return op;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16)
+            | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] b, int i, int value) {
+        b[i] = (byte) (value >>> 24);
+        b[i + 1] = (byte) (value >>> 16);
+        b[i + 2] = (byte) (value >>> 8);
+        b[i + 3] = (byte) value;
+    }
+
+    public String toString() {
+        return NAME;
+    }
+}
@@ -1,4 +1,11 @@
 public class MQQueue {
+    private final String name;
+    public MQQueue(String name) {
+        this.name = name;
+    }
+    public String getQueueName() {
+        return name;
+    }
     public void setTargetClient(String s) {
     }
 }
@@ -1,10 +1,16 @@
 public class MQQueueConnection {
+    final MemoryBroker broker;
+    volatile boolean closed;
+    MQQueueConnection(MemoryBroker broker) {
+        this.broker = broker;
+    }
     public void start() {}
-    public MQQueueSession createQueueSession(boolean p1, String p2) {
-        return new MQQueueSession();
+    public MQQueueSession createQueueSession(boolean transacted, String p2) {
+        return new MQQueueSession(this, transacted);
     }
     public void stop() throws JMSException {
     }
     public void close() throws JMSException {
+        closed = true;
     }
 }
@@ -1,17 +1,23 @@
 public class MQQueueConnectionFactory {
 
-    public void setQueueManager(String manager) {}
+    private String manager;
+
+    public void setQueueManager(String manager) {
+        this.manager = manager;
+    }
     public void setHostName(String hostname) {}
     public void setPort(int port) {}
     public void setChannel(String channel) {}
     public void setTransportType(String transportType) {}
     public void setAppName(String appName) {}
 
-    MQQueueConnection createQueueConnection() {
-        return new MQQueueConnection();
+    MQQueueConnection createQueueConnection() throws JMSException {
+        MemoryBroker broker = MemoryBroker.getInstance(manager);
+        broker.inject(MemoryBroker.Operation.CONNECT);
+        return new MQQueueConnection(broker);
     }
 
-    MQQueueConnection createQueueConnection(String user, String password) {
-        return new MQQueueConnection();
+    MQQueueConnection createQueueConnection(String user, String password) throws JMSException {
+        return createQueueConnection();
     }
 }
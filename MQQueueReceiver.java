@@ -1,7 +1,57 @@
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class MQQueueReceiver {
-    public Message receive(long timeout) {
-        return new BytesMessage();
+    private static final Pattern SELECTOR =
+        Pattern.compile("\\s*JMSCorrelationID\\s*=\\s*'([^']*)'\\s*");
+    private static final Pattern PREFIX_SELECTOR =
+        Pattern.compile("\\s*JMSCorrelationID\\s+LIKE\\s+'([^'%_]*)%'\\s*");
+    private final MQQueueSession session;
+    private final MQQueue queue;
+    private final String correlationId;
+    private final boolean prefix;
+    private volatile boolean closed;
+    MQQueueReceiver(MQQueueSession session, MQQueue queue, String selector) throws JMSException {
+        this.session = session;
+        this.queue = queue;
+        if (selector == null || selector.trim().isEmpty()) {
+            this.correlationId = null;
+            this.prefix = false;
+        }
+        else {
+            Matcher m = SELECTOR.matcher(selector);
+            Matcher p = PREFIX_SELECTOR.matcher(selector);
+            if (m.matches()) {
+                this.correlationId = m.group(1);
+                this.prefix = false;
+            }
+            else if (p.matches()) {
+                this.correlationId = p.group(1);
+                this.prefix = true;
+            }
+            else {
+                throw new JMSException("Invalid message selector: " + selector);
+            }
+        }
+    }
+    public Message receive(long timeout) throws JMSException {
+        return take(Math.max(timeout, 0L));
+    }
+    public Message receiveNoWait() throws JMSException {
+        return take(-1L);
+    }
+    private Message take(long timeout) throws JMSException {
+        if (closed) {
+            return null;
+        }
+        session.checkOpen();
+        MemoryBroker broker = session.connection.broker;
+        broker.inject(MemoryBroker.Operation.RECEIVE);
+        return broker.receive(queue.getQueueName(), correlationId, prefix, timeout,
+                              () -> closed || session.isClosed());
     }
     public void close() {
+        closed = true;
+        session.connection.broker.queue(queue.getQueueName()).wakeUp();
     }
 }
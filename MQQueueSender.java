@@ -1,7 +1,15 @@
 public class MQQueueSender {
-    public void send(BytesMessage message) {
+    private final MQQueueSession session;
+    private final MQQueue queue;
+    MQQueueSender(MQQueueSession session, MQQueue queue) {
+        this.session = session;
+        this.queue = queue;
     }
-    public void send(TextMessage message) {
+    public void send(BytesMessage message) throws JMSException {
+        session.send(queue, message);
+    }
+    public void send(TextMessage message) throws JMSException {
+        session.send(queue, message);
     }
     public void close() {
     }
@@ -1,12 +1,25 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
 public class MQQueueSession {
+    final MQQueueConnection connection;
+    final boolean transacted;
+    private final List<Object[]> uncommitted = new ArrayList<Object[]>();
+    private final ReentrantLock lock = new ReentrantLock();
+    volatile boolean closed;
+    MQQueueSession(MQQueueConnection connection, boolean transacted) {
+        this.connection = connection;
+        this.transacted = transacted;
+    }
     MQQueue createQueue(String name) {
-        return new MQQueue();
+        return new MQQueue(name);
     }
     MQQueueSender createSender(MQQueue q) {
-        return new MQQueueSender();
+        return new MQQueueSender(this, q);
     }
-    MQQueueReceiver createReceiver(MQQueue q, String correlationId) {
-        return new MQQueueReceiver();
+    MQQueueReceiver createReceiver(MQQueue q, String selector) throws JMSException {
+        return new MQQueueReceiver(this, q, selector);
     }
     BytesMessage createBytesMessage() {
         return new BytesMessage();
@@ -14,6 +27,61 @@ public class MQQueueSession {
     TextMessage createTextMessage() {
         return new TextMessage();
     }
+    boolean isClosed() {
+        return closed || connection.closed;
+    }
+    void checkOpen() throws JMSException {
+        if (isClosed()) {
+            throw new JMSException("Session closed");
+        }
+    }
+    void send(MQQueue q, Message message) throws JMSException {
+        lock.lock();
+        try {
+            checkOpen();
+            connection.broker.inject(MemoryBroker.Operation.SEND);
+            message.setJMSMessageID(MemoryBroker.nextMessageId());
+            if (transacted) {
+                uncommitted.add(new Object[] { q.getQueueName(), message.copy() });
+            }
+            else {
+                connection.broker.deliver(q.getQueueName(), message);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    void commit() throws JMSException {
+        lock.lock();
+        try {
+            checkOpen();
+            for (Object[] pending : uncommitted) {
+                connection.broker.deliver((String) pending[0], (Message) pending[1]);
+            }
+            uncommitted.clear();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+    void rollback() throws JMSException {
+        lock.lock();
+        try {
+            uncommitted.clear();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
     void close() throws JMSException {
+        closed = true;
+        lock.lock();
+        try {
+            uncommitted.clear();
+        }
+        finally {
+            lock.unlock();
+        }
     }
 }
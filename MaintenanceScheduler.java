@@ -0,0 +1,87 @@
+import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Class:  MaintenanceScheduler
+ *
+ * Runs the pool's periodic jobs (resizing, health checks, metrics) on a small
+ * pool of daemon threads, so one pool's slow job does not hold up the others
+ * as it did on the single java.util.Timer thread.
+ * - A job that throws is logged and keeps its schedule; an uncaught
+ *   exception would otherwise silently cancel every later run.
+ * - Runs of one job never overlap: a run that overruns its period delays
+ *   the next one instead.
+ */
+public class MaintenanceScheduler {
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Logger                      logger;
+
+    /**
+     * Constructor
+     *
+     * @params  number of threads running jobs
+     * @params  name prefix of the threads
+     */
+    public MaintenanceScheduler(int threads, String name) {
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        logger = LoggerAdapter.getInstance().getLogger();
+    }
+
+    /**
+     * Schedule
+     *
+     * @params  name of the job, for the log
+     * @params  job to run
+     * @params  period in millis, also the delay before the first run; jobs
+     *          with a period of zero or less are not scheduled
+     * @returns handle to cancel the job, null if it was not scheduled
+     */
+    public ScheduledFuture<?> schedule(String name, Runnable job, long period) {
+        if (period <= 0) {
+            return null;
+        }
+        Runnable guarded = () -> {
+            try {
+                job.run();
+            }
+            catch (Exception ex) {
+                String s = "Maintenance job failed: " + name;
+                Utilities.logException(ex, s);
+            }
+        };
+        logger.info(() -> "Scheduling " + name + " every " + period + " ms");
+        return executor.scheduleWithFixedDelay(guarded, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shutdown
+     *
+     * Cancels all jobs and waits for running ones to finish.
+     *
+     * @params  maximum time to wait in millis
+     * @returns true if no job was still running after the wait
+     */
+    public boolean shutdown(long timeout) {
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
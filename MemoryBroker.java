@@ -0,0 +1,537 @@
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Class:  MemoryBroker
+ *
+ * In-process stand-in for a queue manager, behind the MQ stubs, so pool
+ * sizing, retries and compression can be load tested without MQ:
+ * - Named queues, created on first use, holding copies of what was sent.
+ * - Every sent message gets a unique JMSMessageID.
+ * - Receivers select on JMSCorrelationID (equal to a value, or LIKE a
+ *   prefix), or take any message without a selector, waiting up to their
+ *   timeout.
+ * - Connect, send and receive can be slowed down by a latency distribution
+ *   and made to fail with a JMSException, at a rate or a number of times.
+ * - A queue can echo what is sent to it onto a reply queue, correlated as
+ *   a real replier would, or discard it.
+ * One broker per queue manager name, so pools on different queue managers
+ * can be given different latency and failures.
+ */
+public class MemoryBroker {
+
+    /**
+     * Operation
+     *
+     * Operations latency and failures can be injected into.
+     */
+    public enum Operation {
+        CONNECT, SEND, RECEIVE
+    }
+
+    /**
+     * Latency
+     *
+     * Distribution of the time an operation takes, in microseconds.
+     */
+    public static final class Latency {
+
+        public static final Latency NONE = new Latency(0L, 0L, false);
+
+        private final long    minMicros;
+        private final long    spreadMicros;
+        private final boolean exponential;
+
+        private Latency(long minMicros, long spreadMicros, boolean exponential) {
+            this.minMicros = Math.max(minMicros, 0L);
+            this.spreadMicros = Math.max(spreadMicros, 0L);
+            this.exponential = exponential;
+        }
+
+        /**
+         * @params  micros every operation takes
+         * @returns constant latency
+         */
+        public static Latency constant(long micros) {
+            return new Latency(micros, 0L, false);
+        }
+
+        /**
+         * @params  least micros an operation takes
+         * @params  most micros an operation takes
+         * @returns latency uniformly distributed between the two
+         */
+        public static Latency uniform(long minMicros, long maxMicros) {
+            return new Latency(minMicros, maxMicros - minMicros, false);
+        }
+
+        /**
+         * @params  least micros an operation takes
+         * @params  mean of the micros added on top, exponentially distributed
+         * @returns latency with a long tail, as a loaded queue manager has
+         */
+        public static Latency exponential(long minMicros, long meanMicros) {
+            return new Latency(minMicros, meanMicros, true);
+        }
+
+        /**
+         * @returns a latency drawn from the distribution, in nanos
+         */
+        long sampleNanos() {
+            if (spreadMicros == 0) {
+                return TimeUnit.MICROSECONDS.toNanos(minMicros);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double extra = exponential
+                ? -spreadMicros * Math.log(1.0 - random.nextDouble())
+                : random.nextDouble() * spreadMicros;
+            return TimeUnit.MICROSECONDS.toNanos(minMicros) + (long) (extra * 1000.0);
+        }
+
+        public String toString() {
+            if (spreadMicros == 0) {
+                return minMicros + "us";
+            }
+            return minMicros + "us + " + (exponential ? "exp " : "uniform ") + spreadMicros + "us";
+        }
+    }
+
+    /**
+     * Fault
+     *
+     * What is injected into one operation.
+     */
+    static final class Fault {
+
+        volatile Latency       latency = Latency.NONE;
+        volatile double        failureRate;
+        final AtomicInteger    failNext = new AtomicInteger();
+        final LongAdder        injected = new LongAdder();
+    }
+
+    /**
+     * Queue
+     *
+     * Messages in arrival order. Receivers scan for the first match of
+     * their selector and wait on a condition if there is none.
+     */
+    static final class Queue {
+
+        Queue(String name) {
+            this.name = name;
+        }
+
+        final String              name;
+        final LinkedList<Message> messages = new LinkedList<Message>();
+        final ReentrantLock       lock = new ReentrantLock();
+        final Condition           arrived = lock.newCondition();
+        volatile boolean          discard;
+
+        /**
+         * Put
+         *
+         * @params  message to append
+         */
+        void put(Message message) {
+            if (discard) {
+                return;
+            }
+            lock.lock();
+            try {
+                messages.addLast(message);
+                arrived.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Take
+         *
+         * @params  correlation id to select, null for any message
+         * @params  true to select correlation ids starting with it
+         * @params  millis to wait, zero to wait indefinitely, less than zero
+         *          not to wait at all
+         * @params  true once the receiver went away
+         * @returns the first matching message, null if none came in time
+         */
+        Message take(String correlationId, boolean prefix, long timeout, BooleanSupplier closed) {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            lock.lock();
+            try {
+                while (! closed.getAsBoolean()) {
+                    for (Iterator<Message> it = messages.iterator(); it.hasNext();) {
+                        Message message = it.next();
+                        if (matches(message.getJMSCorrelationID(), correlationId, prefix)) {
+                            it.remove();
+                            return message;
+                        }
+                    }
+                    if (timeout < 0 || (timeout > 0 && nanos <= 0)) {
+                        return null;
+                    }
+                    if (timeout == 0) {
+                        arrived.await();
+                    }
+                    else {
+                        nanos = arrived.awaitNanos(nanos);
+                    }
+                }
+                return null;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @params  correlation id of a message
+         * @params  correlation id selected, null for any
+         * @params  true to select ids starting with it
+         * @returns true if the message is selected
+         */
+        private static boolean matches(String id, String selected, boolean prefix) {
+            if (selected == null) {
+                return true;
+            }
+            if (id == null) {
+                return false;
+            }
+            return prefix ? id.startsWith(selected) : id.equals(selected);
+        }
+
+        /**
+         * Wake Up
+         *
+         * Lets waiting receivers see that they were closed.
+         */
+        void wakeUp() {
+            lock.lock();
+            try {
+                arrived.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        int depth() {
+            lock.lock();
+            try {
+                return messages.size();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final Map<String, MemoryBroker> brokers =
+        new ConcurrentHashMap<String, MemoryBroker>();
+
+    /// unique across brokers, as MQ message ids are across queue managers
+    private static final AtomicLong messageIds = new AtomicLong();
+
+    private final String                   name;
+    private final Map<String, Queue>       queues;
+    private final Map<Operation, Fault>    faults;
+    private final List<Thread>             responders;
+    private final LongAdder                sent;
+    private final LongAdder                delivered;
+    private volatile boolean               running;
+
+    /**
+     * Accessor
+     *
+     * @params  queue manager name, null for the default
+     * @returns the broker standing in for that queue manager
+     */
+    public static MemoryBroker getInstance(String manager) {
+        String key = manager == null ? "" : manager;
+        return brokers.computeIfAbsent(key, MemoryBroker::new);
+    }
+
+    /**
+     * Constructor
+     *
+     * @params  queue manager name
+     */
+    MemoryBroker(String name) {
+        this.name = name;
+        this.queues = new ConcurrentHashMap<String, Queue>();
+        this.faults = new ConcurrentHashMap<Operation, Fault>();
+        for (Operation op : Operation.values()) {
+            faults.put(op, new Fault());
+        }
+        this.responders = new ArrayList<Thread>();
+        this.sent = new LongAdder();
+        this.delivered = new LongAdder();
+        this.running = true;
+    }
+
+    /// configuration
+
+    /**
+     * Set Latency
+     *
+     * @params  operation to slow down
+     * @params  distribution of the time it takes
+     */
+    public void setLatency(Operation op, Latency latency) {
+        faults.get(op).latency = latency == null ? Latency.NONE : latency;
+    }
+
+    /**
+     * Set Failure Rate
+     *
+     * @params  operation to make fail
+     * @params  probability of a failure, 0 to 1
+     */
+    public void setFailureRate(Operation op, double rate) {
+        faults.get(op).failureRate = Math.min(Math.max(rate, 0.0), 1.0);
+    }
+
+    /**
+     * Fail Next
+     *
+     * @params  operation to make fail
+     * @params  number of upcoming operations which fail, on top of the rate
+     */
+    public void failNext(Operation op, int count) {
+        faults.get(op).failNext.addAndGet(count);
+    }
+
+    /**
+     * Discard
+     *
+     * Drops whatever is sent to the queue from now on, for load which
+     * nobody consumes.
+     *
+     * @params  queue name
+     */
+    public void discard(String queueName) {
+        queue(queueName).discard = true;
+    }
+
+    /**
+     * Echo
+     *
+     * Starts a responder which answers every message sent to the request
+     * queue with a copy on the reply queue, its correlation id set to the
+     * request's message id; a request which carries a correlation id of its
+     * own, such as a chunk of a streamed message, passes that on. The body
+     * is echoed as is, so compressed requests get replies compressed with
+     * the same codec.
+     *
+     * @params  request queue name
+     * @params  reply queue name
+     * @params  time the responder takes per request; requests are served
+     *          concurrently, on the shared task executor
+     */
+    public void echo(String requestQueue, String replyQueue, Latency serviceTime) {
+        Queue requests = queue(requestQueue);
+        Queue replies = queue(replyQueue);
+        Thread thread = new Thread(() -> {
+            while (running) {
+                Message request = requests.take(null, false, 0, () -> ! running);
+                if (request == null) {
+                    continue;
+                }
+                Message reply = request.copy();
+                String correlationId = request.getJMSCorrelationID();
+                reply.setJMSCorrelationID(correlationId != null ? correlationId : request.getJMSMessageID());
+                reply.setJMSMessageID(nextMessageId());
+                if (serviceTime == null || serviceTime == Latency.NONE) {
+                    replies.put(reply);
+                }
+                else {
+                    long nanos = serviceTime.sampleNanos();
+                    TaskExecutors.shared().execute(() -> {
+                        pause(nanos);
+                        replies.put(reply);
+                    });
+                }
+            }
+        }, "MemoryBroker-echo-" + requestQueue);
+        thread.setDaemon(true);
+        synchronized (responders) {
+            responders.add(thread);
+        }
+        thread.start();
+        Logger logger = LoggerAdapter.getInstance().getLogger();
+        logger.info(() -> "Echoing " + requestQueue + " to " + replyQueue + " on broker: " + name);
+    }
+
+    /**
+     * Shutdown
+     *
+     * Stops the responders and forgets all queues and faults; the broker
+     * can be used again afterwards.
+     */
+    public void shutdown() {
+        running = false;
+        for (Queue queue : queues.values()) {
+            queue.wakeUp();
+        }
+        synchronized (responders) {
+            for (Thread thread : responders) {
+                try {
+                    thread.join(1000);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            responders.clear();
+        }
+        queues.clear();
+        for (Operation op : Operation.values()) {
+            faults.put(op, new Fault());
+        }
+        running = true;
+    }
+
+    /// used by the MQ stubs
+
+    /**
+     * Inject
+     *
+     * Applies the operation's latency, then fails it if it is its turn.
+     *
+     * @params  operation about to be performed
+     * @throws  JMSException if a failure was injected
+     */
+    void inject(Operation op) throws JMSException {
+        Fault fault = faults.get(op);
+        pause(fault.latency.sampleNanos());
+        boolean fail = fault.failNext.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0
+            || (fault.failureRate > 0 && ThreadLocalRandom.current().nextDouble() < fault.failureRate);
+        if (fail) {
+            fault.injected.increment();
+            throw new JMSException("Injected " + op + " failure on broker: " + name);
+        }
+    }
+
+    /**
+     * @params  queue name
+     * @returns the queue, created on first use
+     */
+    Queue queue(String queueName) {
+        return queues.computeIfAbsent(queueName, Queue::new);
+    }
+
+    /**
+     * Deliver
+     *
+     * @params  queue name
+     * @params  message as sent, copied so the sender may reuse it
+     */
+    void deliver(String queueName, Message message) {
+        queue(queueName).put(message.copy());
+        sent.increment();
+    }
+
+    /**
+     * Receive
+     *
+     * @params  queue name
+     * @params  correlation id to select, null for any message
+     * @params  true to select correlation ids starting with it
+     * @params  millis to wait, see Queue.take
+     * @params  true once the receiver went away
+     * @returns message, null if none came in time
+     */
+    Message receive(String queueName, String correlationId, boolean prefix, long timeout,
+                    BooleanSupplier closed) {
+        Message message = queue(queueName).take(correlationId, prefix, timeout, closed);
+        if (message != null) {
+            delivered.increment();
+        }
+        return message;
+    }
+
+    /**
+     * @returns a new, unique message id
+     */
+    static String nextMessageId() {
+        return String.format("ID:%048x", messageIds.incrementAndGet());
+    }
+
+    /**
+     * Pause
+     *
+     * @params  nanos to sleep, not cut short by spurious wake ups
+     */
+    private static void pause(long nanos) {
+        long end = System.nanoTime() + nanos;
+        for (long left = nanos; left > 0; left = end - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    /// statistics
+
+    /**
+     * @params  queue name
+     * @returns messages waiting on the queue
+     */
+    public int depth(String queueName) {
+        Queue queue = queues.get(queueName);
+        return queue == null ? 0 : queue.depth();
+    }
+
+    /**
+     * @returns messages sent to any queue
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @returns messages taken off any queue
+     */
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * @params  operation
+     * @returns failures injected into it
+     */
+    public long getInjected(Operation op) {
+        return faults.get(op).injected.sum();
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Broker " + name + ": sent " + getSent() + ", delivered " + getDelivered());
+        for (Operation op : Operation.values()) {
+            Fault fault = faults.get(op);
+            sb.append(", " + op + " " + fault.latency + " failing " + fault.failureRate);
+        }
+        return sb.toString();
+    }
+}
@@ -1,2 +1,36 @@
+import java.util.HashMap;
+import java.util.Map;
+
 public class Message {
+    private Map<String, String> properties = new HashMap<String, String>();
+    private String messageId;
+    private String correlationId;
+    public String getJMSMessageID() {
+        return messageId;
+    }
+    public void setJMSMessageID(String messageId) {
+        this.messageId = messageId;
+    }
+    public String getJMSCorrelationID() {
+        return correlationId;
+    }
+    public void setJMSCorrelationID(String correlationId) {
+        this.correlationId = correlationId;
+    }
+    public String getStringProperty(String name) {
+        return properties.get(name);
+    }
+    public void setStringProperty(String name, String value) {
+        properties.put(name, value);
+    }
+    Message copy() {
+        return copyHeaders(new Message());
+    }
+    <T extends Message> T copyHeaders(T target) {
+        Message m = target;
+        m.messageId = messageId;
+        m.correlationId = correlationId;
+        m.properties = new HashMap<String, String>(properties);
+        return target;
+    }
 }
@@ -0,0 +1,433 @@
+import java.util.Arrays;
+import java.nio.ByteOrder;
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Class:  ParallelCodec
+ *
+ * Splits a large message into blocks, compresses them with another codec
+ * concurrently on the common ForkJoinPool, and frames the result so it
+ * describes itself. The frame, big endian:
+ * - magic "MQFP" and a version byte.
+ * - the block codec: a length byte and its name, ASCII.
+ * - block size, block count and uncompressed length, 4 bytes each.
+ * - compressed length of every block, 4 bytes each.
+ * - the compressed blocks, in order.
+ * Every block but the last holds block size bytes. The table lets the
+ * blocks be decompressed concurrently as well, each straight into its own
+ * part of the result.
+ *
+ * Blocks are worked on in each thread's block context (one lent from the
+ * pool on a virtual thread), see CompressionContext.acquireForBlock, never
+ * in the context of the message being framed, so the calling thread can
+ * take its share of the blocks. The
+ * instance registered under NAME decompresses any frame, whatever its
+ * block codec and size; pools pick it for messages above their parallel
+ * threshold, see Connection.
+ */
+public class ParallelCodec implements CompressionCodec {
+
+    public static final String NAME = "parallel";
+
+    /// 1 MiB, large enough for deflate to find its matches in each block
+    public static final int    DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    /// largest message framed, 256 MiB as the largest pooled buffer;
+    /// anything larger is streamed, see ChunkedOutputStream. A frame
+    /// header announcing more is corrupt, and is not allocated for
+    public static final int    MAX_LENGTH = 1 << BufferArena.MAX_SLAB_SHIFT;
+
+    private static final int   MAGIC   = 0x4D514650;
+    private static final byte  VERSION = 1;
+
+    /// shared by every pool and the rest of the process
+    private static final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /// work on one block, see forEachBlock
+    private interface Block {
+        void run(int index) throws DataFormatException;
+    }
+
+    /**
+     * Blocks
+     *
+     * Halves a range of blocks until a single one is left.
+     */
+    private static final class Blocks extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        Blocks(Block block, int from, int to, AtomicReference<DataFormatException> failure) {
+            this.block = block;
+            this.from = from;
+            this.to = to;
+            this.failure = failure;
+        }
+
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Blocks(block, from, middle, failure),
+                          new Blocks(block, middle, to, failure));
+                return;
+            }
+            /// one corrupt block spoils the message, skip the rest
+            if (failure.get() != null) {
+                return;
+            }
+            try {
+                block.run(from);
+            }
+            catch (DataFormatException ex) {
+                failure.compareAndSet(null, ex);
+            }
+        }
+
+        private final Block                                 block;
+        private final int                                   from;
+        private final int                                   to;
+        private final AtomicReference<DataFormatException>  failure;
+    }
+
+    /**
+     * Frame
+     *
+     * A parsed frame header.
+     */
+    private static final class Frame {
+        CompressionCodec codec;
+        int              blockSize;
+        int              length;
+        int[]            compressed;
+    }
+
+    private final CompressionCodec codec;
+    private final int              blockSize;
+
+    /**
+     * Constructor
+     *
+     * @params  codec compressing each block
+     * @params  uncompressed bytes per block
+     */
+    public ParallelCodec(CompressionCodec codec, int blockSize) {
+        if (codec instanceof ParallelCodec) {
+            throw new IllegalArgumentException("Blocks cannot be framed again: " + codec);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        if (codec.name().getBytes(StandardCharsets.US_ASCII).length > 255) {
+            throw new IllegalArgumentException("Codec name too long: " + codec.name());
+        }
+        this.codec = codec;
+        this.blockSize = blockSize;
+    }
+
+    public String name() {
+        return NAME;
+    }
+
+    /**
+     * @returns codec compressing each block
+     */
+    public CompressionCodec codec() {
+        return codec;
+    }
+
+    public int compress(CompressionContext context, byte[] source, int length) {
+        return compress(context, ByteBuffer.wrap(source, 0, length));
+    }
+
+    public int compress(CompressionContext context, ByteBuffer source) {
+        int length = source.remaining();
+        byte[][] blocks = compressBlocks(source);
+        int size = frameLength(blocks);
+        ByteBuffer frame = ByteBuffer.wrap(context.output(size), 0, size);
+        write(frame, length, blocks);
+        return size;
+    }
+
+    public int compress(CompressionContext context, ByteBuffer source, ByteBuffer target) {
+        int length = source.remaining();
+        byte[][] blocks = compressBlocks(source);
+        int size = frameLength(blocks);
+        if (size > target.remaining()) {
+            throw new BufferOverflowException();
+        }
+        write(target, length, blocks);
+        return size;
+    }
+
+    public int maxCompressedLength(int length) {
+        int count = blockCount(length, blockSize);
+        int last = length - (count - 1) * blockSize;
+        int full = codec.maxCompressedLength(blockSize);
+        int tail = codec.maxCompressedLength(last);
+        if (full < 0 || tail < 0) {
+            return -1;
+        }
+        long bound = headerLength(codec, count) + (long) (count - 1) * full + tail;
+        return (int) Math.min(bound, Integer.MAX_VALUE - 8);
+    }
+
+    public int decompress(CompressionContext context, byte[] source, int length)
+        throws DataFormatException {
+
+        ByteBuffer frame = ByteBuffer.wrap(source, 0, length);
+        Frame header = read(frame);
+        byte[] output = context.output(header.length);
+        decompressBlocks(header, frame, ByteBuffer.wrap(output, 0, header.length));
+        return header.length;
+    }
+
+    public int decompress(CompressionContext context, ByteBuffer source, ByteBuffer target)
+        throws DataFormatException {
+
+        ByteBuffer frame = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+        Frame header = read(frame);
+        if (header.length > target.remaining()) {
+            throw new DataFormatException("Framed " + header.length + " bytes, room for "
+                + target.remaining());
+        }
+        decompressBlocks(header, frame, target);
+        source.position(frame.position());
+        return header.length;
+    }
+
+    /**
+     * Compress Blocks
+     *
+     * @params  bytes to compress, from position to limit; consumed
+     * @returns compressed blocks, in order
+     */
+    private byte[][] compressBlocks(ByteBuffer source) {
+        int start = source.position();
+        int length = source.remaining();
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Too large to frame: " + length + " bytes, stream it");
+        }
+        byte[][] blocks = new byte[blockCount(length, blockSize)][];
+        try {
+            forEachBlock(blocks.length, index -> {
+                ByteBuffer block = source.duplicate();
+                block.position(start + index * blockSize);
+                block.limit(start + index * blockSize + blockLength(index, length, blockSize));
+                try (CompressionContext context = CompressionContext.acquireForBlock()) {
+                    int count = codec.compress(context, block);
+                    blocks[index] = Arrays.copyOf(context.output(0), count);
+                }
+            });
+        }
+        catch (DataFormatException ex) {
+            /// compressing does not throw it
+            throw new IllegalStateException(ex);
+        }
+        source.position(source.limit());
+        return blocks;
+    }
+
+    /**
+     * Decompress Blocks
+     *
+     * @params  frame header
+     * @params  the blocks, from position; consumed
+     * @params  buffer receiving the uncompressed bytes at its position
+     * @throws  DataFormatException if a block is corrupt or not as long as
+     *          the header says
+     */
+    private static void decompressBlocks(Frame header, ByteBuffer source, ByteBuffer target)
+        throws DataFormatException {
+
+        int count = header.compressed.length;
+        int[] offsets = new int[count];
+        long end = source.position();
+        for (int i = 0; i < count; ++i) {
+            offsets[i] = (int) end;
+            end += header.compressed[i];
+        }
+        if (end > source.limit()) {
+            throw new DataFormatException("Frame truncated, " + (end - source.limit())
+                + " bytes missing");
+        }
+        int start = target.position();
+        forEachBlock(count, index -> {
+            int expected = blockLength(index, header.length, header.blockSize);
+            ByteBuffer block = source.duplicate();
+            block.position(offsets[index]);
+            block.limit(offsets[index] + header.compressed[index]);
+            ByteBuffer part = target.duplicate();
+            part.position(start + index * header.blockSize);
+            part.limit(start + index * header.blockSize + expected);
+            try (CompressionContext context = CompressionContext.acquireForBlock()) {
+                int n = header.codec.decompress(context, block, part);
+                if (n != expected) {
+                    throw new DataFormatException("Block " + index + " decompressed to " + n
+                        + " bytes, expected " + expected);
+                }
+            }
+        });
+        source.position((int) end);
+        target.position(start + header.length);
+    }
+
+    /**
+     * For Each Block
+     *
+     * Runs the work on every block on the shared pool; the calling thread
+     * takes its share. A single block is done on the calling thread alone.
+     *
+     * @params  number of blocks
+     * @params  work on one block
+     * @throws  DataFormatException the first one a block threw
+     */
+    private static void forEachBlock(int count, Block block) throws DataFormatException {
+        if (count == 1) {
+            block.run(0);
+            return;
+        }
+        AtomicReference<DataFormatException> failure = new AtomicReference<DataFormatException>();
+        pool.invoke(new Blocks(block, 0, count, failure));
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Write
+     *
+     * @params  buffer receiving the frame at its position
+     * @params  uncompressed length
+     * @params  compressed blocks
+     */
+    private void write(ByteBuffer target, int length, byte[][] blocks) {
+        ByteBuffer frame = target.duplicate().order(ByteOrder.BIG_ENDIAN);
+        byte[] name = codec.name().getBytes(StandardCharsets.US_ASCII);
+        frame.putInt(MAGIC);
+        frame.put(VERSION);
+        frame.put((byte) name.length);
+        frame.put(name);
+        frame.putInt(blockSize);
+        frame.putInt(blocks.length);
+        frame.putInt(length);
+        for (byte[] block : blocks) {
+            frame.putInt(block.length);
+        }
+        for (byte[] block : blocks) {
+            frame.put(block);
+        }
+        target.position(frame.position());
+    }
+
+    /**
+     * Read
+     *
+     * @params  frame, from position; the header is consumed
+     * @returns the header
+     * @throws  DataFormatException if it is not a valid frame header
+     */
+    private static Frame read(ByteBuffer frame) throws DataFormatException {
+        try {
+            if (frame.getInt() != MAGIC) {
+                throw new DataFormatException("Not a parallel frame");
+            }
+            byte version = frame.get();
+            if (version != VERSION) {
+                throw new DataFormatException("Unsupported frame version: " + version);
+            }
+            byte[] name = new byte[frame.get() & 0xff];
+            frame.get(name);
+            Frame header = new Frame();
+            header.codec = Codecs.forName(new String(name, StandardCharsets.US_ASCII));
+            header.blockSize = frame.getInt();
+            int count = frame.getInt();
+            header.length = frame.getInt();
+            if (header.blockSize <= 0 || header.length < 0
+                || count != blockCount(header.length, header.blockSize)) {
+                throw new DataFormatException("Invalid frame: " + count + " blocks of "
+                    + header.blockSize + " for " + header.length + " bytes");
+            }
+            if (header.length > MAX_LENGTH) {
+                throw new DataFormatException("Frame announces " + header.length
+                    + " bytes, more than " + MAX_LENGTH);
+            }
+            if (header.codec instanceof ParallelCodec) {
+                throw new DataFormatException("Frame within a frame");
+            }
+            /// nor for a block table longer than the frame
+            if (4L * count > frame.remaining()) {
+                throw new DataFormatException("Frame header truncated");
+            }
+            header.compressed = new int[count];
+            for (int i = 0; i < count; ++i) {
+                header.compressed[i] = frame.getInt();
+                if (header.compressed[i] < 0) {
+                    throw new DataFormatException("Invalid length of block " + i);
+                }
+            }
+            return header;
+        }
+        catch (BufferUnderflowException ex) {
+            throw new DataFormatException("Frame header truncated");
+        }
+        catch (IllegalArgumentException ex) {
+            throw new DataFormatException(ex.getMessage());
+        }
+    }
+
+    /**
+     * @params  compressed blocks
+     * @returns bytes of the frame holding them
+     */
+    private int frameLength(byte[][] blocks) {
+        long size = headerLength(codec, blocks.length);
+        for (byte[] block : blocks) {
+            size += block.length;
+        }
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Frame too large: " + size);
+        }
+        return (int) size;
+    }
+
+    /**
+     * @params  block codec
+     * @params  number of blocks
+     * @returns bytes of the frame header
+     */
+    private static long headerLength(CompressionCodec codec, int count) {
+        return 4 + 1 + 1 + codec.name().length() + 4 + 4 + 4 + 4L * count;
+    }
+
+    /**
+     * @params  uncompressed length
+     * @params  block size
+     * @returns number of blocks, at least one (an empty one if the length is
+     *          zero)
+     */
+    private static int blockCount(int length, int blockSize) {
+        return Math.max(1, (int) (((long) length + blockSize - 1) / blockSize));
+    }
+
+    /**
+     * @params  block index
+     * @params  uncompressed length
+     * @params  block size
+     * @returns uncompressed bytes of the block
+     */
+    private static int blockLength(int index, int length, int blockSize) {
+        return (int) Math.min(blockSize, length - (long) index * blockSize);
+    }
+
+    public String toString() {
+        return NAME + "(" + codec + ", " + blockSize + ")";
+    }
+}
@@ -0,0 +1,499 @@
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Files;
+import java.util.function.Supplier;
+
+
+/**
+ * Class:  PoolConfiguration
+ *
+ * Typed and validated contents of mq.properties:
+ * - mq.pools names the pools, "read,write,bulk" unless given. Each pool has
+ *   a connection type (<connection prefix>type, which read, write and bulk
+ *   need not give) and its settings under two prefixes derived from its
+ *   name: "mq.<name>." for the connection settings and "mq.<name>_" for
+ *   the pool settings, e.g. mq.read.hostname and mq.read_max_pool_size.
+ *   The write pool uses "mq." for both, as the file always had it.
+ * - A pool may be served by several endpoints, see endpoints().
+ * - Every setting is parsed and range checked. Missing required settings
+ *   and bad values are all reported together in a ConfigurationException,
+ *   rather than the first one failing with a NullPointerException.
+ * - The settings of the maintenance jobs, the sizers and the endpoint
+ *   health apply to every pool.
+ * A configuration does not change once made: a reload makes a new one,
+ * which ConnectionPool.reconfigure applies to the running pools.
+ */
+public class PoolConfiguration {
+
+    /// pools of a file which does not name them
+    private static final String DEFAULT_POOLS = "read,write,bulk";
+
+    public final long       evictionPeriod;
+    public final long       healthCheckPeriod;
+    public final long       metricsPeriod;
+    public final double     demandAlpha;
+    public final double     headroom;
+    public final double     shrinkFraction;
+    public final double     shardErrorThreshold;
+    public final double     shardLatencyFactor;
+    public final long       shardHealthWindow;
+    public final long       arenaMaxRetained;
+    public final boolean    arenaTrackLeaks;
+    public final boolean    watch;
+    private final Map<String, List<ConnectionProperties>> pools;
+
+    /**
+     * Constructor
+     *
+     * @params  global settings read so far, see parse
+     * @params  properties of every pool's endpoints, by pool name
+     */
+    private PoolConfiguration(Reader in, Map<String, List<ConnectionProperties>> pools) {
+        /// period of resizing (and evicting from) the pools, and of the
+        /// other maintenance jobs: probing idle connections and logging pool
+        /// metrics (0 turns either off)
+        evictionPeriod = in.number("mq.eviction_period", 60000L, 1L, Long.MAX_VALUE);
+        healthCheckPeriod = in.number("mq.health_check_period", 30000L, 0L, Long.MAX_VALUE);
+        metricsPeriod = in.number("mq.metrics_period", 0L, 0L, Long.MAX_VALUE);
+
+        /// adaptive sizing, see PoolSizer: weight of the newest demand
+        /// sample, spare connections on top of the average demand and the
+        /// fraction of the excess given back per eviction period
+        demandAlpha = in.decimal("mq.pool_demand_alpha", 0.3, 0.0, 1.0);
+        headroom = in.decimal("mq.pool_headroom", 0.2, 0.0, Double.MAX_VALUE);
+        shrinkFraction = in.decimal("mq.pool_shrink_fraction", 0.25, 0.0, 1.0);
+
+        /// endpoint health, see EndpointHealth: error rate draining an
+        /// endpoint (0 never), latency multiple of the fastest endpoint
+        /// draining it (0 never) and the millis it takes to be forgiven
+        shardErrorThreshold = in.decimal("mq.shard_error_threshold", 0.5, 0.0, 1.0);
+        shardLatencyFactor = in.decimal("mq.shard_latency_factor", 3.0, 0.0, Double.MAX_VALUE);
+        shardHealthWindow = in.number("mq.shard_health_window", 10000L, 1L, Long.MAX_VALUE);
+
+        /// off-heap buffers, see BufferArena: bytes of released buffers kept
+        /// for reuse, and whether to record where each buffer was leased so
+        /// a leak can be traced
+        arenaMaxRetained = in.number("mq.arena_max_retained", BufferArena.DEFAULT_MAX_RETAINED,
+            0L, Long.MAX_VALUE);
+        arenaTrackLeaks = in.bool("mq.arena_track_leaks", false);
+
+        /// apply changes to the file to the running pools
+        watch = in.bool("mq.watch_config", true);
+        this.pools = pools;
+    }
+
+    /**
+     * Constructor
+     *
+     * For pools set up by hand, see ConnectionConfiguration.current.
+     *
+     * @params  properties of every pool's endpoints, by pool name
+     * @params  the global settings as ConnectionConfiguration holds them
+     */
+    PoolConfiguration(Map<String, List<ConnectionProperties>> pools, long evictionPeriod,
+                      long healthCheckPeriod, long metricsPeriod, double demandAlpha,
+                      double headroom, double shrinkFraction, double shardErrorThreshold,
+                      double shardLatencyFactor, long shardHealthWindow) {
+        this.evictionPeriod = evictionPeriod;
+        this.healthCheckPeriod = healthCheckPeriod;
+        this.metricsPeriod = metricsPeriod;
+        this.demandAlpha = demandAlpha;
+        this.headroom = headroom;
+        this.shrinkFraction = shrinkFraction;
+        this.shardErrorThreshold = shardErrorThreshold;
+        this.shardLatencyFactor = shardLatencyFactor;
+        this.shardHealthWindow = shardHealthWindow;
+        this.arenaMaxRetained = BufferArena.DEFAULT_MAX_RETAINED;
+        this.arenaTrackLeaks = false;
+        this.watch = false;
+        this.pools = pools;
+    }
+
+    /**
+     * Load
+     *
+     * @params  location of mq.properties
+     * @returns the validated configuration
+     * @throws  IOException if the file cannot be read
+     * @throws  ConfigurationException if it does not validate
+     */
+    public static PoolConfiguration load(Path location) throws IOException, ConfigurationException {
+        Properties props = new Properties();
+        try (InputStream stream = Files.newInputStream(location)) {
+            props.load(stream);
+        }
+        return parse(props);
+    }
+
+    /**
+     * Parse
+     *
+     * @params  contents of mq.properties
+     * @returns the validated configuration
+     * @throws  ConfigurationException listing every problem found
+     */
+    public static PoolConfiguration parse(Properties props) throws ConfigurationException {
+        Reader in = new Reader(props);
+        Map<String, List<ConnectionProperties>> pools = new LinkedHashMap<String, List<ConnectionProperties>>();
+        for (String name : in.string("mq.pools", DEFAULT_POOLS).split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (pools.containsKey(name)) {
+                in.problems.add("mq.pools: " + name + " named twice");
+                continue;
+            }
+            ConnectionProperties base = pool(in, name);
+            List<ConnectionProperties> shards = endpoints(in, connectionPrefix(name), base);
+            pools.put(name, shards.isEmpty() ? List.of(base) : shards);
+        }
+        if (pools.isEmpty()) {
+            in.problems.add("mq.pools: no pools");
+        }
+        PoolConfiguration config = new PoolConfiguration(in, Collections.unmodifiableMap(pools));
+        if (! in.problems.isEmpty()) {
+            throw new ConfigurationException(in.problems);
+        }
+        return config;
+    }
+
+    /**
+     * Connection Prefix
+     *
+     * @params  pool name
+     * @returns prefix of its connection settings
+     */
+    private static String connectionPrefix(String name) {
+        return name.equals("write") ? "mq." : "mq." + name + ".";
+    }
+
+    /**
+     * Pool Prefix
+     *
+     * @params  pool name
+     * @returns prefix of its pool settings
+     */
+    private static String poolPrefix(String name) {
+        return name.equals("write") ? "mq." : "mq." + name + "_";
+    }
+
+    /**
+     * Pool
+     *
+     * Reads the settings of one pool.
+     *
+     * @params  settings being read
+     * @params  pool name
+     * @returns properties of the pool
+     */
+    private static ConnectionProperties pool(Reader in, String name) {
+        String c = connectionPrefix(name);
+        String p = poolPrefix(name);
+        ConnectionProperties props = new ConnectionProperties();
+        props.pool = name;
+        props.type = type(in, c + "type", name);
+        props.manager = in.required(c + "manager");
+        props.endpoint = props.manager;
+        props.hostname = in.required(c + "hostname");
+        props.channel = in.required(c + "channel");
+        in.required(c + "port");
+        props.port = in.integer(c + "port", 0, 1, 65535);
+        props.sendQueue = in.required(c + "send_queue");
+        props.receiveQueue = in.required(c + "receive_queue");
+        props.username = in.string(c + "mqusername", "");
+        props.password = in.string(c + "mqpassword", "");
+
+        /// codec for outgoing messages, and the message size (in chars)
+        /// below which messages are sent as plain text regardless;
+        /// out_compress_message picks the codec replies should use, "true"
+        /// meaning deflate
+        props.compress = in.bool(c + "compress_message", false);
+        props.codec = null;
+        if (props.compress) {
+            int level = in.integer(c + "compress_level", -1, -1, 9);
+            props.codec = in.codec(c + "codec", () -> Codecs.forName(in.string(c + "codec", DeflateCodec.NAME), level));
+        }
+        props.replyCodec = in.codec(c + "out_compress_message",
+            () -> Codecs.forReplySetting(in.string(c + "out_compress_message", null)));
+        props.compressOut = props.replyCodec != null;
+        props.compressThreshold = in.integer(c + "compress_threshold", 0, 0, Integer.MAX_VALUE);
+
+        /// messages (in bytes, chars for text) at least this large are
+        /// compressed and decompressed in buffers of the shared
+        /// BufferArena, off heap (0 never); bulk pools default to 1 MiB
+        int offHeap = props.type == ConnectionType.Bulk ? 1024 * 1024 : 0;
+        props.offHeapThreshold = in.integer(c + "off_heap_threshold", offHeap, 0, Integer.MAX_VALUE);
+
+        /// messages (in bytes, chars for text) at least this large are
+        /// compressed in blocks on the common ForkJoinPool and framed, see
+        /// ParallelCodec (0 never); the replier must know the frame
+        props.parallelThreshold = in.integer(c + "parallel_threshold", 0, 0, Integer.MAX_VALUE);
+        props.parallelBlockSize = in.integer(c + "parallel_block_size", ParallelCodec.DEFAULT_BLOCK_SIZE,
+            64 * 1024, 1 << BufferArena.MAX_SLAB_SHIFT);
+
+        /// bytes per chunk message of a streamed message, see
+        /// ChunkedOutputStream
+        props.chunkSize = in.integer(c + "chunk_size", ChunkedOutputStream.DEFAULT_CHUNK_SIZE,
+            1024, 1 << BufferArena.MAX_SLAB_SHIFT);
+        props.transactedBatch = in.bool(c + "transacted_batch", false);
+
+        /// seconds in the file
+        props.timeout = in.number(c + "timeout", 0L, 0L, Long.MAX_VALUE / 1000L) * 1000L;
+
+        /// idle connections kept ready ahead of demand, created in the
+        /// background
+        props.minSize = in.integer(p + "min_pool_size", 10, 0, Integer.MAX_VALUE);
+        props.maxSize = in.integer(p + "max_pool_size", 100, 1, Integer.MAX_VALUE);
+        props.lowWater = in.integer(p + "low_water_mark", 2, 0, Integer.MAX_VALUE);
+        in.check(props.minSize <= props.maxSize,
+            p + "min_pool_size: " + props.minSize + " above max_pool_size " + props.maxSize);
+
+        /// millis: connections are retired once this old (0 keeps them),
+        /// and probed before use once idle this long (0 never probes)
+        props.maxLifetime = in.number(p + "max_lifetime", 1800000L, 0L, Long.MAX_VALUE);
+        props.validationInterval = in.number(p + "validation_interval", 30000L, 0L, Long.MAX_VALUE);
+
+        /// dispatch attempts with exponential backoff (millis) between
+        /// them, and consecutive failures opening the circuit breaker
+        /// (0 never opens) for the open time (millis)
+        props.retries = in.integer(p + "retries", 3, 1, Integer.MAX_VALUE);
+        props.retryBaseDelay = in.number(p + "retry_base_delay", 50L, 0L, Long.MAX_VALUE);
+        props.retryMaxDelay = in.number(p + "retry_max_delay", 2000L, 0L, Long.MAX_VALUE);
+        props.breakerThreshold = in.integer(p + "breaker_threshold", 5, 0, Integer.MAX_VALUE);
+        props.breakerOpenTime = in.number(p + "breaker_open_time", 10000L, 0L, Long.MAX_VALUE);
+
+        /// hedge a request/reply not answered by this percentile of the
+        /// observed reply latency (0 never hedges), once enough replies
+        /// were seen, by sending it again to the hedge queue
+        props.hedgePercentile = in.decimal(p + "hedge_percentile", 0.0, 0.0, 100.0);
+        props.hedgeMinSamples = in.number(p + "hedge_min_samples", 100L, 0L, Long.MAX_VALUE);
+        props.hedgeSendQueue = in.string(p + "hedge_send_queue", props.sendQueue);
+        return props;
+    }
+
+    /**
+     * Type
+     *
+     * @params  settings being read
+     * @params  key of the type setting
+     * @params  pool name, which gives the type of read, write and bulk
+     * @returns connection type of the pool
+     */
+    private static ConnectionType type(Reader in, String key, String name) {
+        String fallback = null;
+        for (ConnectionType type : ConnectionType.values()) {
+            if (type.name().equalsIgnoreCase(name)) {
+                fallback = type.name();
+            }
+        }
+        String value = in.string(key, fallback);
+        if (value == null || value.isEmpty()) {
+            in.problems.add(key + ": missing");
+            return ConnectionType.Bulk;
+        }
+        for (ConnectionType type : ConnectionType.values()) {
+            if (type.name().equalsIgnoreCase(value)) {
+                return type;
+            }
+        }
+        in.problems.add(key + ": not a connection type: " + value);
+        return ConnectionType.Bulk;
+    }
+
+    /**
+     * Endpoints
+     *
+     * Several queue managers can serve one pool: <prefix>endpoints names
+     * them, and <prefix>endpoint.<name>.manager, .hostname, .port and
+     * .channel override the pool's settings for each. Everything else
+     * (queues, sizes, retries, codecs...) is shared.
+     *
+     * @params  settings being read
+     * @params  connection prefix of the pool, e.g. "mq.read."
+     * @params  properties of the pool
+     * @returns properties of each endpoint, empty if none were configured
+     */
+    private static List<ConnectionProperties> endpoints(Reader in, String prefix,
+                                                        ConnectionProperties base) {
+        List<ConnectionProperties> shards = new ArrayList<ConnectionProperties>();
+        Set<String> seen = new HashSet<String>();
+        for (String name : in.string(prefix + "endpoints", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (! seen.add(name)) {
+                in.problems.add(prefix + "endpoints: " + name + " named twice");
+                continue;
+            }
+            String key = prefix + "endpoint." + name + ".";
+            ConnectionProperties shard = base.copy();
+            shard.endpoint = name;
+            shard.manager = in.string(key + "manager", base.manager);
+            shard.hostname = in.string(key + "hostname", base.hostname);
+            shard.channel = in.string(key + "channel", base.channel);
+            shard.port = in.integer(key + "port", base.port, 1, 65535);
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    /**
+     * @returns names of the pools, in the order configured
+     */
+    public List<String> names() {
+        return new ArrayList<String>(pools.keySet());
+    }
+
+    /**
+     * Endpoints
+     *
+     * @params  pool name
+     * @returns properties of every endpoint serving the pool, at least one
+     * @throws  IllegalArgumentException if there is no such pool
+     */
+    public List<ConnectionProperties> endpoints(String pool) {
+        List<ConnectionProperties> shards = pools.get(pool);
+        if (shards == null) {
+            throw new IllegalArgumentException("No pool named " + pool);
+        }
+        return shards;
+    }
+
+    /**
+     * Pool For
+     *
+     * @params  connection type
+     * @returns name of the pool serving acquires by that type: the one
+     *          named after the type, else the first of that type; null if
+     *          there is none
+     */
+    public String poolFor(ConnectionType type) {
+        String first = null;
+        for (Map.Entry<String, List<ConnectionProperties>> entry : pools.entrySet()) {
+            if (entry.getValue().get(0).type != type) {
+                continue;
+            }
+            if (entry.getKey().equalsIgnoreCase(type.name())) {
+                return entry.getKey();
+            }
+            if (first == null) {
+                first = entry.getKey();
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Reader
+     *
+     * Typed access to the properties, collecting problems instead of
+     * throwing on the first.
+     */
+    private static class Reader {
+
+        Reader(Properties props) {
+            this.props = props;
+            this.problems = new ArrayList<String>();
+        }
+
+        String string(String key, String fallback) {
+            String value = props.getProperty(key);
+            return value == null ? fallback : value.trim();
+        }
+
+        String required(String key) {
+            String value = string(key, "");
+            if (value.isEmpty()) {
+                problems.add(key + ": missing");
+            }
+            return value;
+        }
+
+        long number(String key, long fallback, long min, long max) {
+            String value = string(key, "");
+            if (value.isEmpty()) {
+                return fallback;
+            }
+            try {
+                long n = Long.parseLong(value);
+                if (n < min || n > max) {
+                    problems.add(key + ": " + value + " not within [" + min + ", " + max + "]");
+                    return fallback;
+                }
+                return n;
+            }
+            catch (NumberFormatException ex) {
+                problems.add(key + ": not a whole number: " + value);
+                return fallback;
+            }
+        }
+
+        int integer(String key, int fallback, int min, int max) {
+            return (int) number(key, fallback, min, max);
+        }
+
+        double decimal(String key, double fallback, double min, double max) {
+            String value = string(key, "");
+            if (value.isEmpty()) {
+                return fallback;
+            }
+            try {
+                double d = Double.parseDouble(value);
+                if (! (d >= min && d <= max)) {
+                    problems.add(key + ": " + value + " not within [" + min + ", " + max + "]");
+                    return fallback;
+                }
+                return d;
+            }
+            catch (NumberFormatException ex) {
+                problems.add(key + ": not a number: " + value);
+                return fallback;
+            }
+        }
+
+        boolean bool(String key, boolean fallback) {
+            String value = string(key, "");
+            if (value.isEmpty()) {
+                return fallback;
+            }
+            if (value.equalsIgnoreCase("true")) {
+                return true;
+            }
+            if (value.equalsIgnoreCase("false")) {
+                return false;
+            }
+            problems.add(key + ": neither true nor false: " + value);
+            return fallback;
+        }
+
+        CompressionCodec codec(String key, Supplier<CompressionCodec> lookup) {
+            try {
+                return lookup.get();
+            }
+            catch (IllegalArgumentException ex) {
+                problems.add(key + ": " + ex.getMessage());
+                return null;
+            }
+        }
+
+        void check(boolean ok, String problem) {
+            if (! ok) {
+                problems.add(problem);
+            }
+        }
+
+        final Properties   props;
+        final List<String> problems;
+    }
+}
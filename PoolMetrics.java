@@ -0,0 +1,527 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Class:  PoolMetrics
+ *
+ * Metrics for one pool:
+ * - Acquire latency for every acquire, and separately the time spent by
+ *   those acquires which found the pool full and had to wait.
+ * - Gauges for available, in-use, waiting and total connections, and the
+ *   demand and target size tracked by the pool's sizer.
+ * - Counters for waits, timeouts, creates, disposes, evictions,
+ *   dispose-and-acquire recycles, validation probes and their failures, and
+ *   connections retired at their max lifetime.
+ * - Dispatch retries, and the state, trips and rejections of the pool's
+ *   circuit breaker.
+ * - Request/reply latency, and counters for replies which timed out,
+ *   hedged requests and hedges answering first.
+ * - The endpoint (queue manager) of the pool, its error rate and latency and
+ *   whether traffic is drained away from it, see EndpointHealth.
+ * Exposed through JMX (see PoolMetricsMBean) and as a plain snapshot.
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+
+    /**
+     * Snapshot
+     *
+     * Immutable copy of a pool's metrics at a point in time.
+     */
+    public static class Snapshot {
+
+        public ConnectionType              type;
+        public String                      endpoint;
+        public int                         minSize;
+        public int                         maxSize;
+        public int                         total;
+        public int                         available;
+        public int                         inUse;
+        public int                         waiting;
+        public int                         demand;
+        public double                      demandAverage;
+        public int                         target;
+        public long                        waits;
+        public long                        timeouts;
+        public long                        creates;
+        public long                        createFailures;
+        public long                        disposes;
+        public long                        evictions;
+        public long                        recycles;
+        public long                        validations;
+        public long                        validationFailures;
+        public long                        expirations;
+        public long                        retries;
+        public CircuitBreaker.State        breakerState;
+        public long                        breakerTrips;
+        public long                        breakerRejections;
+        public long                        replyTimeouts;
+        public long                        hedges;
+        public long                        hedgeWins;
+        public double                      errorRate;
+        public long                        endpointLatency;
+        public boolean                     drained;
+        public LatencyHistogram.Snapshot   acquireLatency;
+        public LatencyHistogram.Snapshot   waitLatency;
+        public LatencyHistogram.Snapshot   replyLatency;
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Pool Type: " + type + ". ");
+            if (endpoint != null) {
+                sb.append("Endpoint: " + endpoint + (drained ? " (drained)" : "") + ". ");
+            }
+            sb.append("Total: " + total + " [" + minSize + ", " + maxSize + "]. ");
+            sb.append("Available: " + available + ". ");
+            sb.append("InUse: " + inUse + ". ");
+            sb.append("Waiting: " + waiting + ". ");
+            sb.append("Demand: " + demand + " (avg " + String.format("%.1f", demandAverage) + "). ");
+            sb.append("Target: " + target + ". ");
+            sb.append("Waits: " + waits + ". ");
+            sb.append("Timeouts: " + timeouts + ". ");
+            sb.append("Creates: " + creates + ". ");
+            sb.append("CreateFailures: " + createFailures + ". ");
+            sb.append("Disposes: " + disposes + ". ");
+            sb.append("Evictions: " + evictions + ". ");
+            sb.append("Recycles: " + recycles + ". ");
+            sb.append("Validations: " + validations + ". ");
+            sb.append("ValidationFailures: " + validationFailures + ". ");
+            sb.append("Expirations: " + expirations + ". ");
+            sb.append("Retries: " + retries + ". ");
+            sb.append("Breaker: " + breakerState + " (trips " + breakerTrips
+                + ", rejections " + breakerRejections + "). ");
+            sb.append("ReplyTimeouts: " + replyTimeouts + ". ");
+            sb.append("Hedges: " + hedges + " (won " + hedgeWins + "). ");
+            sb.append("ErrorRate: " + String.format("%.2f", errorRate) + ". ");
+            sb.append("Latency ns: " + endpointLatency + ". ");
+            sb.append("Acquire ns: " + acquireLatency + ". ");
+            sb.append("Wait ns: " + waitLatency + ". ");
+            sb.append("Reply ns: " + replyLatency + ".");
+            return sb.toString();
+        }
+
+        /**
+         * Combine
+         *
+         * Adds up the snapshots of the endpoints of one type: sizes, gauges
+         * and counters are summed, latencies merged, the breaker reports the
+         * worst state, and the type counts as drained only if every
+         * endpoint is.
+         *
+         * @params  snapshots of the endpoints, at least one
+         * @returns snapshot of the type as a whole, with no endpoint
+         */
+        public static Snapshot combine(List<Snapshot> shards) {
+            Snapshot s = new Snapshot();
+            s.type = shards.get(0).type;
+            s.breakerState = CircuitBreaker.State.CLOSED;
+            s.drained = true;
+            for (Snapshot shard : shards) {
+                s.minSize += shard.minSize;
+                s.maxSize += shard.maxSize;
+                s.total += shard.total;
+                s.available += shard.available;
+                s.inUse += shard.inUse;
+                s.waiting += shard.waiting;
+                s.demand += shard.demand;
+                s.demandAverage += shard.demandAverage;
+                s.target += shard.target;
+                s.waits += shard.waits;
+                s.timeouts += shard.timeouts;
+                s.creates += shard.creates;
+                s.createFailures += shard.createFailures;
+                s.disposes += shard.disposes;
+                s.evictions += shard.evictions;
+                s.recycles += shard.recycles;
+                s.validations += shard.validations;
+                s.validationFailures += shard.validationFailures;
+                s.expirations += shard.expirations;
+                s.retries += shard.retries;
+                if (shard.breakerState.compareTo(s.breakerState) > 0) {
+                    s.breakerState = shard.breakerState;
+                }
+                s.breakerTrips += shard.breakerTrips;
+                s.breakerRejections += shard.breakerRejections;
+                s.replyTimeouts += shard.replyTimeouts;
+                s.hedges += shard.hedges;
+                s.hedgeWins += shard.hedgeWins;
+                s.errorRate = Math.max(s.errorRate, shard.errorRate);
+                s.endpointLatency = Math.max(s.endpointLatency, shard.endpointLatency);
+                s.drained &= shard.drained;
+                s.acquireLatency = merge(s.acquireLatency, shard.acquireLatency);
+                s.waitLatency = merge(s.waitLatency, shard.waitLatency);
+                s.replyLatency = merge(s.replyLatency, shard.replyLatency);
+            }
+            return s;
+        }
+
+        private static LatencyHistogram.Snapshot merge(LatencyHistogram.Snapshot a,
+                                                       LatencyHistogram.Snapshot b) {
+            return a == null ? b : a.merge(b);
+        }
+    }
+
+    private final ConnectionProperties props;
+    private final ConnectionBag        bag;
+    private final PoolSizer            sizer;
+    private final CircuitBreaker       breaker;
+    private final EndpointHealth       health;
+    private final LatencyHistogram     acquireLatency;
+    private final LatencyHistogram     waitLatency;
+    private final LatencyHistogram     replyLatency;
+    private final LongAdder            waits;
+    private final LongAdder            timeouts;
+    private final LongAdder            creates;
+    private final LongAdder            createFailures;
+    private final LongAdder            disposes;
+    private final LongAdder            evictions;
+    private final LongAdder            recycles;
+    private final LongAdder            validations;
+    private final LongAdder            validationFailures;
+    private final LongAdder            expirations;
+    private final LongAdder            retries;
+    private final LongAdder            replyTimeouts;
+    private final LongAdder            hedges;
+    private final LongAdder            hedgeWins;
+
+    /**
+     * Constructor
+     *
+     * @params  properties of the pool
+     * @params  the pool's bag, read for the gauges
+     * @params  the pool's sizer, read for the demand gauges
+     * @params  the pool's circuit breaker, read for its state and counts
+     * @params  health of the pool's endpoint
+     */
+    public PoolMetrics(ConnectionProperties props, ConnectionBag bag, PoolSizer sizer,
+                       CircuitBreaker breaker, EndpointHealth health) {
+        this.props = props;
+        this.bag = bag;
+        this.sizer = sizer;
+        this.breaker = breaker;
+        this.health = health;
+        acquireLatency = new LatencyHistogram();
+        waitLatency = new LatencyHistogram();
+        replyLatency = new LatencyHistogram();
+        waits = new LongAdder();
+        timeouts = new LongAdder();
+        creates = new LongAdder();
+        createFailures = new LongAdder();
+        disposes = new LongAdder();
+        evictions = new LongAdder();
+        recycles = new LongAdder();
+        validations = new LongAdder();
+        validationFailures = new LongAdder();
+        expirations = new LongAdder();
+        retries = new LongAdder();
+        replyTimeouts = new LongAdder();
+        hedges = new LongAdder();
+        hedgeWins = new LongAdder();
+    }
+
+    /// recorders, called by the connection pool
+
+    void acquired(long startNanos) {
+        acquireLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void waited(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        waitLatency.record(elapsed);
+        acquireLatency.record(elapsed);
+    }
+
+    void waiting() {
+        waits.increment();
+    }
+
+    void timedOut() {
+        timeouts.increment();
+    }
+
+    void created() {
+        creates.increment();
+    }
+
+    void createFailed() {
+        createFailures.increment();
+    }
+
+    void disposed() {
+        disposes.increment();
+    }
+
+    void evicted() {
+        evictions.increment();
+        disposes.increment();
+    }
+
+    void recycled() {
+        recycles.increment();
+        disposes.increment();
+    }
+
+    void validated() {
+        validations.increment();
+    }
+
+    void validationFailed() {
+        validationFailures.increment();
+    }
+
+    void expired() {
+        expirations.increment();
+    }
+
+    /// called by the dispatcher
+
+    void retried() {
+        retries.increment();
+    }
+
+    void replied(long startNanos) {
+        replyLatency.record(System.nanoTime() - startNanos);
+    }
+
+    void replyTimedOut() {
+        replyTimeouts.increment();
+    }
+
+    void hedged() {
+        hedges.increment();
+    }
+
+    void hedgeWon() {
+        hedgeWins.increment();
+    }
+
+    /**
+     * @returns request/reply latency, read by the pool's hedge policy
+     */
+    LatencyHistogram replyLatency() {
+        return replyLatency;
+    }
+
+    /**
+     * Snapshot
+     *
+     * @returns copy of the current metrics
+     */
+    public Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.type = props.type;
+        s.endpoint = props.endpoint;
+        s.minSize = props.minSize;
+        s.maxSize = props.maxSize;
+        s.total = bag.size();
+        s.available = bag.count(ConnectionBag.NOT_IN_USE);
+        s.inUse = bag.count(ConnectionBag.IN_USE);
+        s.waiting = bag.waiting();
+        s.demand = sizer.getDemand();
+        s.demandAverage = sizer.getAverage();
+        s.target = sizer.getTarget();
+        s.waits = waits.sum();
+        s.timeouts = timeouts.sum();
+        s.creates = creates.sum();
+        s.createFailures = createFailures.sum();
+        s.disposes = disposes.sum();
+        s.evictions = evictions.sum();
+        s.recycles = recycles.sum();
+        s.validations = validations.sum();
+        s.validationFailures = validationFailures.sum();
+        s.expirations = expirations.sum();
+        s.retries = retries.sum();
+        s.breakerState = breaker.getState();
+        s.breakerTrips = breaker.getTrips();
+        s.breakerRejections = breaker.getRejections();
+        s.replyTimeouts = replyTimeouts.sum();
+        s.hedges = hedges.sum();
+        s.hedgeWins = hedgeWins.sum();
+        s.errorRate = health.getErrorRate();
+        s.endpointLatency = health.getLatency();
+        s.drained = health.isDrained();
+        s.acquireLatency = acquireLatency.snapshot();
+        s.waitLatency = waitLatency.snapshot();
+        s.replyLatency = replyLatency.snapshot();
+        return s;
+    }
+
+    /// MBean attributes
+
+    public String getPoolType() {
+        return String.valueOf(props.type);
+    }
+
+    public String getEndpoint() {
+        return String.valueOf(props.endpoint);
+    }
+
+    public int getMinSize() {
+        return props.minSize;
+    }
+
+    public int getMaxSize() {
+        return props.maxSize;
+    }
+
+    public int getTotal() {
+        return bag.size();
+    }
+
+    public int getAvailable() {
+        return bag.count(ConnectionBag.NOT_IN_USE);
+    }
+
+    public int getInUse() {
+        return bag.count(ConnectionBag.IN_USE);
+    }
+
+    public int getWaiting() {
+        return bag.waiting();
+    }
+
+    public int getDemand() {
+        return sizer.getDemand();
+    }
+
+    public double getDemandAverage() {
+        return sizer.getAverage();
+    }
+
+    public int getTargetSize() {
+        return sizer.getTarget();
+    }
+
+    public double getUtilization() {
+        return props.maxSize == 0 ? 0.0 : (double) getInUse() / props.maxSize;
+    }
+
+    public long getAcquireCount() {
+        return acquireLatency.snapshot().getCount();
+    }
+
+    public long getAcquireP50Micros() {
+        return micros(acquireLatency.snapshot().percentile(50));
+    }
+
+    public long getAcquireP99Micros() {
+        return micros(acquireLatency.snapshot().percentile(99));
+    }
+
+    public long getAcquireP999Micros() {
+        return micros(acquireLatency.snapshot().percentile(99.9));
+    }
+
+    public long getAcquireMaxMicros() {
+        return micros(acquireLatency.snapshot().getMax());
+    }
+
+    public long getWaitCount() {
+        return waits.sum();
+    }
+
+    public long getWaitP50Micros() {
+        return micros(waitLatency.snapshot().percentile(50));
+    }
+
+    public long getWaitP99Micros() {
+        return micros(waitLatency.snapshot().percentile(99));
+    }
+
+    public long getWaitMaxMicros() {
+        return micros(waitLatency.snapshot().getMax());
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getCreateCount() {
+        return creates.sum();
+    }
+
+    public long getCreateFailureCount() {
+        return createFailures.sum();
+    }
+
+    public long getDisposeCount() {
+        return disposes.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getRecycleCount() {
+        return recycles.sum();
+    }
+
+    public long getValidationCount() {
+        return validations.sum();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailures.sum();
+    }
+
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public String getBreakerState() {
+        return String.valueOf(breaker.getState());
+    }
+
+    public long getBreakerTripCount() {
+        return breaker.getTrips();
+    }
+
+    public long getBreakerRejectionCount() {
+        return breaker.getRejections();
+    }
+
+    public long getReplyCount() {
+        return replyLatency.snapshot().getCount();
+    }
+
+    public long getReplyP50Micros() {
+        return micros(replyLatency.snapshot().percentile(50));
+    }
+
+    public long getReplyP99Micros() {
+        return micros(replyLatency.snapshot().percentile(99));
+    }
+
+    public long getReplyTimeoutCount() {
+        return replyTimeouts.sum();
+    }
+
+    public long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    public long getHedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    public double getErrorRate() {
+        return health.getErrorRate();
+    }
+
+    public long getLatencyMicros() {
+        return micros(health.getLatency());
+    }
+
+    public boolean isDrained() {
+        return health.isDrained();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Interface:  PoolMetricsMBean
+ *
+ * JMX view of one pool's metrics, see PoolMetrics. Latencies are in
+ * microseconds.
+ */
+public interface PoolMetricsMBean {
+
+    String getPoolType();
+    String getEndpoint();
+
+    int getMinSize();
+    int getMaxSize();
+    int getTotal();
+    int getAvailable();
+    int getInUse();
+    int getWaiting();
+    int getDemand();
+    double getDemandAverage();
+    int getTargetSize();
+    double getUtilization();
+
+    long getAcquireCount();
+    long getAcquireP50Micros();
+    long getAcquireP99Micros();
+    long getAcquireP999Micros();
+    long getAcquireMaxMicros();
+
+    long getWaitCount();
+    long getWaitP50Micros();
+    long getWaitP99Micros();
+    long getWaitMaxMicros();
+    long getTimeoutCount();
+
+    long getCreateCount();
+    long getCreateFailureCount();
+    long getDisposeCount();
+    long getEvictionCount();
+    long getRecycleCount();
+    long getValidationCount();
+    long getValidationFailureCount();
+    long getExpirationCount();
+
+    long getRetryCount();
+    String getBreakerState();
+    long getBreakerTripCount();
+    long getBreakerRejectionCount();
+
+    long getReplyCount();
+    long getReplyP50Micros();
+    long getReplyP99Micros();
+    long getReplyTimeoutCount();
+    long getHedgeCount();
+    long getHedgeWinCount();
+
+    double getErrorRate();
+    long getLatencyMicros();
+    boolean isDrained();
+}
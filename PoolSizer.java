@@ -0,0 +1,141 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Class:  PoolSizer
+ *
+ * Works out how many connections a pool should hold from the demand it has
+ * actually seen, rather than waiting a fixed number of timer pops and then
+ * dropping straight to the minimum:
+ * - Demand is the number of acquires in flight, i.e. connections in use plus
+ *   callers waiting for one. The peak is tracked between samples so a short
+ *   burst is not missed by a slow sampler.
+ * - Each sample feeds an exponentially weighted moving average (EWMA) of the
+ *   peak, so one quiet interval does not wipe out the memory of the last
+ *   burst.
+ * - The target is the average plus a warm headroom, kept within the pool's
+ *   min/max sizes.
+ * - A pool above its target only gives back a fraction of the excess per
+ *   sample, so it shrinks gradually rather than in one go.
+ */
+public class PoolSizer {
+
+    private final ConnectionProperties props;
+    private volatile double            alpha;
+    private volatile double            headroom;
+    private volatile double            shrinkFraction;
+    private final AtomicInteger        demand;
+    private final AtomicInteger        peak;
+    private volatile double            average;
+    private volatile int               target;
+
+    /**
+     * Constructor
+     *
+     * @params  properties of the pool, for its min/max sizes
+     * @params  weight of the newest sample in the average, 0 to 1
+     * @params  spare connections kept on top of the average, as a fraction
+     *          of it
+     * @params  fraction of the excess over the target given back per sample
+     */
+    public PoolSizer(ConnectionProperties props, double alpha, double headroom, double shrinkFraction) {
+        this.props = props;
+        configure(alpha, headroom, shrinkFraction);
+        this.demand = new AtomicInteger();
+        this.peak = new AtomicInteger();
+        this.average = 0.0;
+        this.target = props.minSize;
+    }
+
+    /**
+     * Configure
+     *
+     * Changes the settings, see the constructor. The average carries on;
+     * the next update computes the target with the new settings.
+     *
+     * @params  weight of the newest sample in the average, 0 to 1
+     * @params  spare connections kept on top of the average
+     * @params  fraction of the excess over the target given back per sample
+     */
+    public void configure(double alpha, double headroom, double shrinkFraction) {
+        this.alpha = Math.min(Math.max(alpha, 0.0), 1.0);
+        this.headroom = Math.max(headroom, 0.0);
+        this.shrinkFraction = Math.min(Math.max(shrinkFraction, 0.0), 1.0);
+    }
+
+    /// demand recorders, called by the connection pool
+
+    /**
+     * Enter
+     *
+     * An acquire started.
+     */
+    void enter() {
+        int current = demand.incrementAndGet();
+        for (int p = peak.get(); current > p; p = peak.get()) {
+            if (peak.compareAndSet(p, current)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Exit
+     *
+     * A connection was released, or an acquire failed.
+     */
+    void exit() {
+        demand.decrementAndGet();
+    }
+
+    /**
+     * Update
+     *
+     * Takes a sample of the peak demand since the last update, folds it
+     * into the average and recomputes the target.
+     *
+     * @returns new target size
+     */
+    int update() {
+        int sample = peak.getAndSet(Math.max(demand.get(), 0));
+        average = alpha * sample + (1.0 - alpha) * average;
+        int wanted = (int) Math.ceil(average * (1.0 + headroom));
+        target = Math.min(Math.max(wanted, props.minSize), props.maxSize);
+        return target;
+    }
+
+    /**
+     * Shrink Step
+     *
+     * @params  current number of connections
+     * @returns connections to give back now, at least one if over target
+     */
+    int shrinkStep(int total) {
+        int excess = total - target;
+        if (excess <= 0) {
+            return 0;
+        }
+        return Math.max(1, (int) Math.ceil(excess * shrinkFraction));
+    }
+
+    /**
+     * @returns acquires currently in flight
+     */
+    public int getDemand() {
+        return Math.max(demand.get(), 0);
+    }
+
+    /**
+     * @returns moving average of the peak demand
+     */
+    public double getAverage() {
+        return average;
+    }
+
+    /**
+     * @returns size the pool is being steered towards
+     */
+    public int getTarget() {
+        return target;
+    }
+}
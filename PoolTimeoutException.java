@@ -0,0 +1,27 @@
+/**
+ * Class:  PoolTimeoutException
+ *
+ * Thrown (or used to fail an asynchronous acquire) when no connection became
+ * available within the caller's timeout.
+ */
+public class PoolTimeoutException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ConnectionType type;
+    private final long           timeout;
+
+    public PoolTimeoutException(ConnectionType type, long timeout) {
+        super("Timed out after " + timeout + " ms acquiring from pool: " + type);
+        this.type = type;
+        this.timeout = timeout;
+    }
+
+    public ConnectionType getType() {
+        return type;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+}
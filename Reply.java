@@ -0,0 +1,77 @@
+/**
+ * Class:  Reply
+ *
+ * Outcome of a receive: either the reply that arrived, or a timeout. Unlike
+ * the plain string receive, which answers "" in both cases, an empty reply
+ * and no reply at all can be told apart.
+ */
+public class Reply {
+
+    private final String  body;
+    private final boolean timedOut;
+    private final boolean hedged;
+
+    private Reply(String body, boolean timedOut, boolean hedged) {
+        this.body = body;
+        this.timedOut = timedOut;
+        this.hedged = hedged;
+    }
+
+    /**
+     * @params  body of the reply
+     * @returns a received reply
+     */
+    public static Reply received(String body) {
+        return new Reply(body, false, false);
+    }
+
+    /**
+     * @params  body of the reply
+     * @returns a reply received for the hedged request
+     */
+    public static Reply hedged(String body) {
+        return new Reply(body, false, true);
+    }
+
+    /**
+     * @returns a reply which did not arrive in time
+     */
+    public static Reply timedOut() {
+        return new Reply(null, true, false);
+    }
+
+    /**
+     * @returns true if no reply arrived in time
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @returns true if the reply answered the hedged request
+     */
+    public boolean isHedged() {
+        return hedged;
+    }
+
+    /**
+     * @returns body of the reply, null if timed out
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Or Else
+     *
+     * @params  value to use if timed out
+     * @returns body, or the value if timed out
+     */
+    public String orElse(String other) {
+        return timedOut ? other : body;
+    }
+
+    public String toString() {
+        return timedOut ? "Reply[timed out]" : "Reply[" + (hedged ? "hedged, " : "") + body + "]";
+    }
+}
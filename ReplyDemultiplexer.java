@@ -0,0 +1,324 @@
+import java.util.UUID;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Class:  ReplyDemultiplexer
+ *
+ * One long lived receiver per receive queue. Instead of every request opening
+ * its own receiver with a JMSCorrelationID selector, callers take a
+ * correlation id from the demultiplexer, register it and get a future back,
+ * then send the request carrying that id. A single background thread
+ * receives the replies and completes the pending future whose correlation
+ * id matches.
+ *
+ * The ids all start with a prefix of this demultiplexer's own, and its
+ * receiver selects on that prefix (JMSCorrelationID LIKE 'prefix%'): it
+ * only ever consumes replies to its own requests, never those awaited by
+ * selector receivers of Connection or ChunkedInputStream, nor those of
+ * other processes sharing the queue. The replier has to pass the request's
+ * correlation id on to the reply (MQRO_PASS_CORREL_ID), as MemoryBroker's
+ * echo does.
+ *
+ * Since the id is registered before the request is sent, a reply cannot
+ * beat its registration; one nobody waits for any more (the caller gave
+ * up) is dropped.
+ *
+ * The demultiplexer owns a dedicated connection which is not part of the
+ * connection pool, so request threads only hold a pooled connection for the
+ * duration of the send.
+ */
+public class ReplyDemultiplexer implements Runnable {
+
+    /// how long a single receive blocks before checking for shutdown
+    private static final long RECEIVE_POLL_MILLIS = 1000;
+
+    /// delay before reconnecting after the receiver failed
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+    private static final Map<ConnectionProperties, ReplyDemultiplexer> instances =
+        new ConcurrentHashMap<ConnectionProperties, ReplyDemultiplexer>();
+
+    private final ConnectionProperties                           props;
+    private final Map<String, CompletableFuture<String>>         pending;
+    private final String                                         prefix;
+    private final AtomicLong                                     sequence;
+    private final Logger                                         logger;
+    private Connection                                           conn;
+    private MQQueueReceiver                                      receiver;
+    private Thread                                               thread;
+    private volatile boolean                                     running;
+    /// the pool's destination moved, see reconnect
+    private volatile boolean                                     stale;
+
+    /**
+     * Accessor
+     *
+     * One demultiplexer per pool's receive queue, started on first use.
+     *
+     * @params  properties of the pool whose replies are demultiplexed
+     * @returns running demultiplexer
+     */
+    public static ReplyDemultiplexer getInstance(ConnectionProperties props) {
+        return instances.computeIfAbsent(props, p -> {
+            ReplyDemultiplexer demux = new ReplyDemultiplexer(p);
+            demux.start();
+            return demux;
+        });
+    }
+
+    /**
+     * Shutdown All
+     *
+     * Stops every demultiplexer; pending futures are failed.
+     */
+    public static void shutdownAll() {
+        for (Iterator<ReplyDemultiplexer> it = instances.values().iterator(); it.hasNext();) {
+            it.next().shutdown();
+            it.remove();
+        }
+    }
+
+    /**
+     * Reconnect
+     *
+     * Has the demultiplexer of a pool, if it was started, reconnect after
+     * its next receive, for a pool whose queue manager or receive queue was
+     * reconfigured. Replies already awaited stay awaited.
+     *
+     * @params  properties of the pool, updated in place
+     */
+    public static void reconnect(ConnectionProperties props) {
+        ReplyDemultiplexer demux = instances.get(props);
+        if (demux != null) {
+            demux.stale = true;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @params  properties of the pool whose replies are demultiplexed
+     */
+    ReplyDemultiplexer(ConnectionProperties props) {
+        this.props = props;
+        this.pending = new ConcurrentHashMap<String, CompletableFuture<String>>();
+        this.prefix = "DMX-" + UUID.randomUUID().toString().replace("-", "") + "-";
+        this.sequence = new AtomicLong();
+        this.logger = LoggerAdapter.getInstance().getLogger();
+    }
+
+    /**
+     * Start
+     *
+     * Starts the background receive thread.
+     */
+    void start() {
+        running = true;
+        thread = new Thread(this, "ReplyDemultiplexer-" + props.receiveQueue);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Next Correlation Id
+     *
+     * @returns a new correlation id for a request whose reply is to be
+     *          demultiplexed, under this demultiplexer's prefix
+     */
+    public String nextCorrelationId() {
+        return prefix + Long.toHexString(sequence.incrementAndGet());
+    }
+
+    /**
+     * Expect
+     *
+     * Registers interest in the reply with the given correlation id, before
+     * the request is sent. The future completes when the reply is received,
+     * or fails with a TimeoutException after the pool's receive timeout. A
+     * caller whose send fails cancels the future.
+     *
+     * @params  correlation id from nextCorrelationId
+     * @returns future completed with the reply
+     */
+    public CompletableFuture<String> expect(String correlationId) {
+        return expect(correlationId, props.timeout);
+    }
+
+    /**
+     * Expect
+     *
+     * As above, but the future fails with a TimeoutException once the
+     * deadline passes (or after the receive timeout, if that comes first).
+     *
+     * @params  correlation id from nextCorrelationId
+     * @params  deadline of the request
+     * @returns future completed with the reply
+     */
+    public CompletableFuture<String> expect(String correlationId, Deadline deadline) {
+        /// no time left: zero would mean waiting with no limit
+        long timeout = deadline.cap(props.timeout);
+        if (timeout <= 0) {
+            CompletableFuture<String> future = new CompletableFuture<String>();
+            future.completeExceptionally(new TimeoutException("Deadline passed: " + correlationId));
+            return future;
+        }
+        return expect(correlationId, timeout);
+    }
+
+    /**
+     * Expect
+     *
+     * @params  correlation id from nextCorrelationId
+     * @params  millis to wait for the reply, zero or less for no limit
+     * @returns future completed with the reply
+     */
+    private CompletableFuture<String> expect(String correlationId, long timeout) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        if (! running) {
+            future.completeExceptionally(new IllegalStateException("Demultiplexer stopped"));
+            return future;
+        }
+        pending.put(correlationId, future);
+        if (timeout > 0) {
+            future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+        future.whenComplete((reply, ex) -> pending.remove(correlationId, future));
+        return future;
+    }
+
+    /**
+     * Run
+     *
+     * Receive loop:
+     * - Connects if there is no receiver (after a failure for instance).
+     * - Receives the next reply to one of our requests and routes it by
+     *   correlation id.
+     */
+    public void run() {
+        while (running) {
+            try {
+                if (stale) {
+                    stale = false;
+                    disconnect();
+                }
+                if (receiver == null) {
+                    connect();
+                }
+                Message message = receiver.receive(RECEIVE_POLL_MILLIS);
+                if (message != null) {
+                    route(message);
+                }
+            }
+            catch (Exception ex) {
+                if (! running) {
+                    break;
+                }
+                String s = "Reply receiver failed on queue: " + props.receiveQueue;
+                Utilities.logException(ex, s);
+                disconnect();
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                }
+                catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        disconnect();
+    }
+
+    /**
+     * Route
+     *
+     * Decodes the message and completes the matching future. A reply whose
+     * caller gave up is dropped.
+     *
+     * @params  received message
+     */
+    private void route(Message message) {
+        String correlationId = message.getJMSCorrelationID();
+        if (correlationId == null) {
+            return;
+        }
+        CompletableFuture<String> future = pending.remove(correlationId);
+        if (future == null) {
+            logger.fine(() -> "Dropping reply nobody awaits any more: " + correlationId);
+            return;
+        }
+        try {
+            future.complete(conn.decode(message));
+        }
+        catch (Exception ex) {
+            future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Connect
+     *
+     * Establishes the dedicated connection and the receiver selecting the
+     * replies to our requests.
+     *
+     * @throws  JMSException if the queue manager cannot be reached
+     */
+    private void connect() throws JMSException {
+        conn = new Connection(props);
+        conn.init();
+        MQQueue queue = conn.receiveDestination();
+        receiver = conn.session.createReceiver(queue, "JMSCorrelationID LIKE '" + prefix + "%'");
+        logger.info("Reply demultiplexer listening on: " + props.receiveQueue);
+    }
+
+    /**
+     * Disconnect
+     *
+     * Closes the receiver and disposes of the dedicated connection.
+     */
+    private void disconnect() {
+        if (receiver != null) {
+            try {
+                receiver.close();
+            }
+            catch (Exception ex) {
+                String s = "Failure to close reply receiver on: " + props.receiveQueue;
+                Utilities.logException(ex, s);
+            }
+            receiver = null;
+        }
+        if (conn != null) {
+            conn.dispose();
+            conn = null;
+        }
+    }
+
+    /**
+     * Shutdown
+     *
+     * Stops the receive thread and fails every pending future.
+     */
+    public void shutdown() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        for (CompletableFuture<String> future : pending.values()) {
+            future.completeExceptionally(new IllegalStateException("Demultiplexer stopped"));
+        }
+        pending.clear();
+    }
+
+    /**
+     * @returns number of replies currently awaited
+     */
+    public int pendingCount() {
+        return pending.size();
+    }
+}
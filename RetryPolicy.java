@@ -0,0 +1,107 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Class:  RetryPolicy
+ *
+ * How often and how soon a failed dispatch is tried again: up to a number of
+ * attempts, pausing between them for an exponentially growing delay with
+ * "full jitter" - a random delay between zero and the exponential bound - so
+ * that callers failing together do not retry together.
+ */
+public class RetryPolicy {
+
+    private final int  attempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    /**
+     * Constructor
+     *
+     * @params  attempts in all, including the first (at least one)
+     * @params  bound of the delay before the first retry, in millis
+     * @params  cap of the delay bound, in millis
+     */
+    public RetryPolicy(int attempts, long baseDelay, long maxDelay) {
+        this.attempts = Math.max(attempts, 1);
+        this.baseDelay = Math.max(baseDelay, 0L);
+        this.maxDelay = Math.max(maxDelay, this.baseDelay);
+    }
+
+    /**
+     * For
+     *
+     * @params  pool properties
+     * @returns the pool's retry policy
+     */
+    public static RetryPolicy of(ConnectionProperties props) {
+        return new RetryPolicy(props.retries, props.retryBaseDelay, props.retryMaxDelay);
+    }
+
+    /**
+     * @returns attempts in all, including the first
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Delay
+     *
+     * @params  retry number, 1 for the first retry
+     * @returns millis to pause before that retry
+     */
+    public long delay(int retry) {
+        if (baseDelay == 0 || retry <= 0) {
+            return 0L;
+        }
+        int shift = Math.min(retry - 1, 30);
+        long bound = Math.min(baseDelay << shift, maxDelay);
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Pause
+     *
+     * Sleeps for the delay of the given retry.
+     *
+     * @params  retry number, 1 for the first retry
+     * @returns false if interrupted, with the interrupt status restored
+     */
+    public boolean pause(int retry) {
+        return pause(retry, null);
+    }
+
+    /**
+     * Pause
+     *
+     * Sleeps for the delay of the given retry, unless that would use up
+     * what is left of the deadline.
+     *
+     * @params  retry number, 1 for the first retry
+     * @params  deadline of the request, null for none
+     * @returns false if interrupted (with the interrupt status restored) or
+     *          if there is no time left for the retry
+     */
+    public boolean pause(int retry, Deadline deadline) {
+        long delay = delay(retry);
+        if (deadline != null && delay >= deadline.remainingMillis()) {
+            return false;
+        }
+        if (delay == 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(delay);
+            return true;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public String toString() {
+        return "attempts=" + attempts + " base=" + baseDelay + "ms max=" + maxDelay + "ms";
+    }
+}
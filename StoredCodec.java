@@ -0,0 +1,61 @@
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+
+/**
+ * Class:  StoredCodec
+ *
+ * No compression at all; the bytes are stored as they are. Useful to send
+ * UTF-8 bytes messages without paying for deflate, and as a baseline when
+ * comparing codecs.
+ */
+public class StoredCodec implements CompressionCodec {
+
+    public static final String NAME = "stored";
+
+    public String name() {
+        return NAME;
+    }
+
+    public int compress(CompressionContext context, byte[] source, int length) {
+        System.arraycopy(source, 0, context.output(length), 0, length);
+        return length;
+    }
+
+    public int decompress(CompressionContext context, byte[] source, int length) {
+        System.arraycopy(source, 0, context.output(length), 0, length);
+        return length;
+    }
+
+    public int compress(CompressionContext context, ByteBuffer source) {
+        int length = source.remaining();
+        source.get(context.output(length), 0, length);
+        return length;
+    }
+
+    public int compress(CompressionContext context, ByteBuffer source, ByteBuffer target) {
+        int length = source.remaining();
+        target.put(source);
+        return length;
+    }
+
+    public int maxCompressedLength(int length) {
+        return length;
+    }
+
+    public int decompress(CompressionContext context, ByteBuffer source, ByteBuffer target)
+        throws DataFormatException {
+
+        int length = source.remaining();
+        if (length > target.remaining()) {
+            throw new DataFormatException("Stored " + length + " bytes, room for "
+                + target.remaining());
+        }
+        target.put(source);
+        return length;
+    }
+
+    public String toString() {
+        return NAME;
+    }
+}
@@ -0,0 +1,167 @@
+import java.lang.reflect.Method;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.logging.Logger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Class:  TaskExecutors
+ *
+ * Executors for blocking request/reply work. In virtual mode every task gets
+ * its own virtual thread, so a task blocked on an acquire or a receive costs
+ * a few hundred bytes of heap rather than a platform thread. The pool and the
+ * dispatcher only block on java.util.concurrent primitives, which unmount a
+ * virtual thread instead of pinning its carrier. Per thread caches are not
+ * kept on virtual threads, see isVirtual.
+ *
+ * Virtual threads need Java 21; the factory is looked up reflectively so the
+ * code still builds and runs on older runtimes, where it falls back to a
+ * cached pool of daemon platform threads.
+ *
+ * The mode is a system property, like the logging settings:
+ * - mq.executor            virtual (default) or platform
+ */
+public class TaskExecutors {
+
+    public enum Mode {
+        VIRTUAL, PLATFORM
+    }
+
+    /// initialized on first use, see shared()
+    private static class Holder {
+        static final ExecutorService shared = create("mq-task");
+    }
+
+    /**
+     * Shared
+     *
+     * @returns executor shared by the dispatcher and the consumer harness,
+     *          created on first use in the configured mode
+     */
+    public static ExecutorService shared() {
+        return Holder.shared;
+    }
+
+    /**
+     * Configured Mode
+     *
+     * @returns mode set by mq.executor
+     */
+    public static Mode configuredMode() {
+        String mode = System.getProperty("mq.executor", "virtual");
+        return Mode.valueOf(mode.trim().toUpperCase());
+    }
+
+    /**
+     * Create
+     *
+     * @params  name prefix of platform threads
+     * @returns executor in the configured mode
+     */
+    public static ExecutorService create(String name) {
+        return create(configuredMode(), name);
+    }
+
+    /**
+     * Create
+     *
+     * @params  virtual or platform threads; virtual falls back to platform
+     *          if the runtime lacks them
+     * @params  name prefix of platform threads
+     * @returns new executor running each task on its own thread
+     */
+    public static ExecutorService create(Mode mode, String name) {
+        if (mode == Mode.VIRTUAL) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+            Logger logger = LoggerAdapter.getInstance().getLogger();
+            if (logger != null) {
+                logger.warning("Virtual threads unavailable on Java "
+                    + Runtime.version().feature() + ", using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool(daemonFactory(name));
+    }
+
+    /**
+     * Is Virtual Available
+     *
+     * @returns true if the runtime supports virtual threads
+     */
+    public static boolean isVirtualAvailable() {
+        return virtualFactory != null;
+    }
+
+    /**
+     * Is Virtual
+     *
+     * Per thread state pays off on long lived platform threads, not on a
+     * virtual thread, which lives for one task: a thread local would be
+     * built for every task and dropped with it. The compression context and
+     * the connection bag's affinity slots are skipped on virtual threads.
+     *
+     * @returns true if the calling thread is a virtual thread
+     */
+    public static boolean isVirtual() {
+        try {
+            return (boolean) virtualCheck.invokeExact(Thread.currentThread());
+        }
+        catch (Throwable ex) {
+            return false;
+        }
+    }
+
+    private static final Method virtualFactory = lookupVirtualFactory();
+
+    /// on the borrow and release paths: a constant handle the JIT inlines,
+    /// rather than a reflective call
+    private static final MethodHandle virtualCheck = lookupVirtualCheck();
+
+    private static Method lookupVirtualFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+        catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private static MethodHandle lookupVirtualCheck() {
+        MethodType type = MethodType.methodType(boolean.class);
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", type);
+        }
+        catch (ReflectiveOperationException ex) {
+            /// no virtual threads, never one
+            return MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, Thread.class);
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (virtualFactory == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) virtualFactory.invoke(null);
+        }
+        catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
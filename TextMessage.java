@@ -1,10 +1,14 @@
 public class TextMessage extends Message {
+    private String text;
     public String getText() {
-        return "";
+        return text;
     }
     public void setText(String message) {
+        this.text = message;
     }
-    public String getJMSMessageID() {
-        return "";
+    Message copy() {
+        TextMessage m = copyHeaders(new TextMessage());
+        m.text = text;
+        return m;
     }
 }
@@ -13,16 +13,18 @@ public class TimeTracker {
     }
 
     public void start(String context) {
-        logger.info(context + " has started.");
+        logger.info(() -> context + " has started.");
     }
 
     public void mark(String context) {
         stopTime = System.currentTimeMillis();
         double elapsed = (stopTime - startTime) / 1000.0;
-        StringBuffer sb = new StringBuffer();
-        sb.append(context);
-        sb.append(" has stopped. Elapsed time: ");
-        sb.append(String.format("%.6f", elapsed));
-        logger.info(sb.toString());
+        logger.info(() -> {
+            StringBuilder sb = new StringBuilder();
+            sb.append(context);
+            sb.append(" has stopped. Elapsed time: ");
+            sb.append(String.format("%.6f", elapsed));
+            return sb.toString();
+        });
     }
 }
@@ -0,0 +1,105 @@
+package mq;
+
+import java.util.Random;
+import java.util.logging.Level;
+
+
+/**
+ * Class:  BenchmarkSupport
+ *
+ * Shared setup for the benchmarks: pool properties for the in-memory MQ
+ * stand-in, quiet logging and payload generation.
+ */
+public class BenchmarkSupport {
+
+    /**
+     * Init Logging
+     *
+     * Initializes the logger singleton once and silences it so benchmarks
+     * are not measuring console output.
+     */
+    public static synchronized void initLogging() throws Exception {
+        if (LoggerAdapter.getInstance().getLogger() == null) {
+            LoggerAdapter.getInstance().init();
+        }
+        LoggerAdapter.getInstance().getLogger().setLevel(Level.WARNING);
+    }
+
+    /**
+     * Properties
+     *
+     * @params  pool type
+     * @params  minimum pool size
+     * @params  maximum pool size
+     * @params  codec name, "none" for uncompressed
+     * @returns properties for the in-memory queue manager, whose request
+     *          queue discards what is sent since nobody consumes it
+     */
+    public static ConnectionProperties properties(ConnectionType type, int minSize,
+                                                  int maxSize, String codec) {
+        ConnectionProperties props = new ConnectionProperties();
+        props.type = type;
+        props.manager = "BENCH";
+        props.hostname = "localhost";
+        props.channel = "BENCH.CHANNEL";
+        props.port = 1414;
+        props.username = "";
+        props.password = "";
+        props.sendQueue = "BENCH." + type + ".REQUEST";
+        props.receiveQueue = "BENCH." + type + ".REPLY";
+        props.minSize = minSize;
+        props.maxSize = maxSize;
+        props.timeout = 1000L;
+        props.compress = ! "none".equals(codec);
+        props.codec = props.compress ? Codecs.forName(codec) : null;
+        /// retry without backoff and never trip, so the retry benchmark
+        /// measures the dispose-and-acquire path rather than sleeps or
+        /// fast failures
+        props.retries = 3;
+        props.retryBaseDelay = 0L;
+        props.breakerThreshold = 0;
+        MemoryBroker.getInstance(props.manager).discard(props.sendQueue);
+        return props;
+    }
+
+    /**
+     * Init Pool
+     *
+     * Configures all three pools with the same sizes and initializes the
+     * connection pool singleton.
+     */
+    public static ConnectionPool initPool(int minSize, int maxSize) throws Exception {
+        initLogging();
+        ConnectionConfiguration.readProps = properties(ConnectionType.Read, minSize, maxSize, "none");
+        ConnectionConfiguration.writeProps = properties(ConnectionType.Write, minSize, maxSize, "none");
+        ConnectionConfiguration.bulkProps = properties(ConnectionType.Bulk, minSize, maxSize, "none");
+        ConnectionConfiguration.evictionPeriod = 60000L;
+        ConnectionConfiguration.demandAlpha = 0.3;
+        ConnectionConfiguration.headroom = 0.2;
+        ConnectionConfiguration.shrinkFraction = 0.25;
+        ConnectionPool pool = ConnectionPool.getInstance();
+        pool.init();
+        return pool;
+    }
+
+    /**
+     * Payload
+     *
+     * XML-ish text of roughly the requested size, compressible like the
+     * real request payloads.
+     *
+     * @params  size in characters
+     * @returns payload
+     */
+    public static String payload(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder(size + 64);
+        while (sb.length() < size) {
+            sb.append("<field id=\"").append(random.nextInt(10000)).append("\">");
+            sb.append(Long.toHexString(random.nextLong()));
+            sb.append("</field>");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+}
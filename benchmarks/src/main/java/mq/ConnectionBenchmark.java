@@ -0,0 +1,68 @@
+package mq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Class:  ConnectionBenchmark
+ *
+ * Connection.send (message creation, compression and the sender) and
+ * Connection.decode (the receive side after the broker handed over the
+ * message) across payload sizes and codecs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    @Param({"none", "deflate", "lz"})
+    public String codec;
+
+    Connection conn;
+    String     payload;
+    Message    received;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.initLogging();
+        conn = new Connection(BenchmarkSupport.properties(ConnectionType.Bulk, 1, 1, codec));
+        conn.init();
+        payload = BenchmarkSupport.payload(payloadSize);
+
+        if (conn.props.compress) {
+            BytesMessage bytes = new BytesMessage();
+            try (CompressionContext context = CompressionContext.acquire()) {
+                context.compress(payload, conn.props.codec, bytes);
+            }
+            received = bytes;
+        }
+        else {
+            TextMessage text = new TextMessage();
+            text.setText(payload);
+            received = text;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        conn.dispose();
+    }
+
+    @Benchmark
+    public String send() throws Exception {
+        return conn.send(payload);
+    }
+
+    @Benchmark
+    public String receive() throws Exception {
+        return conn.decode(received);
+    }
+}
@@ -0,0 +1,74 @@
+package mq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Class:  DispatcherBenchmark
+ *
+ * Dispatcher.dispatch on a healthy connection, and on one whose send fails
+ * so that every call goes through the dispose-and-acquire retry path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatcherBenchmark {
+
+    /**
+     * Failing Connection
+     *
+     * Connection whose sends always fail with a JMS exception.
+     */
+    static class FailingConnection extends Connection {
+
+        FailingConnection(ConnectionProperties props) {
+            super(props);
+        }
+
+        public String send(String message) throws JMSException {
+            throw new JMSException();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PoolState {
+
+        ConnectionPool pool;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            pool = BenchmarkSupport.initPool(4, 64);
+        }
+    }
+
+    String payload;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        payload = BenchmarkSupport.payload(1024);
+    }
+
+    @Benchmark
+    public Dispatcher.Result dispatch(PoolState state) throws Exception {
+        Connection conn = state.pool.acquire(ConnectionType.Write);
+        Dispatcher.Result result = Dispatcher.dispatch(payload, conn, true);
+        state.pool.release(result.conn);
+        return result;
+    }
+
+    @Benchmark
+    public Dispatcher.Result dispatchWithRetry(PoolState state) throws Exception {
+        Connection conn = new FailingConnection(ConnectionConfiguration.writeProps);
+        conn.init();
+        Dispatcher.Result result = Dispatcher.dispatch(payload, conn, true);
+        if (result.conn != conn) {
+            state.pool.release(result.conn);
+        }
+        return result;
+    }
+}
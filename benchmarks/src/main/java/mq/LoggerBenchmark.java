@@ -0,0 +1,55 @@
+package mq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Class:  LoggerBenchmark
+ *
+ * Overhead of LoggerAdapter: formatting one record with its formatter, and
+ * a log call below the logger's level (the cost paid on every pool
+ * operation when INFO is switched off).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggerBenchmark {
+
+    Logger    logger;
+    Formatter formatter;
+    LogRecord record;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        BenchmarkSupport.initLogging();
+        logger = LoggerAdapter.getInstance().getLogger();
+        formatter = logger.getHandlers()[0].getFormatter();
+        record = new LogRecord(java.util.logging.Level.INFO,
+            "Acquiring from -> Pool Type: Read. Available Connections: 9. InUse Connections: 1.");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String format() {
+        return formatter.format(record);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String formatContended() {
+        return formatter.format(record);
+    }
+
+    @Benchmark
+    public void logDisabled() {
+        logger.info("Releasing to   -> " + record.getMessage());
+    }
+}
@@ -0,0 +1,70 @@
+package mq;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Class:  PoolBenchmark
+ *
+ * Acquire followed by release on the read pool, at increasing thread counts.
+ * With maxSize below the thread count the full-pool wait path is measured
+ * as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PoolBenchmark {
+
+    @Param({"10"})
+    public int minSize;
+
+    @Param({"16", "100"})
+    public int maxSize;
+
+    ConnectionPool pool;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        pool = BenchmarkSupport.initPool(minSize, maxSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown(5000);
+    }
+
+    private Connection acquireRelease() throws Exception {
+        Connection conn = pool.acquire(ConnectionType.Read);
+        pool.release(conn);
+        return conn;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Connection acquireRelease_1() throws Exception {
+        return acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Connection acquireRelease_4() throws Exception {
+        return acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Connection acquireRelease_16() throws Exception {
+        return acquireRelease();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Connection acquireRelease_64() throws Exception {
+        return acquireRelease();
+    }
+}